@@ -0,0 +1,58 @@
+/**
+ *
+ *
+ * Copyright (c) 2013 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.attendant;
+
+import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocketInterface;
+import org.sipfoundry.commons.userdb.ValidUsers;
+import org.sipfoundry.sipxivr.eslrequest.AbstractEslRequestAppFactory;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestApp;
+import org.sipfoundry.voicemail.mailbox.MailboxManager;
+
+public class AttendantFactory extends AbstractEslRequestAppFactory {
+    private String m_operatorAddr;
+    private ValidUsers m_validUsers;
+    private MailboxManager m_mailboxManager;
+    private Configuration m_autoAttendantConfig;
+
+    @Override
+    public EslRequestApp createApp(FreeSwitchEventSocketInterface fses) {
+        AaEslRequestController controller = initController(new AaEslRequestController(), fses);
+        controller.setAutoAttendantConfig(m_autoAttendantConfig);
+        Attendant attendant = new Attendant();
+        attendant.setOperatorAddr(m_operatorAddr);
+        attendant.setValidUsers(m_validUsers);
+        attendant.setMailboxManager(m_mailboxManager);
+        attendant.setEslRequestController(controller);
+        return attendant;
+    }
+
+    public void setOperatorAddr(String operatorAddr) {
+        m_operatorAddr = operatorAddr;
+    }
+
+    public void setValidUsers(ValidUsers validUsers) {
+        m_validUsers = validUsers;
+    }
+
+    public void setMailboxManager(MailboxManager mgr) {
+        m_mailboxManager = mgr;
+    }
+
+    public void setAutoAttendantConfig(Configuration config) {
+        m_autoAttendantConfig = config;
+    }
+}
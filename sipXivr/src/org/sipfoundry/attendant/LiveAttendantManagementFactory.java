@@ -0,0 +1,56 @@
+/**
+ *
+ *
+ * Copyright (c) 2013 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.attendant;
+
+import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocketInterface;
+import org.sipfoundry.sipxivr.eslrequest.AbstractEslRequestAppFactory;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestApp;
+import org.sipfoundry.voicemail.mailbox.MailboxManager;
+
+public class LiveAttendantManagementFactory extends AbstractEslRequestAppFactory {
+    private String m_did;
+    private String m_enablePrefix;
+    private String m_disablePrefix;
+    private MailboxManager m_mailboxManager;
+
+    @Override
+    public EslRequestApp createApp(FreeSwitchEventSocketInterface fses) {
+        LiveAttendantManagement management = new LiveAttendantManagement();
+        management.setDid(m_did);
+        management.setEnablePrefix(m_enablePrefix);
+        management.setDisablePrefix(m_disablePrefix);
+        management.setMailboxManager(m_mailboxManager);
+        management.setEslRequestController(initController(new AaLiveManagementController(), fses));
+        return management;
+    }
+
+    public void setDid(String did) {
+        m_did = did;
+    }
+
+    public void setEnablePrefix(String prefix) {
+        m_enablePrefix = prefix;
+    }
+
+    public void setDisablePrefix(String prefix) {
+        m_disablePrefix = prefix;
+    }
+
+    public void setMailboxManager(MailboxManager manager) {
+        m_mailboxManager = manager;
+    }
+}
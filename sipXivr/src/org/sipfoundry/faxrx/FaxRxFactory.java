@@ -0,0 +1,44 @@
+/**
+ *
+ *
+ * Copyright (c) 2013 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.faxrx;
+
+import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocketInterface;
+import org.sipfoundry.commons.userdb.ValidUsers;
+import org.sipfoundry.sipxivr.eslrequest.AbstractEslRequestAppFactory;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestApp;
+
+public class FaxRxFactory extends AbstractEslRequestAppFactory {
+    private ValidUsers m_validUsers;
+    private FaxProcessor m_faxProcessor;
+
+    @Override
+    public EslRequestApp createApp(FreeSwitchEventSocketInterface fses) {
+        FaxRx faxRx = new FaxRx();
+        faxRx.setValidUsers(m_validUsers);
+        faxRx.setFaxProcessor(m_faxProcessor);
+        faxRx.setEslRequestController(initController(new FaxRxEslRequestController(), fses));
+        return faxRx;
+    }
+
+    public void setValidUsers(ValidUsers validUsers) {
+        m_validUsers = validUsers;
+    }
+
+    public void setFaxProcessor(FaxProcessor processor) {
+        m_faxProcessor = processor;
+    }
+}
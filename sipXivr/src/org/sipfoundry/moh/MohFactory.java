@@ -0,0 +1,50 @@
+/**
+ *
+ *
+ * Copyright (c) 2013 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.moh;
+
+import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocketInterface;
+import org.sipfoundry.commons.userdb.ValidUsers;
+import org.sipfoundry.sipxivr.eslrequest.AbstractEslRequestAppFactory;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestApp;
+
+public class MohFactory extends AbstractEslRequestAppFactory {
+    private String m_dataDirectory;
+    private String m_promptsDir;
+    private ValidUsers m_validUsers;
+
+    @Override
+    public EslRequestApp createApp(FreeSwitchEventSocketInterface fses) {
+        Moh moh = new Moh();
+        moh.setDataDirectory(m_dataDirectory);
+        moh.setPromptsDir(m_promptsDir);
+        moh.setValidUsers(m_validUsers);
+        moh.setEslRequestController(initController(new MohEslRequestController(), fses));
+        return moh;
+    }
+
+    public void setDataDirectory(String dir) {
+        m_dataDirectory = dir;
+    }
+
+    public void setPromptsDir(String dir) {
+        m_promptsDir = dir;
+    }
+
+    public void setValidUsers(ValidUsers validUsers) {
+        m_validUsers = validUsers;
+    }
+}
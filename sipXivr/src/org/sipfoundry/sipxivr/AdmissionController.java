@@ -0,0 +1,209 @@
+/**
+ *
+ *
+ * Copyright (c) 2013 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.sipxivr;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Decides whether a new call is handled or shed, so that an overloaded IVR keeps serving the
+ * calls it has instead of making every call wait on Mongo.
+ *
+ * A call is shed when maxCalls calls are already handled, when its application already handles
+ * the limit set in applicationLimits, or when the backing stores are slow: while the average
+ * store latency is above latencyThreshold, only degradedMaxCalls calls are handled. The latency is
+ * a moving average of the operations reported with recordLatency; samples older than
+ * latencyWindow are not trusted, the stores are considered healthy again once they are not used.
+ *
+ * A shed call is transferred to overflowAddress if set, otherwise answered with busyPrompt if
+ * set, otherwise hung up. The call and shed counts and the store latency are exported over JMX
+ * as sipxivr:name=admission.
+ */
+public class AdmissionController {
+    static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private int m_maxCalls;
+    private Map<String, Integer> m_applicationLimits = new HashMap<String, Integer>();
+    private long m_latencyThreshold;
+    private long m_latencyWindow = 30000;
+    private int m_degradedMaxCalls;
+    private String m_busyPrompt;
+    private String m_overflowAddress;
+    private final AtomicInteger m_activeCalls = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> m_applicationCalls =
+        new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicLong m_shedCount = new AtomicLong();
+    private double m_storeLatency;
+    private long m_lastSample;
+
+    /**
+     * Admits a call of the given application; every admitted call must be released.
+     *
+     * @return false if the call has to be shed
+     */
+    public boolean admit(String application) {
+        // counted first, concurrent calls cannot all pass the same check
+        int active = m_activeCalls.incrementAndGet();
+        int applicationActive = getApplicationCalls(application).incrementAndGet();
+        String reason = null;
+        Integer limit = m_applicationLimits.get(application);
+        if (m_maxCalls > 0 && active > m_maxCalls) {
+            reason = String.format("%d calls active", active - 1);
+        } else if (limit != null && applicationActive > limit) {
+            reason = String.format("%d %s calls active", applicationActive - 1, application);
+        } else if (m_degradedMaxCalls > 0 && active > m_degradedMaxCalls && isStoreSlow()) {
+            reason = String.format("%d calls active and store latency of %d ms", active - 1, getStoreLatency());
+        }
+        if (reason == null) {
+            return true;
+        }
+        release(application);
+        m_shedCount.incrementAndGet();
+        LOG.warn(String.format("AdmissionController: shedding %s call, %s", application, reason));
+        return false;
+    }
+
+    public void release(String application) {
+        getApplicationCalls(application).decrementAndGet();
+        m_activeCalls.decrementAndGet();
+    }
+
+    /**
+     * Reports the time taken by an operation on a backing store (Mongo, mailstore) done by a call
+     */
+    public synchronized void recordLatency(long millis) {
+        if (m_lastSample == 0) {
+            m_storeLatency = millis;
+        } else {
+            m_storeLatency += LATENCY_WEIGHT * (millis - m_storeLatency);
+        }
+        m_lastSample = System.currentTimeMillis();
+    }
+
+    private synchronized boolean isStoreSlow() {
+        return m_latencyThreshold > 0 && m_storeLatency > m_latencyThreshold
+                && System.currentTimeMillis() - m_lastSample < m_latencyWindow;
+    }
+
+    private AtomicInteger getApplicationCalls(String application) {
+        AtomicInteger calls = m_applicationCalls.get(application);
+        if (calls == null) {
+            AtomicInteger newCalls = new AtomicInteger();
+            calls = m_applicationCalls.putIfAbsent(application, newCalls);
+            if (calls == null) {
+                calls = newCalls;
+            }
+        }
+        return calls;
+    }
+
+    public int getActiveCalls() {
+        return m_activeCalls.get();
+    }
+
+    public int getActiveCalls(String application) {
+        AtomicInteger calls = m_applicationCalls.get(application);
+        return calls != null ? calls.get() : 0;
+    }
+
+    public long getShedCount() {
+        return m_shedCount.get();
+    }
+
+    /**
+     * Moving average of the store operations, in milliseconds
+     */
+    public synchronized long getStoreLatency() {
+        return Math.round(m_storeLatency);
+    }
+
+    public String getBusyPrompt() {
+        return m_busyPrompt;
+    }
+
+    public String getOverflowAddress() {
+        return m_overflowAddress;
+    }
+
+    /**
+     * @param maxCalls calls handled at once by all applications, 0 for no limit
+     */
+    public void setMaxCalls(int maxCalls) {
+        m_maxCalls = maxCalls;
+    }
+
+    /**
+     * @param applicationLimits calls handled at once per application, as in
+     *        "deposit:200,autoattendant:100,faxrx:20"; applications not listed have no limit
+     */
+    public void setApplicationLimits(String applicationLimits) {
+        Map<String, Integer> limits = new HashMap<String, Integer>();
+        for (String limit : StringUtils.split(StringUtils.defaultString(applicationLimits), ", ")) {
+            String[] applicationLimit = StringUtils.split(limit, ':');
+            if (applicationLimit.length != 2) {
+                throw new IllegalArgumentException("Invalid application limit " + limit);
+            }
+            limits.put(applicationLimit[0], Integer.valueOf(applicationLimit[1]));
+        }
+        m_applicationLimits = limits;
+    }
+
+    /**
+     * @param latencyThreshold average store latency in milliseconds above which calls are shed, 0
+     *        to never shed on latency
+     */
+    public void setLatencyThreshold(long latencyThreshold) {
+        m_latencyThreshold = latencyThreshold;
+    }
+
+    /**
+     * @param latencyWindow milliseconds after which the last store latency no longer sheds calls
+     */
+    public void setLatencyWindow(long latencyWindow) {
+        m_latencyWindow = latencyWindow;
+    }
+
+    /**
+     * @param degradedMaxCalls calls handled at once while the stores are slow; they keep measuring
+     *        the stores. 0 to never shed on latency
+     */
+    public void setDegradedMaxCalls(int degradedMaxCalls) {
+        m_degradedMaxCalls = degradedMaxCalls;
+    }
+
+    /**
+     * @param busyPrompt prompt played to shed calls
+     */
+    public void setBusyPrompt(String busyPrompt) {
+        m_busyPrompt = StringUtils.trimToNull(busyPrompt);
+    }
+
+    /**
+     * @param overflowAddress SIP address shed calls are transferred to, such as another IVR
+     */
+    public void setOverflowAddress(String overflowAddress) {
+        m_overflowAddress = StringUtils.trimToNull(overflowAddress);
+    }
+}
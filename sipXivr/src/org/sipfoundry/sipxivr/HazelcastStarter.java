@@ -16,22 +16,31 @@ package org.sipfoundry.sipxivr;
 import org.apache.log4j.Logger;
 
 import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
 
 public class HazelcastStarter {
     static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
 
     boolean m_hzEnabled;
+    private HazelcastInstance m_instance;
 
     public void init() {
         if (m_hzEnabled) {
             LOG.info("Starting Hazelcast instance");
-            Hazelcast.newHazelcastInstance();
+            m_instance = Hazelcast.newHazelcastInstance();
         } else {
             LOG.warn("Component notification (Hazelcast based) is not enabled. " +
                     "Certain features (like voicemail event notifications over XMPP) are not available");
         }
     }
 
+    /**
+     * @return the instance of this node, null if Hazelcast is not enabled
+     */
+    public HazelcastInstance getHazelcastInstance() {
+        return m_instance;
+    }
+
     public void setHzEnabled(boolean enabled) {
         m_hzEnabled = enabled;
     }
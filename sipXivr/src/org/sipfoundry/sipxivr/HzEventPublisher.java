@@ -0,0 +1,179 @@
+/**
+ *
+ *
+ * Copyright (c) 2013 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.sipxivr;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.ITopic;
+
+/**
+ * Publishes the component events (voicemail deposit started or ended...) to Hazelcast topics for
+ * the whole application.
+ *
+ * Events are queued and published by a single thread, the calls never wait for Hazelcast. The
+ * thread takes the queued events in batches of up to batchSize. When queueSize events are waiting
+ * new events are dropped. Events go through the instance started by HazelcastStarter, nothing is
+ * published if Hazelcast is not enabled. The queue statistics are exported over JMX as
+ * sipxivr:name=hzPublisher.
+ */
+public class HzEventPublisher {
+    static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
+    private int m_queueSize = 1000;
+    private int m_batchSize = 50;
+    private HazelcastStarter m_hzStarter;
+    private HazelcastInstance m_instance;
+    private BlockingQueue<QueuedEvent> m_queue;
+    private Thread m_publisher;
+    private final AtomicLong m_publishedCount = new AtomicLong();
+    private final AtomicLong m_publishTime = new AtomicLong();
+    private final AtomicLong m_droppedCount = new AtomicLong();
+    private final AtomicLong m_failedCount = new AtomicLong();
+
+    public void init() {
+        m_instance = m_hzStarter != null ? m_hzStarter.getHazelcastInstance() : null;
+        if (m_instance == null) {
+            return;
+        }
+        m_queue = new ArrayBlockingQueue<QueuedEvent>(m_queueSize);
+        m_publisher = new Thread("HzEventPublisher") {
+            @Override
+            public void run() {
+                publishEvents();
+            }
+        };
+        m_publisher.setDaemon(true);
+        m_publisher.start();
+    }
+
+    public void destroy() {
+        if (m_publisher != null) {
+            m_publisher.interrupt();
+        }
+    }
+
+    /**
+     * Queues an event for the topic, returns immediately
+     *
+     * @return false if the event is not published: Hazelcast is not enabled or the queue is full
+     */
+    public boolean publish(String topic, Serializable event) {
+        if (m_instance == null) {
+            return false;
+        }
+        if (!m_queue.offer(new QueuedEvent(topic, event))) {
+            m_droppedCount.incrementAndGet();
+            LOG.warn(String.format("HzEventPublisher: %d events waiting, %s event dropped", m_queue.size(), topic));
+            return false;
+        }
+        return true;
+    }
+
+    private void publishEvents() {
+        Map<String, ITopic<Object>> topics = new HashMap<String, ITopic<Object>>();
+        List<QueuedEvent> batch = new ArrayList<QueuedEvent>(m_batchSize);
+        for (;;) {
+            try {
+                batch.add(m_queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            m_queue.drainTo(batch, m_batchSize - 1);
+            for (QueuedEvent queued : batch) {
+                try {
+                    ITopic<Object> topic = topics.get(queued.m_topic);
+                    if (topic == null) {
+                        topic = m_instance.getTopic(queued.m_topic);
+                        topics.put(queued.m_topic, topic);
+                    }
+                    topic.publish(queued.m_event);
+                    m_publishTime.addAndGet(System.currentTimeMillis() - queued.m_queued);
+                    m_publishedCount.incrementAndGet();
+                } catch (RuntimeException e) {
+                    m_failedCount.incrementAndGet();
+                    LOG.error("HzEventPublisher: cannot publish " + queued.m_topic + " event", e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    public int getQueueDepth() {
+        return m_queue != null ? m_queue.size() : 0;
+    }
+
+    public long getPublishedCount() {
+        return m_publishedCount.get();
+    }
+
+    /**
+     * Average time from queuing an event to its publication, in milliseconds
+     */
+    public long getAverageLatency() {
+        long count = m_publishedCount.get();
+        return count == 0 ? 0 : m_publishTime.get() / count;
+    }
+
+    /**
+     * Events dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return m_droppedCount.get();
+    }
+
+    public long getFailedCount() {
+        return m_failedCount.get();
+    }
+
+    /**
+     * @param queueSize events waiting to be published before new events are dropped
+     */
+    public void setQueueSize(int queueSize) {
+        m_queueSize = queueSize;
+    }
+
+    /**
+     * @param batchSize events taken from the queue at once
+     */
+    public void setBatchSize(int batchSize) {
+        m_batchSize = batchSize;
+    }
+
+    public void setHzStarter(HazelcastStarter hzStarter) {
+        m_hzStarter = hzStarter;
+    }
+
+    private static class QueuedEvent {
+        private final String m_topic;
+        private final Serializable m_event;
+        private final long m_queued = System.currentTimeMillis();
+
+        QueuedEvent(String topic, Serializable event) {
+            m_topic = topic;
+            m_event = event;
+        }
+    }
+}
@@ -17,20 +17,31 @@ import org.sipfoundry.commons.freeswitch.Answer;
 import org.sipfoundry.commons.freeswitch.DisconnectException;
 import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocketInterface;
 import org.sipfoundry.commons.freeswitch.Hangup;
+import org.sipfoundry.commons.freeswitch.Play;
 import org.sipfoundry.commons.freeswitch.Set;
-import org.sipfoundry.sipxivr.eslrequest.EslRequestScopeRunnable;
+import org.sipfoundry.commons.freeswitch.Transfer;
 import org.sipfoundry.sipxivr.eslrequest.EslRequestApp;
-import org.springframework.context.ApplicationContext;
-import org.springframework.context.ApplicationContextAware;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestDispatcher;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestScopeRunnable;
 
-public abstract class SipXivr extends EslRequestScopeRunnable implements ApplicationContextAware {
+public class SipXivr extends EslRequestScopeRunnable {
     static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
+    private static final String BRIDGE = "bridge";
     private Socket m_clientSocket;
-    private ApplicationContext m_context;
+    private EslRequestDispatcher m_dispatcher;
+    private AdmissionController m_admissionController;
+
+    protected FreeSwitchEventSocketInterface getFsEventSocket() {
+        return m_dispatcher.createEventSocket();
+    }
 
-    protected abstract FreeSwitchEventSocketInterface getFsEventSocket();
+    protected EslRequestApp getBridgeApp(FreeSwitchEventSocketInterface fses) {
+        return m_dispatcher.createApp(BRIDGE, fses);
+    }
 
-    protected abstract EslRequestApp getBridgeApp();
+    protected EslRequestApp getApp(String action, FreeSwitchEventSocketInterface fses) {
+        return m_dispatcher.createApp(action, fses);
+    }
 
     /**
      * Determine what to do based on the SIP request.
@@ -52,25 +63,24 @@ public abstract class SipXivr extends EslRequestScopeRunnable implements Applica
                 String action = parameters.get("action");
                 String uuid = parameters.get("uuid");
                 if (uuid != null) {
-
-                    fses.invoke(new Answer(fses));
-
-                    // identify and run proper app to handle action
-                    if (action != null) {
-                        EslRequestApp sipXivrApp = m_context.getBean(action, EslRequestApp.class);
-                        sipXivrApp.run(parameters);
+                    if (action == null || m_admissionController == null) {
+                        runApp(fses, action, parameters);
+                    } else if (m_admissionController.admit(action)) {
+                        try {
+                            runApp(fses, action, parameters);
+                        } finally {
+                            m_admissionController.release(action);
+                        }
                     } else {
-                        LOG.warn("Cannot determine which application to run as the action parameter is missing.");
+                        shedCall(fses, uuid);
                     }
-
-                    fses.invoke(new Hangup(fses));
                 } else {
                     LOG.info("SipXivr::run Bridging the call");
                     // setting proxy media for fax application
                     if (action.equals("faxrx")) {
                         new Set(fses, "proxy_media", "true").go();
                     }
-                    getBridgeApp().run(parameters);
+                    getBridgeApp(fses).run(parameters);
                 }
             }
         } catch (DisconnectException e) {
@@ -88,6 +98,41 @@ public abstract class SipXivr extends EslRequestScopeRunnable implements Applica
         LOG.debug("SipXivr::run Ending SipXivr thread with client " + m_clientSocket);
     }
 
+    private void runApp(FreeSwitchEventSocketInterface fses, String action, Hashtable<String, String> parameters) {
+        fses.invoke(new Answer(fses));
+
+        // identify and run proper app to handle action
+        if (action != null) {
+            EslRequestApp sipXivrApp = getApp(action, fses);
+            if (sipXivrApp != null) {
+                sipXivrApp.run(parameters);
+            } else {
+                LOG.warn("No application handles action " + action);
+            }
+        } else {
+            LOG.warn("Cannot determine which application to run as the action parameter is missing.");
+        }
+
+        fses.invoke(new Hangup(fses));
+    }
+
+    /**
+     * Overflow address first, then busy prompt, otherwise the call is just hung up
+     */
+    private void shedCall(FreeSwitchEventSocketInterface fses, String uuid) {
+        String overflowAddress = m_admissionController.getOverflowAddress();
+        String busyPrompt = m_admissionController.getBusyPrompt();
+        if (overflowAddress != null) {
+            new Transfer(fses, uuid, overflowAddress, false).go();
+        } else if (busyPrompt != null) {
+            fses.invoke(new Answer(fses));
+            new Play(fses, busyPrompt).go();
+            fses.invoke(new Hangup(fses));
+        } else {
+            fses.invoke(new Hangup(fses));
+        }
+    }
+
     private Hashtable<String, String> extractCallParameters(FreeSwitchEventSocketInterface fses) {
         String sipReqParams = fses.getVariable("variable_sip_req_params");
         // Create a table of parameters to pass in
@@ -113,8 +158,11 @@ public abstract class SipXivr extends EslRequestScopeRunnable implements Applica
         m_clientSocket = client;
     }
 
-    @Override
-    public void setApplicationContext(ApplicationContext context) {
-        m_context = context;
+    public void setAdmissionController(AdmissionController admissionController) {
+        m_admissionController = admissionController;
+    }
+
+    public void setDispatcher(EslRequestDispatcher dispatcher) {
+        m_dispatcher = dispatcher;
     }
 }
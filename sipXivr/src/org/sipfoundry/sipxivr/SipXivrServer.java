@@ -19,6 +19,15 @@ package org.sipfoundry.sipxivr;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
@@ -28,21 +37,37 @@ import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 
+/**
+ * Accepts the event socket connections opened by FreeSWITCH, one per call, and runs each call on
+ * a pool of call threads.
+ *
+ * With maxCalls set, at most maxCalls calls run at once and up to callQueueSize more wait for a
+ * thread. When the queue is full the accept loop waits too: new connections stay in the accept
+ * backlog of the socket and FreeSWITCH sees the IVR slow down instead of the JVM running out of
+ * threads. With maxCalls set to 0 every call gets a thread, as before; idle threads are reused.
+ * The call counts are exported over JMX as sipxivr:name=server.
+ */
 public abstract class SipXivrServer {
     static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
     private int m_eventSocketPort;
+    private int m_maxCalls = 500;
+    private int m_callQueueSize = 50;
+    private int m_acceptBacklog = 50;
+    private long m_callStackSize;
+    private ThreadPoolExecutor m_executor;
+    private final AtomicLong m_acceptWaitCount = new AtomicLong();
 
     protected abstract SipXivr getSipxIvrHandler();
 
     public void runServer() {
         try {
-            ServerSocket serverSocket = new ServerSocket(m_eventSocketPort);
+            ServerSocket serverSocket = new ServerSocket(m_eventSocketPort, m_acceptBacklog);
+            m_executor = createExecutor();
             for (;;) {
                 Socket client = serverSocket.accept();
                 SipXivr sipxIvr = getSipxIvrHandler();
                 sipxIvr.setClient(client);
-                Thread thread = new Thread(sipxIvr);
-                thread.start();
+                m_executor.execute(sipxIvr);
             }
         } catch (IOException ex) {
             System.out.println("FAILED TO START IVR SERVER" + ex);
@@ -51,10 +76,95 @@ public abstract class SipXivrServer {
         }
     }
 
+    private ThreadPoolExecutor createExecutor() {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger m_count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                // a stack size of 0 is the JVM default
+                return new Thread(null, runnable, "sipxivr-call-" + m_count.incrementAndGet(), m_callStackSize);
+            }
+        };
+        if (m_maxCalls <= 0) {
+            return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), threadFactory);
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(m_maxCalls, m_maxCalls, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(Math.max(1, m_callQueueSize)), threadFactory,
+                new WaitForCapacityPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Calls being handled
+     */
+    public int getActiveCalls() {
+        return m_executor != null ? m_executor.getActiveCount() : 0;
+    }
+
+    /**
+     * Calls accepted and waiting for a call thread
+     */
+    public int getQueuedCalls() {
+        return m_executor != null ? m_executor.getQueue().size() : 0;
+    }
+
+    /**
+     * Number of times the accept loop waited because the call queue was full
+     */
+    public long getAcceptWaitCount() {
+        return m_acceptWaitCount.get();
+    }
+
     public void setEventSocketPort(int port) {
         m_eventSocketPort = port;
     }
 
+    /**
+     * @param maxCalls calls handled at once, 0 for no limit
+     */
+    public void setMaxCalls(int maxCalls) {
+        m_maxCalls = maxCalls;
+    }
+
+    /**
+     * @param callQueueSize accepted calls waiting for a call thread when maxCalls are handled
+     */
+    public void setCallQueueSize(int callQueueSize) {
+        m_callQueueSize = callQueueSize;
+    }
+
+    /**
+     * @param acceptBacklog connections not yet accepted kept by the system
+     */
+    public void setAcceptBacklog(int acceptBacklog) {
+        m_acceptBacklog = acceptBacklog;
+    }
+
+    /**
+     * @param callStackSize stack size of the call threads in bytes, 0 for the JVM default
+     */
+    public void setCallStackSize(long callStackSize) {
+        m_callStackSize = callStackSize;
+    }
+
+    private class WaitForCapacityPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            m_acceptWaitCount.incrementAndGet();
+            LOG.warn(String.format("SipXivrServer: %d calls active and %d queued, waiting before accepting more",
+                    executor.getActiveCount(), executor.getQueue().size()));
+            BlockingQueue<Runnable> queue = executor.getQueue();
+            try {
+                queue.put(runnable);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     /**
      * Main entry point for sipXivr
      * 
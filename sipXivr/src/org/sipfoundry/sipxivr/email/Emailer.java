@@ -11,9 +11,17 @@ package org.sipfoundry.sipxivr.email;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.activation.DataSource;
 import javax.activation.FileDataSource;
@@ -24,6 +32,7 @@ import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.sipfoundry.commons.userdb.User;
 import org.sipfoundry.commons.userdb.User.EmailFormats;
@@ -34,15 +43,33 @@ import org.springframework.context.ApplicationContextAware;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.mail.javamail.MimeMessageHelper;
 
+/**
+ * Sends voicemail notification e-mails in the background.
+ *
+ * E-mails are sent by a fixed pool of workers from a bounded queue where urgent messages go
+ * first. When the queue is full the e-mail is dropped and counted: the thread queuing it runs a
+ * call and must not wait for the SMTP server. Each worker keeps its SMTP connection open between
+ * messages. The queue and send statistics are exported over JMX as sipxivr:name=emailer.
+ */
 public class Emailer implements ApplicationContextAware {
     private static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
-    private ExecutorService m_es;
+    private ThreadPoolExecutor m_executor;
     private Session m_session;
     private ApplicationContext m_context;
     private String m_audioFormat;
+    private int m_threads = 5;
+    private int m_queueSize = 1000;
+    private final ThreadLocal<Transport> m_transport = new ThreadLocal<Transport>();
+    private final Set<Transport> m_transports = Collections.synchronizedSet(new HashSet<Transport>());
+    private final AtomicLong m_sequence = new AtomicLong();
+    private final AtomicLong m_sentCount = new AtomicLong();
+    private final AtomicLong m_sendTime = new AtomicLong();
+    private final AtomicLong m_failedCount = new AtomicLong();
+    private final AtomicLong m_droppedCount = new AtomicLong();
 
     public void init() {
-        m_es = Executors.newCachedThreadPool();
+        m_executor = new ThreadPoolExecutor(m_threads, m_threads, 0, TimeUnit.SECONDS, new BoundedPriorityQueue(
+                m_queueSize), new DropPolicy());
         // Setup mail server
         Properties props = System.getProperties();
         props.put("mail.smtp.host", "localhost");
@@ -50,6 +77,18 @@ public class Emailer implements ApplicationContextAware {
         m_session = Session.getDefaultInstance(props, null);
     }
 
+    public void destroy() {
+        if (m_executor != null) {
+            m_executor.shutdown();
+        }
+        synchronized (m_transports) {
+            for (Transport transport : m_transports) {
+                closeQuietly(transport);
+            }
+            m_transports.clear();
+        }
+    }
+
     /**
      * Queue up sending the VmMessage as an e-mail to the addresses specified in the mailbox
      *
@@ -72,15 +111,27 @@ public class Emailer implements ApplicationContextAware {
     /**
      * The Runnable class that builds and sends the e-mail
      */
-    class BackgroundMailer implements Runnable {
+    class BackgroundMailer implements Runnable, Comparable<BackgroundMailer> {
         VmMessage m_vmessage;
         User m_user;
+        long m_sequence;
 
         BackgroundMailer(User destUser, VmMessage vmessage) {
             m_vmessage = vmessage;
             m_user = destUser;
         }
 
+        /**
+         * Urgent messages first, then in the order they were queued
+         */
+        @Override
+        public int compareTo(BackgroundMailer other) {
+            if (m_vmessage.isUrgent() != other.m_vmessage.isUrgent()) {
+                return m_vmessage.isUrgent() ? -1 : 1;
+            }
+            return m_sequence < other.m_sequence ? -1 : m_sequence == other.m_sequence ? 0 : 1;
+        }
+
         /**
          * Build up the MIME multipart formatted e-mail
          *
@@ -89,8 +140,8 @@ public class Emailer implements ApplicationContextAware {
          * @throws AddressException
          * @throws MessagingException
          */
-        javax.mail.Message buildMessage(EmailFormatter emf, boolean attachAudio) throws AddressException,
-                MessagingException, IOException {
+        javax.mail.Message buildMessage(EmailFormats fmt, EmailFormatter emf, boolean attachAudio)
+            throws AddressException, MessagingException, IOException {
             MimeMessage message = new MimeMessage(m_session);
             message.setFrom(new InternetAddress(emf.getSender()));
 
@@ -118,7 +169,7 @@ public class Emailer implements ApplicationContextAware {
                     // Add the HTML part of the message
                     helper.setText(htmlBody, true);
 
-                    if (m_user.getEmailFormat().equals(EmailFormats.FORMAT_FULL)) {
+                    if (fmt.equals(EmailFormats.FORMAT_FULL)) {
                         // Add the IMAGEs part of the message
                         insertMimeImage("images/play_50x50.png", "imageListen", helper);
                         insertMimeImage("images/inbox_50x50.png", "imageInbox", helper);
@@ -169,7 +220,8 @@ public class Emailer implements ApplicationContextAware {
         }
 
         /**
-         * Build and send the message as e-mails to the recipients
+         * Build and send the message as e-mails to the recipients. The message is built once if
+         * the main and alternate addresses get the same format, and sent to each of them.
          */
         @Override
         public void run() {
@@ -179,42 +231,106 @@ public class Emailer implements ApplicationContextAware {
             LOG.debug("Emailer::run started");
 
             EmailFormats fmt = m_user.getEmailFormat();
+            boolean attachAudio = m_user.isAttachAudioToEmail();
+            EmailFormats altFmt = m_user.getAltEmailFormat();
+            boolean altAttachAudio = m_user.isAltAttachAudioToEmail();
+            List<String> recipients = new ArrayList<String>();
             // Send to the main e-mail address
             if (fmt != EmailFormats.FORMAT_NONE) {
-                try {
-                    boolean attachAudio = m_user.isAttachAudioToEmail();
-                    LOG.info(String.format("Emailer::run sending message %s as %s email to %s %s audio",
-                            m_vmessage.getMessageId(), fmt.toString(), to, attachAudio ? "with" : "without"));
-                    EmailFormatter emf = getEmailFormatter(fmt, m_user, m_vmessage);
-                    javax.mail.Message message = buildMessage(emf, attachAudio);
-                    message.addRecipient(MimeMessage.RecipientType.TO, new InternetAddress(to));
-                    Transport.send(message);
-                } catch (Exception e) {
-                    LOG.error("Emailer::run problem sending email.", e);
+                recipients.add(to);
+                if (altFmt == fmt && altAttachAudio == attachAudio && StringUtils.isNotBlank(alt)) {
+                    recipients.add(alt);
+                    altFmt = EmailFormats.FORMAT_NONE;
                 }
+                send(fmt, attachAudio, recipients);
             }
 
             // Send to the alternate e-mail address
-            // (this could be a bit better: if both main and alternative have the same value for
-            // fmt and isAttachVoicemailxxx, one could create the message once and send it with
-            // two recipients)
-            fmt = m_user.getAltEmailFormat();
-            if (fmt != EmailFormats.FORMAT_NONE) {
+            if (altFmt != EmailFormats.FORMAT_NONE) {
+                recipients.clear();
+                recipients.add(alt);
+                send(altFmt, altAttachAudio, recipients);
+            }
+            m_vmessage.cleanup();
+            LOG.debug("Emailer::run finished");
+        }
+
+        private void send(EmailFormats fmt, boolean attachAudio, List<String> recipients) {
+            javax.mail.Message message;
+            try {
+                LOG.info(String.format("Emailer::run sending message %s as %s email to %s %s audio",
+                        m_vmessage.getMessageId(), fmt.toString(), recipients, attachAudio ? "with" : "without"));
+                EmailFormatter emf = getEmailFormatter(fmt, m_user, m_vmessage);
+                message = buildMessage(fmt, emf, attachAudio);
+            } catch (Exception e) {
+                m_failedCount.addAndGet(recipients.size());
+                LOG.error("Emailer::run problem building email to " + recipients, e);
+                return;
+            }
+            // one e-mail per recipient, none sees the address of the other
+            for (String recipient : recipients) {
                 try {
-                    boolean attachAudio = m_user.isAltAttachAudioToEmail();
-                    LOG.info(String.format("Emailer::run sending message %s as %s email to %s %s audio",
-                            m_vmessage.getMessageId(), fmt.toString(), alt, attachAudio ? "with" : "without"));
-                    EmailFormatter emf = getEmailFormatter(fmt, m_user, m_vmessage);
-                    javax.mail.Message message = buildMessage(emf, attachAudio);
-
-                    message.addRecipient(MimeMessage.RecipientType.TO, new InternetAddress(alt));
-                    Transport.send(message);
+                    message.setRecipient(MimeMessage.RecipientType.TO, new InternetAddress(recipient));
+                    long start = System.currentTimeMillis();
+                    sendMessage(message);
+                    m_sendTime.addAndGet(System.currentTimeMillis() - start);
+                    m_sentCount.incrementAndGet();
                 } catch (Exception e) {
-                    LOG.error("Emailer::run problem sending alternate email.", e);
+                    m_failedCount.incrementAndGet();
+                    LOG.error("Emailer::run problem sending email to " + recipient, e);
                 }
             }
-            m_vmessage.cleanup();
-            LOG.debug("Emailer::run finished");
+        }
+    }
+
+    /**
+     * Sends over the SMTP connection kept by the current thread, reconnecting once if the server
+     * closed it since the last message.
+     */
+    private void sendMessage(javax.mail.Message message) throws MessagingException {
+        message.saveChanges();
+        Transport transport = getTransport();
+        try {
+            transport.sendMessage(message, message.getAllRecipients());
+        } catch (MessagingException e) {
+            if (transport.isConnected()) {
+                // connection is fine, the message was refused
+                throw e;
+            }
+            LOG.debug("Emailer::sendMessage SMTP connection lost, reconnecting");
+            releaseTransport(transport);
+            transport = getTransport();
+            transport.sendMessage(message, message.getAllRecipients());
+        }
+    }
+
+    private Transport getTransport() throws MessagingException {
+        Transport transport = m_transport.get();
+        // isConnected checks the SMTP connection is still alive
+        if (transport != null && !transport.isConnected()) {
+            releaseTransport(transport);
+            transport = null;
+        }
+        if (transport == null) {
+            transport = m_session.getTransport("smtp");
+            transport.connect();
+            m_transport.set(transport);
+            m_transports.add(transport);
+        }
+        return transport;
+    }
+
+    private void releaseTransport(Transport transport) {
+        m_transport.remove();
+        m_transports.remove(transport);
+        closeQuietly(transport);
+    }
+
+    private static void closeQuietly(Transport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            LOG.debug("Emailer::closeQuietly " + e.getMessage());
         }
     }
 
@@ -233,7 +349,36 @@ public class Emailer implements ApplicationContextAware {
     }
 
     public void submit(BackgroundMailer bm) {
-        m_es.submit(bm);
+        bm.m_sequence = m_sequence.incrementAndGet();
+        // execute, not submit: the queue orders BackgroundMailers, not futures
+        m_executor.execute(bm);
+    }
+
+    public int getQueueDepth() {
+        return m_executor.getQueue().size();
+    }
+
+    /**
+     * Average time to hand a message to the SMTP server, in milliseconds
+     */
+    public long getAverageSendTime() {
+        long count = m_sentCount.get();
+        return count == 0 ? 0 : m_sendTime.get() / count;
+    }
+
+    public long getSentCount() {
+        return m_sentCount.get();
+    }
+
+    public long getFailedCount() {
+        return m_failedCount.get();
+    }
+
+    /**
+     * Number of e-mails dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return m_droppedCount.get();
     }
 
     @Override
@@ -244,4 +389,47 @@ public class Emailer implements ApplicationContextAware {
     public void setAudioFormat(String format) {
         m_audioFormat = format;
     }
-}
\ No newline at end of file
+
+    public void setThreads(int threads) {
+        m_threads = threads;
+    }
+
+    public void setQueueSize(int queueSize) {
+        m_queueSize = queueSize;
+    }
+
+    /**
+     * Priority queue refusing new e-mails once it holds queueSize of them
+     */
+    private static class BoundedPriorityQueue extends PriorityBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+        private final int m_capacity;
+
+        BoundedPriorityQueue(int capacity) {
+            m_capacity = capacity;
+        }
+
+        @Override
+        public synchronized boolean offer(Runnable runnable) {
+            if (size() >= m_capacity) {
+                return false;
+            }
+            return super.offer(runnable);
+        }
+    }
+
+    private class DropPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            BackgroundMailer mailer = (BackgroundMailer) runnable;
+            if (executor.isShutdown()) {
+                LOG.error("Emailer::submit e-mail dropped, emailer is stopped");
+            } else {
+                m_droppedCount.incrementAndGet();
+                LOG.error(String.format("Emailer::submit e-mail queue is full, message %s for %s dropped",
+                        mailer.m_vmessage.getMessageId(), mailer.m_user.getIdentity()));
+            }
+            mailer.m_vmessage.cleanup();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ *
+ *
+ * Copyright (c) 2013 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.sipxivr.eslrequest;
+
+import org.sipfoundry.commons.freeswitch.FreeSwitchConfigurationInterface;
+import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocketInterface;
+
+/**
+ * Application factory configured once at startup. Applications and controllers are built with
+ * their constructors and setters, without going through the Spring context.
+ */
+public abstract class AbstractEslRequestAppFactory implements EslRequestAppFactory {
+    private FreeSwitchConfigurationInterface m_fsConfig;
+    private String m_sipxchangeDomainName;
+    private boolean m_bridgedTransfer;
+
+    protected <T extends AbstractEslRequestController> T initController(T controller,
+            FreeSwitchEventSocketInterface fses) {
+        controller.setFsConfig(m_fsConfig);
+        controller.setFsEventSocket(fses);
+        controller.setSipxchangeDomainName(m_sipxchangeDomainName);
+        controller.setBridgedTransfer(m_bridgedTransfer);
+        return controller;
+    }
+
+    public void setFsConfig(FreeSwitchConfigurationInterface config) {
+        m_fsConfig = config;
+    }
+
+    public void setSipxchangeDomainName(String domainName) {
+        m_sipxchangeDomainName = domainName;
+    }
+
+    public void setBridgedTransfer(boolean bridge) {
+        m_bridgedTransfer = bridge;
+    }
+}
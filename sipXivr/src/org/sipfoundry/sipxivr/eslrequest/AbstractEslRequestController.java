@@ -19,6 +19,8 @@ package org.sipfoundry.sipxivr.eslrequest;
 import java.util.Hashtable;
 import java.util.Locale;
 import java.util.MissingResourceException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.sipfoundry.commons.freeswitch.Collect;
 import org.sipfoundry.commons.freeswitch.DisconnectException;
@@ -32,6 +34,9 @@ import org.sipfoundry.commons.freeswitch.Sleep;
 import org.sipfoundry.commons.freeswitch.Transfer;
 
 public abstract class AbstractEslRequestController implements EslRequestController {
+    private static final long MISSING_RESOURCE_RETRY = 300000;
+    // resource bundles not found, by name and locale, with the time they were looked up
+    private static final ConcurrentMap<String, Long> MISSING_RESOURCES = new ConcurrentHashMap<String, Long>();
     private FreeSwitchConfigurationInterface m_fsConfig;
     private FreeSwitchEventSocketInterface m_fses;
     private Localization m_localization;
@@ -51,10 +56,24 @@ public abstract class AbstractEslRequestController implements EslRequestControll
         loadConfig();
     }
 
+    /**
+     * Uses the alternate resource when the first one is missing. A missing resource is not looked
+     * up again for the same locale for a while, failed lookups search every candidate bundle.
+     */
     public void initLocalization(String resourceName, String alternate) {
+        String key = resourceName + '_' + m_localeString;
+        Long missing = MISSING_RESOURCES.get(key);
+        if (alternate != null && missing != null && System.currentTimeMillis() - missing < MISSING_RESOURCE_RETRY) {
+            m_localization = new Localization(alternate, m_localeString, m_fsConfig, m_fses);
+            return;
+        }
         try {
             m_localization = new Localization(resourceName, m_localeString, m_fsConfig, m_fses);
+            if (missing != null) {
+                MISSING_RESOURCES.remove(key);
+            }
         } catch (MissingResourceException e) {
+            MISSING_RESOURCES.put(key, System.currentTimeMillis());
             if (alternate != null) {
                 m_localization = new Localization(alternate, m_localeString, m_fsConfig, m_fses);
             }
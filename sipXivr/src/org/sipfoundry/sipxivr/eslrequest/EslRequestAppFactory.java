@@ -0,0 +1,27 @@
+/**
+ *
+ *
+ * Copyright (c) 2013 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.sipxivr.eslrequest;
+
+import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocketInterface;
+
+/**
+ * Creates the application that handles a call, with its controller, bound to the event socket of
+ * the call
+ */
+public interface EslRequestAppFactory {
+    EslRequestApp createApp(FreeSwitchEventSocketInterface fses);
+}
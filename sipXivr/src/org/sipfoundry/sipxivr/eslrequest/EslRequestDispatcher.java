@@ -0,0 +1,102 @@
+/**
+ *
+ *
+ * Copyright (c) 2013 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.sipxivr.eslrequest;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.sipfoundry.commons.freeswitch.FreeSwitchConfigurationInterface;
+import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocket;
+import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocketInterface;
+import org.springframework.beans.BeansException;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+
+/**
+ * Table of the applications that handle a call, by action name, built once at startup.
+ *
+ * An action is the name or an alias of an EslRequestAppFactory bean: every call gets its own
+ * application, built by the factory of its action without going through the context. EslRequestApp
+ * beans, as defined by plugins, are still eslRequest scoped beans looked up on every call; they
+ * share the event socket of the call under the name fsEventSocket.
+ */
+public class EslRequestDispatcher implements ApplicationContextAware {
+    private static final String EVENT_SOCKET = "fsEventSocket";
+    private ApplicationContext m_context;
+    private FreeSwitchConfigurationInterface m_fsConfig;
+    private Map<String, EslRequestAppFactory> m_factories = Collections.emptyMap();
+
+    public void init() {
+        Map<String, EslRequestAppFactory> factories = new HashMap<String, EslRequestAppFactory>();
+        for (String name : m_context.getBeanNamesForType(EslRequestApp.class, true, false)) {
+            put(factories, name, new BeanFactory(name));
+        }
+        for (Map.Entry<String, EslRequestAppFactory> entry : m_context.getBeansOfType(
+                EslRequestAppFactory.class).entrySet()) {
+            put(factories, entry.getKey(), entry.getValue());
+        }
+        m_factories = factories;
+    }
+
+    private void put(Map<String, EslRequestAppFactory> factories, String name, EslRequestAppFactory factory) {
+        factories.put(name, factory);
+        for (String alias : m_context.getAliases(name)) {
+            factories.put(alias, factory);
+        }
+    }
+
+    /**
+     * @return a new application for this action on the call of this event socket, null if no
+     *         application handles it
+     */
+    public EslRequestApp createApp(String action, FreeSwitchEventSocketInterface fses) {
+        EslRequestAppFactory factory = m_factories.get(action);
+        return factory != null ? factory.createApp(fses) : null;
+    }
+
+    /**
+     * @return the event socket of a new call, also the fsEventSocket bean of its eslRequest scope
+     */
+    public FreeSwitchEventSocketInterface createEventSocket() {
+        FreeSwitchEventSocketInterface fses = new FreeSwitchEventSocket(m_fsConfig);
+        EslRequestScopeContextHolder.currentEslRequestScopeAttributes().getBeanMap().put(EVENT_SOCKET, fses);
+        return fses;
+    }
+
+    @Override
+    public void setApplicationContext(ApplicationContext context) throws BeansException {
+        m_context = context;
+    }
+
+    public void setFsConfig(FreeSwitchConfigurationInterface config) {
+        m_fsConfig = config;
+    }
+
+    private class BeanFactory implements EslRequestAppFactory {
+        private final String m_name;
+
+        BeanFactory(String name) {
+            m_name = name;
+        }
+
+        @Override
+        public EslRequestApp createApp(FreeSwitchEventSocketInterface fses) {
+            return m_context.getBean(m_name, EslRequestApp.class);
+        }
+    }
+}
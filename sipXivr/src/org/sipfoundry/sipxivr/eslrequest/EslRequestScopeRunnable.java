@@ -20,10 +20,14 @@ package org.sipfoundry.sipxivr.eslrequest;
 public abstract class EslRequestScopeRunnable implements Runnable {
 
     public final void run() {
+        // pooled threads run many requests, each request starts with its own scope; threads it
+        // starts inherit it
+        EslRequestScopeContextHolder.setEslRequestScopeAttributes(new EslRequestScopeAttributes());
         try {
             runEslRequest();
         } finally {
             EslRequestScopeContextHolder.currentEslRequestScopeAttributes().clear();
+            EslRequestScopeContextHolder.removeEslRequestScopeAttributes();
         }
     }
 
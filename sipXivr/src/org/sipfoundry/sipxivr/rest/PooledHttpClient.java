@@ -0,0 +1,177 @@
+/**
+ *
+ *
+ * Copyright (c) 2013 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.sipxivr.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * HTTP client shared by the MWI notifications and the sipXconfig REST calls.
+ *
+ * Connections are pooled per host by the JDK (HttpURLConnection keep-alive cache); a connection
+ * goes back to the pool only if the response is read completely and the connection is not
+ * disconnected, which is what this client guarantees. Broken connections are disconnected so they
+ * are never reused. HttpURLConnection does not pipeline requests, concurrent requests to the same
+ * host use different pooled connections.
+ */
+public class PooledHttpClient {
+    private static final PooledHttpClient DEFAULT = new PooledHttpClient();
+    private static final String UTF_8 = "UTF-8";
+
+    private int m_connectTimeout = 5000;
+    private int m_readTimeout = 10000;
+    private int m_maxConnectionsPerHost = 5;
+
+    /**
+     * Client with default settings, for code not wired by Spring
+     */
+    public static PooledHttpClient getDefault() {
+        return DEFAULT;
+    }
+
+    public void init() {
+        // read by the JDK keep-alive cache, has to be set before the first request
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(m_maxConnectionsPerHost));
+        }
+    }
+
+    public Response execute(String method, String url, String authorization, String contentType, String content)
+        throws IOException {
+        return execute(method, url, authorization, contentType, content, m_connectTimeout, m_readTimeout);
+    }
+
+    /**
+     * @param content request body, for PUT and POST an empty body is sent if null
+     * @param connectTimeout milliseconds
+     * @param readTimeout milliseconds
+     */
+    public Response execute(String method, String url, String authorization, String contentType, String content,
+            int connectTimeout, int readTimeout) throws IOException {
+        HttpURLConnection connection = openConnection(new URL(url), connectTimeout, readTimeout);
+        try {
+            connection.setRequestMethod(method);
+            if (authorization != null) {
+                connection.setRequestProperty("Authorization", authorization);
+            }
+            if (content != null || method.equals("PUT") || method.equals("POST")) {
+                byte[] body = content != null ? content.getBytes(UTF_8) : new byte[0];
+                if (contentType != null) {
+                    connection.setRequestProperty("Content-Type", contentType);
+                }
+                // not streamed: a buffered body lets the JDK retry once on a stale pooled connection
+                connection.setDoOutput(true);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+            int code = connection.getResponseCode();
+            // the body must be consumed for the connection to be reused
+            InputStream in = code >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection
+                    .getInputStream();
+            String responseContent = null;
+            if (in != null) {
+                try {
+                    responseContent = IOUtils.toString(in, UTF_8);
+                } finally {
+                    in.close();
+                }
+            }
+            return new Response(code, connection.getResponseMessage(), connection.getContentType(),
+                    responseContent);
+        } catch (IOException ex) {
+            connection.disconnect();
+            throw ex;
+        }
+    }
+
+    public HttpURLConnection openConnection(URL url) throws IOException {
+        return openConnection(url, m_connectTimeout, m_readTimeout);
+    }
+
+    private HttpURLConnection openConnection(URL url, int connectTimeout, int readTimeout) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    /**
+     * @param connectTimeout milliseconds
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        m_connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @param readTimeout milliseconds
+     */
+    public void setReadTimeout(int readTimeout) {
+        m_readTimeout = readTimeout;
+    }
+
+    /**
+     * @param maxConnectionsPerHost idle connections kept alive per host
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        m_maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public static class Response {
+        private final int m_code;
+        private final String m_message;
+        private final String m_contentType;
+        private final String m_content;
+
+        Response(int code, String message, String contentType, String content) {
+            m_code = code;
+            m_message = message;
+            m_contentType = contentType;
+            m_content = content;
+        }
+
+        public boolean isSuccess() {
+            // Responses 200-299 are Okay, all other are suspect
+            return m_code >= 200 && m_code < 300;
+        }
+
+        public int getCode() {
+            return m_code;
+        }
+
+        public String getMessage() {
+            return m_message;
+        }
+
+        public String getContentType() {
+            return m_contentType;
+        }
+
+        public String getContent() {
+            return m_content;
+        }
+    }
+}
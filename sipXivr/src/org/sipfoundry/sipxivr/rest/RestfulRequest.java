@@ -8,8 +8,6 @@
  */
 package org.sipfoundry.sipxivr.rest;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
@@ -29,12 +27,18 @@ public class RestfulRequest {
     String m_response;
     int m_responseCode;
     Exception m_exception;
+    PooledHttpClient m_client;
 
     public RestfulRequest(String urlString) {
-        m_urlString = urlString;
+        this(PooledHttpClient.getDefault(), urlString, null, null);
     }
 
     public RestfulRequest(String urlString, String user, String password) {
+        this(PooledHttpClient.getDefault(), urlString, user, password);
+    }
+
+    public RestfulRequest(PooledHttpClient client, String urlString, String user, String password) {
+        m_client = client;
         m_urlString = urlString;
         if (user != null && password != null) {
             m_digest = "Basic " + new String(Base64.encodeBase64((user+":"+password).getBytes()));
@@ -48,18 +52,10 @@ public class RestfulRequest {
      * @throws Exception
      */
     public HttpURLConnection getConnection(String value) throws Exception {
-        String urlString = m_urlString;
-        if (value != null) {
-            if (!urlString.endsWith("/")) {
-                urlString += "/";
-            }
-            urlString += value;
-        }
-
-        URL url = new URL(urlString);
+        URL url = new URL(getUrl(value));
 
         // URL connection channel.
-        HttpURLConnection urlConn = (HttpURLConnection) url.openConnection();
+        HttpURLConnection urlConn = m_client.openConnection(url);
 
         // Set the Authorization header to the encoded user/passcode
         // combination
@@ -134,20 +130,40 @@ public class RestfulRequest {
      * @throws Exception 
      */
     boolean send(String method, String value) throws Exception{
-        HttpURLConnection urlConn = getConnection(value);
-        boolean result = request(method, urlConn);
-        if (urlConn.getContentLength() > 0) {
-            m_contentType = urlConn.getContentType();
-            BufferedReader br = new BufferedReader(new InputStreamReader(urlConn.getInputStream()));
-            String line ;
-            m_content = "";
-            for(line = br.readLine(); line != null;) {
-                m_content.concat(line);
-                m_content.concat("\n");
+        if (m_justTesting) {
+            // Don't do anything if we are just in a test situation
+            m_content = m_testingResult;
+            return true;
+        }
+
+        try {
+            // the connection stays open for reuse by the next request to the same host
+            PooledHttpClient.Response response = m_client.execute(method, getUrl(value), m_digest, null, null);
+            m_responseCode = response.getCode();
+            m_response = response.getMessage();
+            m_contentType = response.getContentType();
+            m_content = response.getContent();
+
+            LOG.info(String.format("RestfulRequest::request %s to %s response: %d", method, m_urlString,
+                    m_responseCode));
+
+            return response.isSuccess();
+        } catch (Exception ex) {
+            m_exception = ex;
+            LOG.error(String.format("RestfulRequest::request %s to '%s' trouble", method, m_urlString), ex);
+        }
+        return false;
+    }
+
+    private String getUrl(String value) {
+        String urlString = m_urlString;
+        if (value != null) {
+            if (!urlString.endsWith("/")) {
+                urlString += "/";
             }
+            urlString += value;
         }
-        urlConn.disconnect();
-        return result;
+        return urlString;
     }
     
 
@@ -16,12 +16,11 @@
  */
 package org.sipfoundry.sipxivr.rest;
 
-import java.util.Map;
-
 import org.mortbay.jetty.servlet.ServletHandler;
 import org.sipfoundry.commons.freeswitch.FreeSwitchConfigurationInterface;
 import org.sipfoundry.commons.userdb.ValidUsers;
 import org.sipfoundry.sipxivr.SipxIvrConfiguration;
+import org.sipfoundry.voicemail.DepositRegistry;
 import org.sipfoundry.voicemail.Mwi;
 import org.sipfoundry.voicemail.mailbox.MailboxManager;
 
@@ -29,13 +28,13 @@ public class SipxIvrServletHandler extends ServletHandler {
     public final static String IVR_CONFIG_ATTR = "ivrConfig";
     public final static String VALID_USERS_ATTR = "validUsers";
     public final static String FS_CONFIG_ATTR = "fsConfig";
-    public final static String DEPOSIT_MAP_ATTR = "depositMap";
+    public final static String DEPOSIT_REGISTRY_ATTR = "depositRegistry";
     public final static String MAILBOX_MANAGER = "mailboxManager";
     public final static String MWI_MANAGER = "mwiManager";
     private SipxIvrConfiguration m_ivrConfig;
     private ValidUsers m_validUsers;
     private FreeSwitchConfigurationInterface m_fsConfig;
-    private Map<String, String> m_depositMap;
+    private DepositRegistry m_depositRegistry;
     private MailboxManager m_mailboxManager;
     private Mwi m_mwi;
 
@@ -46,7 +45,7 @@ public class SipxIvrServletHandler extends ServletHandler {
         httpRequest.setAttribute(IVR_CONFIG_ATTR, m_ivrConfig);
         httpRequest.setAttribute(VALID_USERS_ATTR, m_validUsers);
         httpRequest.setAttribute(FS_CONFIG_ATTR, m_fsConfig);
-        httpRequest.setAttribute(DEPOSIT_MAP_ATTR, m_depositMap);
+        httpRequest.setAttribute(DEPOSIT_REGISTRY_ATTR, m_depositRegistry);
         httpRequest.setAttribute(MAILBOX_MANAGER, m_mailboxManager);
         httpRequest.setAttribute(MWI_MANAGER, m_mwi);
         super.handle(pathInContext, pathParams, httpRequest, httpResponse);
@@ -64,8 +63,8 @@ public class SipxIvrServletHandler extends ServletHandler {
         m_fsConfig = fsConfig;
     }
 
-    public void setDepositMap(Map depositMap) {
-        m_depositMap = depositMap;
+    public void setDepositRegistry(DepositRegistry depositRegistry) {
+        m_depositRegistry = depositRegistry;
     }
 
     public void setMailboxManager(MailboxManager mailboxManager) {
@@ -8,18 +8,14 @@
  */
 package org.sipfoundry.voicemail;
 
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
 import org.apache.log4j.Logger;
 import org.sipfoundry.commons.freeswitch.DisconnectException;
 import org.sipfoundry.commons.freeswitch.PromptList;
 import org.sipfoundry.commons.hz.HzConstants;
-import org.sipfoundry.commons.hz.HzPublisherTask;
 import org.sipfoundry.commons.hz.HzVmEvent;
 import org.sipfoundry.commons.userdb.PersonalAttendant;
 import org.sipfoundry.commons.userdb.User;
+import org.sipfoundry.sipxivr.HzEventPublisher;
 import org.sipfoundry.sipxivr.common.DialByNameChoice;
 import org.sipfoundry.sipxivr.common.IvrChoice;
 import org.sipfoundry.sipxivr.common.IvrChoice.IvrChoiceReason;
@@ -31,11 +27,11 @@ import org.springframework.context.ApplicationContextAware;
 public class Deposit extends AbstractVmAction implements ApplicationContextAware {
     static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
     private String m_sendIMUrl;
-    private Map<String, String> m_depositMap;
+    private DepositRegistry m_depositRegistry;
     private ApplicationContext m_appContext;
     private String m_operatorAddr;
     private boolean m_hzEnabled;
-    private ExecutorService m_executorService = Executors.newSingleThreadExecutor();
+    private HzEventPublisher m_hzPublisher;
     /**
      * The depositVoicemail dialog
      *
@@ -239,14 +235,13 @@ public class Deposit extends AbstractVmAction implements ApplicationContextAware
     }
 
     private void putChannelUUID(User user, String uuid) {
-        m_depositMap.put(user.getUserName(), uuid);
+        m_depositRegistry.put(user.getUserName(), uuid);
         String instantMsg = getChannelCallerIdName() + " (" + getChannelCallerIdName() + ") "
                 + m_appContext.getMessage("leaving_msg", null, "is leaving a voice message.", user.getLocale());
         try {
             if (user.getVMEntryIM() && m_hzEnabled) {
-                m_executorService.submit(new HzPublisherTask(
-                    new HzVmEvent(getChannelCallerIdName(), user.getUserName(), instantMsg, HzVmEvent.VmType.START_LEAVE_VM),
-                    HzConstants.VM_TOPIC));
+                m_hzPublisher.publish(HzConstants.VM_TOPIC, new HzVmEvent(getChannelCallerIdName(),
+                        user.getUserName(), instantMsg, HzVmEvent.VmType.START_LEAVE_VM));
             }
         } catch (Exception ex) {
             LOG.error("Deposit::sendIM failed", ex);
@@ -255,7 +250,7 @@ public class Deposit extends AbstractVmAction implements ApplicationContextAware
     }
 
     private void clearChannelUUID(User user, TempMessage tempMessage) {
-        if (m_depositMap.remove(user.getUserName()) != null) {
+        if (m_depositRegistry.remove(user.getUserName(), getChannelUniqueId())) {
 
             String description = m_appContext.getMessage("did_not_leave_msg", null,
                     "disconnected without leaving a voice message.", user.getLocale());
@@ -269,9 +264,8 @@ public class Deposit extends AbstractVmAction implements ApplicationContextAware
             String instantMsg = getChannelCallerIdName() + " (" + getChannelCallerIdNumber() + ") " + description;
             try {
                 if (user.getVMExitIM() && m_hzEnabled) {
-                    m_executorService.submit(new HzPublisherTask(
-                        new HzVmEvent(getChannelCallerIdName(), user.getUserName(), instantMsg, HzVmEvent.VmType.END_LEAVE_VM),
-                        HzConstants.VM_TOPIC));
+                    m_hzPublisher.publish(HzConstants.VM_TOPIC, new HzVmEvent(getChannelCallerIdName(),
+                            user.getUserName(), instantMsg, HzVmEvent.VmType.END_LEAVE_VM));
                 }
             } catch (Exception ex) {
                 LOG.error("Deposit::sendIM failed", ex);
@@ -330,12 +324,16 @@ public class Deposit extends AbstractVmAction implements ApplicationContextAware
         m_hzEnabled = enabled;
     }
 
+    public void setHzPublisher(HzEventPublisher hzPublisher) {
+        m_hzPublisher = hzPublisher;
+    }
+
     public void setMailboxManager(MailboxManager manager) {
         m_mailboxManager = manager;
     }
 
-    public void setDepositMap(Map depositMap) {
-        m_depositMap = depositMap;
+    public void setDepositRegistry(DepositRegistry depositRegistry) {
+        m_depositRegistry = depositRegistry;
     }
 
     @Override
@@ -0,0 +1,150 @@
+/**
+ *
+ *
+ * Copyright (c) 2013 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.sipfoundry.sipxivr.HazelcastStarter;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * Voicemail deposits in progress, by mailbox: the channel of the caller leaving a message, read by
+ * the mailbox REST service.
+ *
+ * An entry expires after ttl seconds even if the call that added it never removed it. With
+ * Hazelcast enabled the registry is a distributed map shared by all IVR nodes, so a deposit is
+ * seen on any node; otherwise it is local to this node.
+ */
+public class DepositRegistry {
+    static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
+    private static final String MAP_NAME = "vmDeposits";
+    private static final long PURGE_PERIOD = 60000;
+
+    private int m_ttl = 3600;
+    private boolean m_clustered = true;
+    private HazelcastStarter m_hzStarter;
+    private ConcurrentMap<String, ActiveDeposit> m_deposits = new ConcurrentHashMap<String, ActiveDeposit>();
+    private IMap<String, ActiveDeposit> m_clusterDeposits;
+    private final AtomicLong m_lastPurge = new AtomicLong(System.currentTimeMillis());
+
+    public void init() {
+        HazelcastInstance instance = m_hzStarter != null ? m_hzStarter.getHazelcastInstance() : null;
+        if (m_clustered && instance != null) {
+            m_clusterDeposits = instance.getMap(MAP_NAME);
+            m_deposits = m_clusterDeposits;
+            LOG.info("DepositRegistry: deposits shared with the cluster");
+        }
+    }
+
+    public void put(String username, String uuid) {
+        ActiveDeposit deposit = new ActiveDeposit(uuid, System.currentTimeMillis() + m_ttl * 1000L);
+        if (m_clusterDeposits != null) {
+            // expired by Hazelcast
+            m_clusterDeposits.set(username, deposit, m_ttl, TimeUnit.SECONDS);
+        } else {
+            m_deposits.put(username, deposit);
+            purgeExpired();
+        }
+    }
+
+    /**
+     * @return the channel of the deposit in progress in this mailbox, null if there is none
+     */
+    public String getUuid(String username) {
+        ActiveDeposit deposit = m_deposits.get(username);
+        return deposit != null && !deposit.isExpired() ? deposit.getUuid() : null;
+    }
+
+    /**
+     * Removes the deposit of this channel; a newer deposit in the same mailbox is kept.
+     *
+     * @return false if the deposit was already removed
+     */
+    public boolean remove(String username, String uuid) {
+        ActiveDeposit deposit = m_deposits.get(username);
+        if (deposit == null || !deposit.getUuid().equals(uuid)) {
+            return false;
+        }
+        return m_deposits.remove(username, deposit);
+    }
+
+    public int size() {
+        return m_deposits.size();
+    }
+
+    /**
+     * Removes the entries of the calls that ended without removing them, at most once per purge
+     * period
+     */
+    private void purgeExpired() {
+        long lastPurge = m_lastPurge.get();
+        long now = System.currentTimeMillis();
+        if (now - lastPurge < PURGE_PERIOD || !m_lastPurge.compareAndSet(lastPurge, now)) {
+            return;
+        }
+        for (Iterator<ActiveDeposit> i = m_deposits.values().iterator(); i.hasNext();) {
+            if (i.next().isExpired()) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * @param ttl seconds after which an entry is removed, longer than the longest deposit
+     */
+    public void setTtl(int ttl) {
+        m_ttl = ttl;
+    }
+
+    /**
+     * @param clustered share the deposits with the other nodes when Hazelcast is enabled
+     */
+    public void setClustered(boolean clustered) {
+        m_clustered = clustered;
+    }
+
+    public void setHzStarter(HazelcastStarter hzStarter) {
+        m_hzStarter = hzStarter;
+    }
+
+    static class ActiveDeposit implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String m_uuid;
+        private final long m_expires;
+
+        ActiveDeposit(String uuid, long expires) {
+            m_uuid = uuid;
+            m_expires = expires;
+        }
+
+        String getUuid() {
+            return m_uuid;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > m_expires;
+        }
+    }
+}
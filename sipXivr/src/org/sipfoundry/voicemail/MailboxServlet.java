@@ -10,8 +10,8 @@ package org.sipfoundry.voicemail;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -28,8 +28,9 @@ import org.sipfoundry.sipxivr.rest.SipxIvrServletHandler;
 import org.sipfoundry.voicemail.mailbox.Folder;
 import org.sipfoundry.voicemail.mailbox.MailboxDetails;
 import org.sipfoundry.voicemail.mailbox.MailboxManager;
-import org.sipfoundry.voicemail.mailbox.MessageDescriptor;
+import org.sipfoundry.voicemail.mailbox.MessageAction;
 import org.sipfoundry.voicemail.mailbox.MessageNotFoundException;
+import org.sipfoundry.voicemail.mailbox.MessagePage;
 import org.sipfoundry.voicemail.mailbox.VmMessage;
 import org.springframework.web.util.HtmlUtils;
 
@@ -48,6 +49,15 @@ import org.springframework.web.util.HtmlUtils;
  * greeting (body is fragment <activegreeting>{value}</activegreeting>) {value} is one of none,
  * standard, outofoffice, extendedabsence GET returns the active greeting (returns fragment above)
  * DELETE sets the active greeting to "none"
+ *
+ * Listings (/messages, /inbox, /saved, /deleted, /conference) are streamed and accept offset,
+ * limit and since (received after, in milliseconds) parameters; /messages applies them to each
+ * folder. A paginated listing ends with a "more" element telling if another page follows.
+ * format=json (or Accept: application/json) returns JSON instead of XML.
+ *
+ * /batch/{action} PUT applies heard, unheard, move/{folder}, delete or subject (body is the
+ * subject) to the messages given as id parameters (id=1&id=2 or id=1,2), with a single MWI update;
+ * returns <batch action="..." count="..."> listing the ids not found
  */
 public class MailboxServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
@@ -76,8 +86,8 @@ public class MailboxServlet extends HttpServlet {
         SipxIvrConfiguration ivrConfig = (SipxIvrConfiguration) request
                 .getAttribute(SipxIvrServletHandler.IVR_CONFIG_ATTR);
         ValidUsers validUsers = (ValidUsers) request.getAttribute(SipxIvrServletHandler.VALID_USERS_ATTR);
-        Map<String, String> depositMap = (Map<String, String>) request
-                .getAttribute(SipxIvrServletHandler.DEPOSIT_MAP_ATTR);
+        DepositRegistry depositRegistry = (DepositRegistry) request
+                .getAttribute(SipxIvrServletHandler.DEPOSIT_REGISTRY_ATTR);
         MailboxManager mailboxManager = (MailboxManager) request.getAttribute(SipxIvrServletHandler.MAILBOX_MANAGER);
         Mwi mwiManager = (Mwi) request.getAttribute(SipxIvrServletHandler.MWI_MANAGER);
 
@@ -123,10 +133,7 @@ public class MailboxServlet extends HttpServlet {
             if (user != null) {
                 PrintWriter pw = response.getWriter();
                 LOG.info(String.format("MailboxServlet::doIt %s %s", method, pathInfo));
-                // determine the message counts for the mailbox
-                // (Okay, worry about this one. It walks the mailstore directories counting .xml
-                // and
-                // .sta files.)
+                // MWI counts come from the mailbox manager counters, see MwiCounters
                 if (context.equals("message")) {
                     if (subDirs.length >= 5) {
                         String messageId = subDirs[3];
@@ -173,7 +180,7 @@ public class MailboxServlet extends HttpServlet {
                                 try {
                                     String destinationFolder = subDirs[5];
                                     mailboxManager.moveMessageToFolder(user, messageId, destinationFolder);
-                                    MailboxDetails mailbox = mailboxManager.getMailboxDetails(user.getUserName());
+                                    MailboxDetails mailbox = mailboxManager.getMwiCounts(user.getUserName());
                                     mwiManager.sendMWI(user, mailbox);
                                 } catch (MessageNotFoundException ex) {
                                     response.sendError(404, "messageId not found");
@@ -184,21 +191,52 @@ public class MailboxServlet extends HttpServlet {
                     } else {
                         response.sendError(400, "messageId missing");
                     }
+                } else if (context.equals("batch")) {
+                    if (method.equals(METHOD_PUT)) {
+                        MessageAction action = subDirs.length >= 4 ? MessageAction.tryLookUp(subDirs[3]) : null;
+                        String argument = null;
+                        if (action == MessageAction.MOVE) {
+                            argument = subDirs.length >= 5 ? subDirs[4] : null;
+                        } else if (action == MessageAction.SUBJECT) {
+                            argument = IOUtils.toString(request.getInputStream());
+                        }
+                        List<String> messageIds = getMessageIds(request);
+                        if (action == null) {
+                            response.sendError(400, "action missing or not understood");
+                        } else if (action == MessageAction.MOVE && Folder.tryLookUp(argument) == null) {
+                            response.sendError(400, "destination missing or not understood");
+                        } else if (messageIds.isEmpty()) {
+                            response.sendError(400, "messageId missing");
+                        } else {
+                            List<String> notFound = mailboxManager.updateMessages(user, messageIds, action,
+                                    argument);
+                            response.setContentType("text/xml");
+                            pw.format("<batch action=\"%s\" count=\"%d\">\n", action.getId(), messageIds.size()
+                                    - notFound.size());
+                            for (String messageId : notFound) {
+                                pw.format("<notfound id=\"%s\"/>\n", HtmlUtils.htmlEscapeHex(messageId));
+                            }
+                            pw.write("</batch>\n");
+                        }
+                    } else {
+                        response.sendError(405);
+                    }
                 } else if (context.equals("mwi")) {
                     if (method.equals(METHOD_PUT)) {
-                        MailboxDetails mailbox = mailboxManager.getMailboxDetails(user.getUserName());
+                        // explicit update request: recount, repairing the MWI counters if needed
+                        MailboxDetails mailbox = mailboxManager.reconcileMwiCounts(user.getUserName());
                         mwiManager.sendMWI(user, mailbox);
                     } else if (method.equals(METHOD_GET)) {
                         response.setContentType(Mwi.MessageSummaryContentType);
                         String accountUrl = "sip:" + user.getIdentity();
-                        MailboxDetails mailbox = mailboxManager.getMailboxDetails(user.getUserName());
+                        MailboxDetails mailbox = mailboxManager.getMwiCounts(user.getUserName());
                         pw.write(Mwi.formatRFC3842(mailbox, accountUrl));
                     } else {
                         response.sendError(405);
                     }
                 } else if (context.equals("uuid")) {
                     response.setContentType("text/xml");
-                    String uuid = depositMap.get(user.getUserName());
+                    String uuid = depositRegistry.getUuid(user.getUserName());
                     if (uuid == null) {
                         pw.write("<uuid></uuid>\n");
                     } else {
@@ -223,101 +261,55 @@ public class MailboxServlet extends HttpServlet {
 
                 } else if (context.equals("messages")) {
                     if (method.equals(METHOD_GET)) {
-                        response.setContentType("text/xml");
-                        pw.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
-                        pw.write("<messages>\n");
-                        List<VmMessage> inboxMessages = mailboxManager.getMessages(user.getUserName(), Folder.INBOX);
-                        List<VmMessage> savedMessages = mailboxManager.getMessages(user.getUserName(), Folder.SAVED);
-                        List<VmMessage> deletedMessages = mailboxManager.getMessages(user.getUserName(),
-                                Folder.DELETED);
-                        listMessages(inboxMessages, "inbox", pw);
-                        listMessages(savedMessages, "saved", pw);
-                        listMessages(deletedMessages, "deleted", pw);
-                        pw.write("</messages>");
-                    } else {
-                        response.sendError(405);
-                    }
-                } else if (context.equals("inbox")) {
-                    if (method.equals(METHOD_GET)) {
-                        response.setContentType("text/xml");
-                        pw.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
-                        pw.write("<messages>\n");
-                        if (subDirs.length >= 4) {
-                            String messageId = subDirs[3];
-                            try {
-                                listFullMessage(mailboxManager.getVmMessage(user.getUserName(), Folder.INBOX,
-                                        messageId, false), "inbox", pw);
-                            } catch (MessageNotFoundException ex) {
-                                response.sendError(404, "messageId not found");
-                            }
-                        } else {
-                            listFullMessages(mailboxManager.getMessages(user.getUserName(), Folder.INBOX), "inbox",
-                                    pw);
-                        }
-                        pw.write("</messages>");
-                    } else {
-                        response.sendError(405);
-                    }
-                } else if (context.equals("saved")) {
-                    if (method.equals(METHOD_GET)) {
-                        response.setContentType("text/xml");
-                        pw.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
-                        pw.write("<messages>\n");
-                        if (subDirs.length >= 4) {
-                            String messageId = subDirs[3];
-                            try {
-                                listFullMessage(mailboxManager.getVmMessage(user.getUserName(), Folder.SAVED,
-                                        messageId, false), "saved", pw);
-                            } catch (MessageNotFoundException ex) {
-                                response.sendError(404, "messageId not found");
-                            }
+                        ListingParameters params = ListingParameters.parse(request);
+                        if (params == null) {
+                            response.sendError(400, "invalid offset, limit or since");
                         } else {
-                            listFullMessages(mailboxManager.getMessages(user.getUserName(), Folder.SAVED), "saved",
-                                    pw);
-                        }
-                        pw.write("</messages>");
-                    } else {
-                        response.sendError(405);
-                    }
-                } else if (context.equals("deleted")) {
-                    if (method.equals(METHOD_GET)) {
-                        response.setContentType("text/xml");
-                        pw.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
-                        pw.write("<messages>\n");
-                        if (subDirs.length >= 4) {
-                            String messageId = subDirs[3];
-                            try {
-                                listFullMessage(mailboxManager.getVmMessage(user.getUserName(), Folder.DELETED,
-                                        messageId, false), "deleted", pw);
-                            } catch (MessageNotFoundException ex) {
-                                response.sendError(404, "messageId not found");
+                            MessageListWriter writer = MessageListWriter.create(pw, params.m_json, false);
+                            response.setContentType(writer.getContentType());
+                            writer.begin();
+                            // one page over the folders, one after the other
+                            MessagePage page = new MessagePage(params.m_offset, params.m_limit);
+                            for (Folder folder : new Folder[] {Folder.INBOX, Folder.SAVED, Folder.DELETED}) {
+                                if (page.hasMore()) {
+                                    break;
+                                }
+                                mailboxManager.listMessages(user.getUserName(), folder, params.m_since, page,
+                                        writer);
                             }
-                        } else {
-                            listFullMessages(mailboxManager.getMessages(user.getUserName(), Folder.DELETED),
-                                    "deleted", pw);
+                            writer.end(page.isLimited() ? page.hasMore() : null);
                         }
-                        pw.write("</messages>");
                     } else {
                         response.sendError(405);
                     }
-                } else if (context.equals("conference")) {
+                } else if (Folder.tryLookUp(context) != null) {
+                    // inbox, saved, deleted or conference
+                    Folder folder = Folder.lookUp(context);
                     if (method.equals(METHOD_GET)) {
-                        response.setContentType("text/xml");
-                        pw.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
-                        pw.write("<messages>\n");
-                        if (subDirs.length >= 4) {
+                        ListingParameters params = ListingParameters.parse(request);
+                        if (params == null) {
+                            response.sendError(400, "invalid offset, limit or since");
+                        } else if (subDirs.length >= 4) {
                             String messageId = subDirs[3];
                             try {
-                                listFullMessage(mailboxManager.getVmMessage(user.getUserName(), Folder.CONFERENCE,
-                                        messageId, false), "conference", pw);
+                                VmMessage message = mailboxManager.getVmMessage(user.getUserName(), folder,
+                                        messageId, false);
+                                MessageListWriter writer = MessageListWriter.create(pw, params.m_json, true);
+                                response.setContentType(writer.getContentType());
+                                writer.begin();
+                                writer.handle(message);
+                                writer.end(null);
                             } catch (MessageNotFoundException ex) {
                                 response.sendError(404, "messageId not found");
                             }
                         } else {
-                            listFullMessages(mailboxManager.getMessages(user.getUserName(), Folder.CONFERENCE),
-                                    "conference", pw);
+                            MessageListWriter writer = MessageListWriter.create(pw, params.m_json, true);
+                            response.setContentType(writer.getContentType());
+                            writer.begin();
+                            MessagePage page = new MessagePage(params.m_offset, params.m_limit);
+                            mailboxManager.listMessages(user.getUserName(), folder, params.m_since, page, writer);
+                            writer.end(page.isLimited() ? page.hasMore() : null);
                         }
-                        pw.write("</messages>");
                     } else {
                         response.sendError(405);
                     }
@@ -333,44 +325,53 @@ public class MailboxServlet extends HttpServlet {
 
     }
 
-    private void listMessages(List<VmMessage> messages, String folder, PrintWriter pw) {
-        String authorDisplayName = null;
-        String authorExtension = null;
-        for (VmMessage message : messages) {
-            MessageDescriptor descriptor = message.getDescriptor();
-            String uri = descriptor.getFromUri();
-            authorDisplayName = StringUtils.defaultIfEmpty(ValidUsers.getDisplayPart(uri), StringUtils.EMPTY);
-            authorExtension = StringUtils.defaultIfEmpty(ValidUsers.getUserPart(uri), StringUtils.EMPTY);
-            pw.format(
-                    "<message id=\"%s\" heard=\"%s\" urgent=\"%s\" folder=\"%s\" duration=\"%s\" contentlength=\"%s\" received=\"%s\" " +
-                    "author=\"%s\" authorExtension=\"%s\" username=\"%s\" format=\"%s\"/>\n",
-                    message.getMessageId(), !message.isUnHeard(), message.isUrgent(), folder,
-                    descriptor.getDurationSecsLong(), StringUtils.defaultIfEmpty(descriptor.getContentLength(), StringUtils.EMPTY),
-                    descriptor.getTimeStampDate().getTime(), HtmlUtils.htmlEscapeHex(authorDisplayName),
-                    HtmlUtils.htmlEscapeHex(authorExtension), message.getUserName(), descriptor.getAudioFormat());
+    /**
+     * Message ids of a batch: id parameters, each one possibly a comma separated list
+     */
+    private static List<String> getMessageIds(HttpServletRequest request) {
+        List<String> messageIds = new ArrayList<String>();
+        String[] values = request.getParameterValues("id");
+        if (values != null) {
+            for (String value : values) {
+                for (String messageId : StringUtils.split(value, ", ")) {
+                    if (!messageIds.contains(messageId)) {
+                        messageIds.add(messageId);
+                    }
+                }
+            }
         }
+        return messageIds;
     }
 
-    private void listFullMessages(List<VmMessage> messages, String folder, PrintWriter pw) {
-        for (VmMessage message : messages) {
-            listFullMessage(message, folder, pw);
-        }
-    }
+    /**
+     * Paging and representation of a listing: offset, limit (0 for all), since (received after,
+     * milliseconds since epoch) and format=json (or an Accept header asking for JSON)
+     */
+    static class ListingParameters {
+        int m_offset;
+        int m_limit;
+        long m_since;
+        boolean m_json;
 
-    private void listFullMessage(VmMessage message, String folder, PrintWriter pw) {
-        MessageDescriptor descriptor = message.getDescriptor();
-        String uri = descriptor.getFromUri();
-        String authorDisplayName = StringUtils.defaultIfEmpty(ValidUsers.getDisplayPart(uri), StringUtils.EMPTY);
-        String authorExtension = StringUtils.defaultIfEmpty(ValidUsers.getUserPart(uri), StringUtils.EMPTY);
-        String fromUri = StringUtils.substringBetween(uri, "<", ">");
-        pw.format(
-                "<message id=\"%s\" heard=\"%s\" urgent=\"%s\" folder=\"%s\" duration=\"%s\" contentlength=\"%s\" received=\"%s\" " +
-                "fromUri=\"%s\" author=\"%s\" authorExtension=\"%s\" subject=\"%s\" username=\"%s\" format=\"%s\"/>\n",
-                message.getMessageId(), !message.isUnHeard(), message.isUrgent(), folder,
-                descriptor.getDurationSecsLong(), StringUtils.defaultIfEmpty(descriptor.getContentLength(),
-                StringUtils.EMPTY), descriptor.getTimeStampDate().getTime(), fromUri,
-                HtmlUtils.htmlEscapeHex(authorDisplayName), HtmlUtils.htmlEscapeHex(authorExtension) ,HtmlUtils.htmlEscapeHex(descriptor.getSubject()),
-                message.getUserName(), descriptor.getAudioFormat());
+        /**
+         * @return null if a parameter is invalid
+         */
+        static ListingParameters parse(HttpServletRequest request) {
+            ListingParameters params = new ListingParameters();
+            try {
+                params.m_offset = Integer.parseInt(StringUtils.defaultIfEmpty(request.getParameter("offset"), "0"));
+                params.m_limit = Integer.parseInt(StringUtils.defaultIfEmpty(request.getParameter("limit"), "0"));
+                params.m_since = Long.parseLong(StringUtils.defaultIfEmpty(request.getParameter("since"), "0"));
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            if (params.m_offset < 0 || params.m_limit < 0) {
+                return null;
+            }
+            String accept = request.getHeader("Accept");
+            params.m_json = "json".equals(request.getParameter("format"))
+                    || (accept != null && accept.contains("application/json"));
+            return params;
+        }
     }
-
 }
@@ -16,10 +16,7 @@
  */
 package org.sipfoundry.voicemail;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 
 import javax.servlet.ServletException;
@@ -36,7 +33,8 @@ import org.sipfoundry.commons.userdb.ValidUsers;
 import org.sipfoundry.sipxivr.SipxIvrConfiguration;
 import org.sipfoundry.sipxivr.rest.SipxIvrServletHandler;
 import org.sipfoundry.voicemail.mailbox.MailboxManager;
-import org.sipfoundry.voicemail.mailbox.VmMessage;
+import org.sipfoundry.voicemail.mailbox.MessageAudio;
+import org.sipfoundry.voicemail.mailbox.MessageNotFoundException;
 
 public class MediaServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
@@ -96,34 +94,61 @@ public class MediaServlet extends HttpServlet {
 
         if (user != null) {
             if (method.equals(METHOD_GET)) {
-                VmMessage message = mailboxManager.getVmMessage(user.getUserName(), messageId, true);
-                File audioFile = message.getAudioFile();
-                if (messageIdSuffix != null
-                        && !messageIdSuffix.equals(message.getDescriptor().getAudioFormat())) {
+                MessageAudio audio;
+                try {
+                    audio = mailboxManager.getMessageAudio(user.getUserName(), messageId);
+                } catch (MessageNotFoundException ex) {
+                    response.sendError(404);
+                    return;
+                }
+                if (messageIdSuffix != null && !messageIdSuffix.equals(audio.getFormat())) {
                     response.sendError(404); // name doesn't match
                     return;
                 }
                 response.setHeader("Expires", "0");
                 response.setHeader("Cache-Control", "must-revalidate, post-check=0, pre-check=0");
                 response.setHeader("Pragma", "public");
-                response.setHeader("Content-Disposition", "attachment; filename=\"" + audioFile.getName() + "\"");
-                String mimeType = MimeType.getMimeByFormat(message.getDescriptor().getAudioFormat());
+                response.setHeader("ETag", audio.getETag());
+                response.setDateHeader("Last-Modified", audio.getLastModified());
+                response.setHeader("Accept-Ranges", "bytes");
+                if (isNotModified(request, audio)) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+                response.setHeader("Content-Disposition", "attachment; filename=\"" + audio.getName() + "\"");
+                String mimeType = MimeType.getMimeByFormat(audio.getFormat());
                 if (dir.equals("download")){
                     response.setHeader("Content-type", "application/force-download");
                 }else if (StringUtils.isNotBlank(mimeType)) {
-                    response.setHeader("Content-type", MimeType.getMimeByFormat(message.getDescriptor().getAudioFormat()));
+                    response.setHeader("Content-type", mimeType);
+                }
+
+                long length = audio.getLength();
+                long start = 0;
+                long end = length - 1;
+                String rangeHeader = request.getHeader("Range");
+                if (rangeHeader != null && isRangeCurrent(request, audio)) {
+                    long[] range = parseRange(rangeHeader, length);
+                    if (range != null && range.length == 0) {
+                        response.setHeader("Content-Range", "bytes */" + length);
+                        response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                        return;
+                    }
+                    if (range != null) {
+                        start = range[0];
+                        end = range[1];
+                        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                        response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+                    }
                 }
+                response.setHeader("Content-Length", String.valueOf(end - start + 1));
 
                 OutputStream responseOutputStream = null;
-                InputStream stream = null;
                 try {
                     responseOutputStream = response.getOutputStream();
-                    stream = new FileInputStream(audioFile);
-                    IOUtils.copy(stream, responseOutputStream);
+                    audio.transferTo(start, end - start + 1, responseOutputStream);
                 } finally {
-                    IOUtils.closeQuietly(stream);
                     IOUtils.closeQuietly(responseOutputStream);
-                    message.cleanup();
                 }
             } else {
                 response.sendError(405);
@@ -131,4 +156,86 @@ public class MediaServlet extends HttpServlet {
         }
 
     }
+
+    private static boolean isNotModified(HttpServletRequest request, MessageAudio audio) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(audio.getETag());
+        }
+        long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+        // HTTP dates have a one second resolution
+        return ifModifiedSince != -1 && audio.getLastModified() / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * A range is served only if the client copy (If-Range) is still the current audio
+     */
+    private static boolean isRangeCurrent(HttpServletRequest request, MessageAudio audio) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.trim().startsWith("\"")) {
+            return ifRange.trim().equals(audio.getETag());
+        }
+        return getDateHeader(request, "If-Range") / 1000 == audio.getLastModified() / 1000;
+    }
+
+    private static long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a single byte range (bytes=first-last, bytes=first- or bytes=-suffixLength)
+     *
+     * @return first and last byte positions, an empty array if the range cannot be satisfied or
+     *         null if the header has to be ignored (malformed or multiple ranges) and the whole
+     *         content sent
+     */
+    static long[] parseRange(String header, long length) {
+        String value = header.trim();
+        if (!value.startsWith("bytes=") || value.indexOf(',') != -1) {
+            return null;
+        }
+        String spec = value.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        if (!StringUtils.isNumeric(first) || !StringUtils.isNumeric(last) || first.isEmpty() && last.isEmpty()) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                if (suffix == 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                if (!last.isEmpty() && Long.parseLong(last) < start) {
+                    return null;
+                }
+            }
+            if (start >= length) {
+                return new long[0];
+            }
+            return new long[] {
+                start, end
+            };
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
 }
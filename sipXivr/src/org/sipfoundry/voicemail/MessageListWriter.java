@@ -0,0 +1,200 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail;
+
+import java.io.PrintWriter;
+import java.util.Date;
+
+import org.apache.commons.lang.StringUtils;
+import org.sipfoundry.commons.userdb.ValidUsers;
+import org.sipfoundry.voicemail.mailbox.MessageDescriptor;
+import org.sipfoundry.voicemail.mailbox.MessageHandler;
+import org.sipfoundry.voicemail.mailbox.VmMessage;
+import org.springframework.web.util.HtmlUtils;
+
+/**
+ * Writes a message listing as it is read from the mailbox: {@link #begin()}, one
+ * {@link #handle(VmMessage)} per message, then {@link #end(Boolean)}.
+ */
+abstract class MessageListWriter implements MessageHandler {
+    protected final PrintWriter m_pw;
+    // full listing adds fromUri and subject
+    protected final boolean m_full;
+
+    MessageListWriter(PrintWriter pw, boolean full) {
+        m_pw = pw;
+        m_full = full;
+    }
+
+    static MessageListWriter create(PrintWriter pw, boolean json, boolean full) {
+        return json ? new JsonWriter(pw, full) : new XmlWriter(pw, full);
+    }
+
+    abstract String getContentType();
+
+    abstract void begin();
+
+    /**
+     * @param more whether another page follows, null if the listing was not paginated
+     */
+    abstract void end(Boolean more);
+
+    @Override
+    public void handle(VmMessage message) {
+        MessageDescriptor descriptor = message.getDescriptor();
+        String uri = descriptor.getFromUri();
+        Date received = descriptor.getTimeStampDate();
+        writeMessage(message, descriptor,
+                StringUtils.defaultIfEmpty(ValidUsers.getDisplayPart(uri), StringUtils.EMPTY),
+                StringUtils.defaultIfEmpty(ValidUsers.getUserPart(uri), StringUtils.EMPTY),
+                StringUtils.substringBetween(uri, "<", ">"), received != null ? received.getTime() : 0);
+        m_pw.flush();
+    }
+
+    abstract void writeMessage(VmMessage message, MessageDescriptor descriptor, String authorDisplayName,
+            String authorExtension, String fromUri, long received);
+
+    static class XmlWriter extends MessageListWriter {
+        XmlWriter(PrintWriter pw, boolean full) {
+            super(pw, full);
+        }
+
+        @Override
+        String getContentType() {
+            return "text/xml";
+        }
+
+        @Override
+        void begin() {
+            m_pw.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+            m_pw.write("<messages>\n");
+        }
+
+        @Override
+        void end(Boolean more) {
+            if (more != null) {
+                m_pw.format("<more>%s</more>\n", more);
+            }
+            m_pw.write("</messages>");
+        }
+
+        @Override
+        void writeMessage(VmMessage message, MessageDescriptor descriptor, String authorDisplayName,
+                String authorExtension, String fromUri, long received) {
+            String contentLength = StringUtils.defaultIfEmpty(descriptor.getContentLength(), StringUtils.EMPTY);
+            if (m_full) {
+                m_pw.format(
+                        "<message id=\"%s\" heard=\"%s\" urgent=\"%s\" folder=\"%s\" duration=\"%s\" contentlength=\"%s\" received=\"%s\" " +
+                        "fromUri=\"%s\" author=\"%s\" authorExtension=\"%s\" subject=\"%s\" username=\"%s\" format=\"%s\"/>\n",
+                        message.getMessageId(), !message.isUnHeard(), message.isUrgent(), message.getParentFolder(),
+                        descriptor.getDurationSecsLong(), contentLength, received, fromUri,
+                        HtmlUtils.htmlEscapeHex(authorDisplayName), HtmlUtils.htmlEscapeHex(authorExtension),
+                        HtmlUtils.htmlEscapeHex(descriptor.getSubject()), message.getUserName(),
+                        descriptor.getAudioFormat());
+            } else {
+                m_pw.format(
+                        "<message id=\"%s\" heard=\"%s\" urgent=\"%s\" folder=\"%s\" duration=\"%s\" contentlength=\"%s\" received=\"%s\" " +
+                        "author=\"%s\" authorExtension=\"%s\" username=\"%s\" format=\"%s\"/>\n",
+                        message.getMessageId(), !message.isUnHeard(), message.isUrgent(), message.getParentFolder(),
+                        descriptor.getDurationSecsLong(), contentLength, received,
+                        HtmlUtils.htmlEscapeHex(authorDisplayName), HtmlUtils.htmlEscapeHex(authorExtension),
+                        message.getUserName(), descriptor.getAudioFormat());
+            }
+        }
+    }
+
+    static class JsonWriter extends MessageListWriter {
+        private boolean m_first = true;
+
+        JsonWriter(PrintWriter pw, boolean full) {
+            super(pw, full);
+        }
+
+        @Override
+        String getContentType() {
+            return "application/json";
+        }
+
+        @Override
+        void begin() {
+            m_pw.write("{\"messages\":[");
+        }
+
+        @Override
+        void end(Boolean more) {
+            m_pw.write("]");
+            if (more != null) {
+                m_pw.format(",\"more\":%s", more);
+            }
+            m_pw.write("}");
+        }
+
+        @Override
+        void writeMessage(VmMessage message, MessageDescriptor descriptor, String authorDisplayName,
+                String authorExtension, String fromUri, long received) {
+            if (!m_first) {
+                m_pw.write(",");
+            }
+            m_first = false;
+            m_pw.format("\n{\"id\":%s,\"heard\":%s,\"urgent\":%s,\"folder\":%s,\"duration\":%s,"
+                    + "\"contentlength\":%s,\"received\":%s,", quote(message.getMessageId()), !message.isUnHeard(),
+                    message.isUrgent(), quote(String.valueOf(message.getParentFolder())),
+                    descriptor.getDurationSecsLong(), quote(descriptor.getContentLength()), received);
+            if (m_full) {
+                m_pw.format("\"fromUri\":%s,\"subject\":%s,", quote(fromUri), quote(descriptor.getSubject()));
+            }
+            m_pw.format("\"author\":%s,\"authorExtension\":%s,\"username\":%s,\"format\":%s}",
+                    quote(authorDisplayName), quote(authorExtension), quote(message.getUserName()),
+                    quote(descriptor.getAudioFormat()));
+        }
+
+        static String quote(String value) {
+            if (value == null) {
+                return "\"\"";
+            }
+            StringBuilder quoted = new StringBuilder(value.length() + 2);
+            quoted.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+            }
+            return quoted.append('"').toString();
+        }
+    }
+}
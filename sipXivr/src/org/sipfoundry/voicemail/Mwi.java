@@ -10,26 +10,36 @@ package org.sipfoundry.voicemail;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.URL;
+import java.net.HttpURLConnection;
 import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.sipfoundry.commons.userdb.User;
-import org.sipfoundry.commons.util.RemoteRequest;
+import org.sipfoundry.sipxivr.rest.PooledHttpClient;
 import org.sipfoundry.voicemail.mailbox.MailboxDetails;
 
+/**
+ * Sends MWI updates to the status servers of every region.
+ *
+ * Notifications are queued and sent by a small shared pool of workers so that callers (call
+ * threads, REST requests) never wait for the status server. Notifications are coalesced per
+ * identity: while one is waiting or being sent, newer ones only replace its content, so only the
+ * latest state is sent. Each region has a circuit breaker: after a number of consecutive failures
+ * the region is skipped for a while instead of making every notification wait for a dead server.
+ * The pool and breaker statistics are exported over JMX as sipxivr:name=mwi.
+ */
 public class Mwi {
     static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
     public static final String MessageSummaryContentType = "application/simple-message-summary";
@@ -37,6 +47,30 @@ public class Mwi {
     private Map<String, List<String>> m_mwiAddresses;
     private String m_mwiPort;
     private int m_mwiTimeout = 5;
+    private int m_threads = 4;
+    private int m_queueSize = 1000;
+    private int m_breakerThreshold = 3;
+    private int m_breakerResetTime = 30;
+    private PooledHttpClient m_httpClient = PooledHttpClient.getDefault();
+    private ThreadPoolExecutor m_executor;
+    private final ConcurrentMap<String, Notification> m_pending = new ConcurrentHashMap<String, Notification>();
+    private final ConcurrentMap<String, RegionBreaker> m_breakers = new ConcurrentHashMap<String, RegionBreaker>();
+    private final AtomicLong m_sentCount = new AtomicLong();
+    private final AtomicLong m_sendTime = new AtomicLong();
+    private final AtomicLong m_coalescedCount = new AtomicLong();
+    private final AtomicLong m_droppedCount = new AtomicLong();
+
+    public void init() {
+        m_executor = new ThreadPoolExecutor(m_threads, m_threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(m_queueSize));
+        m_executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void destroy() {
+        if (m_executor != null) {
+            m_executor.shutdown();
+        }
+    }
 
     /**
      * Format the status ala RFC-3842
@@ -57,8 +91,8 @@ public class Mwi {
     }
 
     /**
-     * Send MWI info to the Status Server (which in turn sends it to interested parties via SIP
-     * NOTIFY)
+     * Queue MWI info for the Status Server (which in turn sends it to interested parties via SIP
+     * NOTIFY). Returns immediately, the update is sent by the MWI workers.
      * 
      * @param mailbox
      * @param messages
@@ -70,61 +104,147 @@ public class Mwi {
         try {
             final String content = "identity=" + URLEncoder.encode(idUri, "UTF-8")
                     + "&eventType=message-summary&event-data=" + "\r\n" + formatRFC3842(mailbox, accountUrl);
-
-            for (final String region : m_mwiAddresses.keySet()) {
-                sendMwiToRegion(region, idUri, mailbox, content);
-            }
-
+            String summary = String.format("%d/%d", mailbox.getUnheardCount(), mailbox.getHeardCount());
+            queue(idUri, content, summary);
         } catch (UnsupportedEncodingException ex) {
             LOG.error("Mwi::sendMWI Trouble with encoding idUri", ex);
         }
     }
 
-    private void sendMwiToRegion(final String region, final String idUri, final MailboxDetails mailbox,
-            final String content) {
-        try {
-            ExecutorService executor = Executors.newSingleThreadExecutor();
-            Callable<Boolean> task = new Callable<Boolean>() {
-                public Boolean call() throws IOException {
-                    List<String> addressesInRegion = m_mwiAddresses.get(region);
-                    for (String mwiAddress : addressesInRegion) {
-                        LOG.info(String.format(
-                                "Mwi::SendMWI %s %d/%d to MWI address %s in region %s with timeout %d", idUri,
-                                mailbox.getUnheardCount(), mailbox.getHeardCount(), mwiAddress, region, m_mwiTimeout));
-                        if (sendMwi(mwiAddress, content)) {
-                            return true;
-                        }
-                    }
-                    return false;
+    private void queue(String idUri, String content, String summary) {
+        for (;;) {
+            Notification notification = m_pending.get(idUri);
+            if (notification == null) {
+                Notification newNotification = new Notification(idUri);
+                notification = m_pending.putIfAbsent(idUri, newNotification);
+                if (notification == null) {
+                    notification = newNotification;
                 }
-            };
-            final List<Future<Boolean>> futures = executor.invokeAll(Arrays.asList(task), m_mwiTimeout,
-                    TimeUnit.SECONDS);
-            executor.shutdown();
-            if (futures.get(0).isCancelled()) {
-                LOG.error(String.format("Mwi::SendMWI to region %s timed out", region));
             }
-        } catch (InterruptedException e) {
-            LOG.error("Unexpected termination of sending MWI action", e);
+            if (notification.update(content, summary)) {
+                return;
+            }
+            // notification completed and removed in the meantime, queue a new one
         }
     }
 
+    private void send(String idUri, String content, String summary) {
+        for (String region : m_mwiAddresses.keySet()) {
+            RegionBreaker breaker = getBreaker(region);
+            if (!breaker.allowRequest()) {
+                m_droppedCount.incrementAndGet();
+                LOG.warn(String.format("Mwi::SendMWI %s %s not sent, region %s is unavailable", idUri, summary,
+                        region));
+                continue;
+            }
+            if (sendMwiToRegion(region, idUri, content, summary)) {
+                breaker.success();
+            } else if (breaker.failure()) {
+                LOG.error(String.format("Mwi::SendMWI region %s failed %d times, suspended for %d seconds",
+                        region, m_breakerThreshold, m_breakerResetTime));
+            }
+        }
+    }
+
+    private boolean sendMwiToRegion(String region, String idUri, String content, String summary) {
+        List<String> addressesInRegion = m_mwiAddresses.get(region);
+        for (String mwiAddress : addressesInRegion) {
+            LOG.info(String.format("Mwi::SendMWI %s %s to MWI address %s in region %s with timeout %d", idUri,
+                    summary, mwiAddress, region, m_mwiTimeout));
+            long start = System.currentTimeMillis();
+            boolean result = sendMwi(mwiAddress, content);
+            m_sendTime.addAndGet(System.currentTimeMillis() - start);
+            m_sentCount.incrementAndGet();
+            if (result) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean sendMwi(String mwiAddress, String content) {
         try {
             String mwiApiUrl = String.format(MWI_URL, mwiAddress, m_mwiPort);
-            URL mwiUrl = new URL(mwiApiUrl);
-            RemoteRequest rr = new RemoteRequest(mwiUrl, MessageSummaryContentType, content);
-            boolean result = rr.http();
-            if (!result) {
-                LOG.error("Mwi::sendMWI Trouble with RemoteRequest on address " + rr.getResponse());
+            int timeout = (int) TimeUnit.SECONDS.toMillis(m_mwiTimeout);
+            PooledHttpClient.Response response = m_httpClient.execute("POST", mwiApiUrl, null,
+                    MessageSummaryContentType, content, timeout, timeout);
+            if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                LOG.error("Mwi::sendMWI Trouble with request on address " + mwiAddress + ": " + response.getCode()
+                        + " " + response.getMessage());
+                return false;
             }
-            return result;
-        } catch (Exception e) {
+            return true;
+        } catch (IOException e) {
             LOG.error("Mwi::sendMWI Trouble with mwiUrl", e);
             return false;
         }
     }
 
+    private RegionBreaker getBreaker(String region) {
+        RegionBreaker breaker = m_breakers.get(region);
+        if (breaker == null) {
+            RegionBreaker newBreaker = new RegionBreaker();
+            breaker = m_breakers.putIfAbsent(region, newBreaker);
+            if (breaker == null) {
+                breaker = newBreaker;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Number of identities with an MWI update waiting to be sent
+     */
+    public int getQueueDepth() {
+        return m_executor.getQueue().size();
+    }
+
+    /**
+     * Number of workers sending MWI updates
+     */
+    public int getActiveThreads() {
+        return m_executor.getActiveCount();
+    }
+
+    /**
+     * Regions skipped because their status servers keep failing, comma separated
+     */
+    public String getSuspendedRegions() {
+        List<String> suspended = new ArrayList<String>();
+        for (Map.Entry<String, RegionBreaker> breaker : m_breakers.entrySet()) {
+            if (!breaker.getValue().allowRequest()) {
+                suspended.add(breaker.getKey());
+            }
+        }
+        return StringUtils.join(suspended, ',');
+    }
+
+    /**
+     * Average time of a post to a status server, in milliseconds
+     */
+    public long getAverageSendTime() {
+        long count = m_sentCount.get();
+        return count == 0 ? 0 : m_sendTime.get() / count;
+    }
+
+    public long getSentCount() {
+        return m_sentCount.get();
+    }
+
+    /**
+     * Updates replaced by a newer update for the same identity before being sent
+     */
+    public long getCoalescedCount() {
+        return m_coalescedCount.get();
+    }
+
+    /**
+     * Updates not sent because the queue was full or the region was unavailable
+     */
+    public long getDroppedCount() {
+        return m_droppedCount.get();
+    }
+
     public void setMwiAddresses(String addresses) {
         Map<String, List<String>> addrs = new LinkedHashMap<String, List<String>>();
         String[] addressesWithRegion = StringUtils.split(addresses, ",");
@@ -162,4 +282,126 @@ public class Mwi {
     public void setMwiTimeout(int timeout) {
         m_mwiTimeout = timeout;
     }
+
+    public void setHttpClient(PooledHttpClient httpClient) {
+        m_httpClient = httpClient;
+    }
+
+    public void setThreads(int threads) {
+        m_threads = threads;
+    }
+
+    public void setQueueSize(int queueSize) {
+        m_queueSize = queueSize;
+    }
+
+    /**
+     * @param breakerThreshold consecutive failures after which a region is suspended
+     */
+    public void setBreakerThreshold(int breakerThreshold) {
+        m_breakerThreshold = breakerThreshold;
+    }
+
+    /**
+     * @param breakerResetTime seconds a failing region is suspended before being tried again
+     */
+    public void setBreakerResetTime(int breakerResetTime) {
+        m_breakerResetTime = breakerResetTime;
+    }
+
+    /**
+     * Latest MWI update for one identity; queued at most once in the executor
+     */
+    private class Notification implements Runnable {
+        private final String m_idUri;
+        private String m_content;
+        private String m_summary;
+        private boolean m_scheduled;
+        private boolean m_done;
+
+        Notification(String idUri) {
+            m_idUri = idUri;
+        }
+
+        /**
+         * @return false if this notification is already completed, a new one has to be used
+         */
+        synchronized boolean update(String content, String summary) {
+            if (m_done) {
+                return false;
+            }
+            if (m_content != null) {
+                // previous update not sent yet
+                m_coalescedCount.incrementAndGet();
+            }
+            m_content = content;
+            m_summary = summary;
+            if (m_scheduled) {
+                return true;
+            }
+            m_scheduled = true;
+            try {
+                m_executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                m_droppedCount.incrementAndGet();
+                LOG.error(String.format("Mwi::sendMWI %s %s dropped, MWI queue is full", m_idUri, summary));
+                m_content = null;
+                complete();
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                String content;
+                String summary;
+                synchronized (this) {
+                    if (m_content == null) {
+                        complete();
+                        return;
+                    }
+                    content = m_content;
+                    summary = m_summary;
+                    m_content = null;
+                }
+                try {
+                    send(m_idUri, content, summary);
+                } catch (RuntimeException ex) {
+                    LOG.error("Mwi::sendMWI unexpected error for " + m_idUri, ex);
+                }
+            }
+        }
+
+        private void complete() {
+            m_done = true;
+            m_pending.remove(m_idUri, this);
+        }
+    }
+
+    private class RegionBreaker {
+        private int m_failures;
+        private long m_suspendedUntil;
+
+        synchronized boolean allowRequest() {
+            // once the suspension expires let requests through again, a failure suspends again
+            return m_failures < m_breakerThreshold || System.currentTimeMillis() >= m_suspendedUntil;
+        }
+
+        synchronized void success() {
+            m_failures = 0;
+        }
+
+        /**
+         * @return true if the region just got suspended
+         */
+        synchronized boolean failure() {
+            m_failures++;
+            if (m_failures >= m_breakerThreshold) {
+                m_suspendedUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(m_breakerResetTime);
+                return true;
+            }
+            return false;
+        }
+    }
 }
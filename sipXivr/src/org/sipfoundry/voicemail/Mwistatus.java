@@ -64,7 +64,7 @@ public class Mwistatus extends HttpServlet {
             // determine the message counts for the mailbox
             // (Okay, worry about this one.  It walks the mailstore directories counting .xml and .sta files.)
             String accountUrl = "sip:" + user.getIdentity();
-            rfc3842 = Mwi.formatRFC3842(mailboxManager.getMailboxDetails(user.getUserName()), accountUrl);
+            rfc3842 = Mwi.formatRFC3842(mailboxManager.getMwiCounts(user.getUserName()), accountUrl);
             LOG.info(String.format("Mwistatus::doGet %s", idUri));
         } else {
             // Just lie and give no messages
@@ -26,6 +26,7 @@ import org.sipfoundry.commons.freeswitch.Record;
 import org.sipfoundry.commons.userdb.PersonalAttendant;
 import org.sipfoundry.commons.userdb.User;
 import org.sipfoundry.commons.userdb.ValidUsers;
+import org.sipfoundry.sipxivr.AdmissionController;
 import org.sipfoundry.sipxivr.ApplicationConfiguraton;
 import org.sipfoundry.sipxivr.common.IvrChoice;
 import org.sipfoundry.sipxivr.eslrequest.AbstractEslRequestController;
@@ -39,6 +40,7 @@ public class VmEslRequestController extends AbstractEslRequestController {
     private String m_action;
     private String m_mailboxString;
     private ValidUsers m_validUsers;
+    private AdmissionController m_admissionController;
     private User m_currentUser;
     private String m_operatorAddr;
     private ApplicationConfiguraton m_config;
@@ -49,7 +51,11 @@ public class VmEslRequestController extends AbstractEslRequestController {
     public void extractParameters(Hashtable<String, String> parameters) {
         parseDiversionHeader(parameters);
         m_action = parameters.get("action");
+        long start = System.currentTimeMillis();
         extractCurrentUser(parameters);
+        if (m_admissionController != null) {
+            m_admissionController.recordLatency(System.currentTimeMillis() - start);
+        }
     }
 
     @Override
@@ -266,6 +272,10 @@ public class VmEslRequestController extends AbstractEslRequestController {
         m_validUsers = validUsers;
     }
 
+    public void setAdmissionController(AdmissionController admissionController) {
+        m_admissionController = admissionController;
+    }
+
     public void setRecordRate(int recordRate) {
         m_recordRate = recordRate;
     }
@@ -0,0 +1,129 @@
+/**
+ *
+ *
+ * Copyright (c) 2013 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail;
+
+import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocketInterface;
+import org.sipfoundry.commons.userdb.ValidUsers;
+import org.sipfoundry.sipxivr.AdmissionController;
+import org.sipfoundry.sipxivr.ApplicationConfiguraton;
+import org.sipfoundry.sipxivr.HzEventPublisher;
+import org.sipfoundry.sipxivr.eslrequest.AbstractEslRequestAppFactory;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestApp;
+import org.sipfoundry.voicemail.mailbox.MailboxManager;
+import org.springframework.beans.BeansException;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+
+/**
+ * Builds the voicemail application of a call: deposit and retrieve share its controller.
+ */
+public class VoiceMailFactory extends AbstractEslRequestAppFactory implements ApplicationContextAware {
+    private ApplicationContext m_appContext;
+    private String m_operatorAddr;
+    private ValidUsers m_validUsers;
+    private MailboxManager m_mailboxManager;
+    private AdmissionController m_admissionController;
+    private ApplicationConfiguraton m_voicemailConfiguration;
+    private int m_recordRate;
+    private int m_recordTime;
+    private String m_sendImUrl;
+    private DepositRegistry m_depositRegistry;
+    private boolean m_hzEnabled;
+    private HzEventPublisher m_hzPublisher;
+
+    @Override
+    public EslRequestApp createApp(FreeSwitchEventSocketInterface fses) {
+        VmEslRequestController controller = initController(new VmEslRequestController(), fses);
+        controller.setOperatorAddr(m_operatorAddr);
+        controller.setValidUsers(m_validUsers);
+        controller.setAdmissionController(m_admissionController);
+        controller.setVoicemailConfiguration(m_voicemailConfiguration);
+        controller.setRecordRate(m_recordRate);
+        controller.setRecordTime(m_recordTime);
+
+        Deposit deposit = new Deposit();
+        deposit.setApplicationContext(m_appContext);
+        deposit.setSendImUrl(m_sendImUrl);
+        deposit.setEslRequestController(controller);
+        deposit.setDepositRegistry(m_depositRegistry);
+        deposit.setMailboxManager(m_mailboxManager);
+        deposit.setValidUsers(m_validUsers);
+        deposit.setOperatorAddr(m_operatorAddr);
+        deposit.setHzEnabled(m_hzEnabled);
+        deposit.setHzPublisher(m_hzPublisher);
+
+        Retrieve retrieve = new Retrieve();
+        retrieve.setValidUsers(m_validUsers);
+        retrieve.setMailboxManager(m_mailboxManager);
+        retrieve.setEslRequestController(controller);
+
+        VoiceMail voicemail = new VoiceMail();
+        voicemail.setDepositAction(deposit);
+        voicemail.setRetrieveAction(retrieve);
+        voicemail.setEslRequestController(controller);
+        return voicemail;
+    }
+
+    @Override
+    public void setApplicationContext(ApplicationContext context) throws BeansException {
+        m_appContext = context;
+    }
+
+    public void setOperatorAddr(String operatorAddr) {
+        m_operatorAddr = operatorAddr;
+    }
+
+    public void setValidUsers(ValidUsers validUsers) {
+        m_validUsers = validUsers;
+    }
+
+    public void setMailboxManager(MailboxManager manager) {
+        m_mailboxManager = manager;
+    }
+
+    public void setAdmissionController(AdmissionController admissionController) {
+        m_admissionController = admissionController;
+    }
+
+    public void setVoicemailConfiguration(ApplicationConfiguraton config) {
+        m_voicemailConfiguration = config;
+    }
+
+    public void setRecordRate(int recordRate) {
+        m_recordRate = recordRate;
+    }
+
+    public void setRecordTime(int recordTime) {
+        m_recordTime = recordTime;
+    }
+
+    public void setSendImUrl(String url) {
+        m_sendImUrl = url;
+    }
+
+    public void setDepositRegistry(DepositRegistry depositRegistry) {
+        m_depositRegistry = depositRegistry;
+    }
+
+    public void setHzEnabled(boolean enabled) {
+        m_hzEnabled = enabled;
+    }
+
+    public void setHzPublisher(HzEventPublisher hzPublisher) {
+        m_hzPublisher = hzPublisher;
+    }
+}
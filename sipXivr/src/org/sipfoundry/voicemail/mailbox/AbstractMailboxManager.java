@@ -18,19 +18,18 @@ package org.sipfoundry.voicemail.mailbox;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.SequenceInputStream;
-
-import javax.sound.sampled.AudioFileFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.sipfoundry.commons.userdb.User;
+import org.sipfoundry.sipxivr.AdmissionController;
 import org.sipfoundry.sipxivr.email.Emailer;
+import org.sipfoundry.sipxivr.rest.PooledHttpClient;
 import org.sipfoundry.sipxivr.rest.RestfulRequest;
 import org.sipfoundry.voicemail.Mwi;
 import org.sipfoundry.voicemail.mailbox.MessageDescriptor.Priority;
@@ -48,6 +47,12 @@ public abstract class AbstractMailboxManager implements MailboxManager {
     private String m_identity;
     private String m_audioFormat;
     private String m_altAudioFormat;
+    private MwiCounters m_mwiCounters = new MwiCounters();
+    private PooledHttpClient m_httpClient = PooledHttpClient.getDefault();
+    private int m_messageIdBlockSize = 50;
+    private AdmissionController m_admissionController;
+    // set while updateMessages runs on the current thread
+    private final ThreadLocal<Boolean> m_batchInProgress = new ThreadLocal<Boolean>();
 
     protected abstract VmMessage saveTempMessageInStorage(User destUser, TempMessage message,
             MessageDescriptor descriptor, Folder storageFolder, String messageId);
@@ -64,6 +69,115 @@ public abstract class AbstractMailboxManager implements MailboxManager {
     
     protected abstract String nextMessageId();
 
+    @Override
+    public MailboxDetails getMwiCounts(String username) {
+        MailboxDetails counts = m_mwiCounters != null ? m_mwiCounters.getCounts(username) : null;
+        if (counts == null) {
+            counts = reconcileMwiCounts(username);
+        }
+        return counts;
+    }
+
+    @Override
+    public MailboxDetails reconcileMwiCounts(String username) {
+        long generation = m_mwiCounters != null ? m_mwiCounters.getGeneration(username) : 0;
+        long start = System.currentTimeMillis();
+        MailboxDetails details = getMailboxDetails(username);
+        recordLatency(start);
+        if (m_mwiCounters != null) {
+            m_mwiCounters.reconcile(username, generation, details);
+        }
+        return details;
+    }
+
+    /**
+     * Reports the time since start to the admission controller, which sheds calls while the
+     * mailstore is slow
+     */
+    protected void recordLatency(long start) {
+        if (m_admissionController != null) {
+            m_admissionController.recordLatency(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Records a message added to (delta 1) or removed from (delta -1) the user's inbox
+     */
+    protected void updateMwiCounts(String username, boolean unheard, int delta) {
+        if (m_mwiCounters != null) {
+            m_mwiCounters.update(username, unheard, delta);
+        }
+    }
+
+    /**
+     * Records an inbox message changing from heard to unheard or the other way around
+     */
+    protected void updateMwiCounts(String username, boolean unheard) {
+        if (m_mwiCounters != null) {
+            m_mwiCounters.update(username, unheard);
+        }
+    }
+
+    protected void invalidateMwiCounts(String username) {
+        if (m_mwiCounters != null) {
+            m_mwiCounters.invalidate(username);
+        }
+    }
+
+    protected void sendMwi(User user) {
+        if (m_batchInProgress.get() != null) {
+            // sent once the batch is done
+            return;
+        }
+        m_mwi.sendMWI(user, getMwiCounts(user.getUserName()));
+    }
+
+    /**
+     * Applies the action message by message, MWI notifications being held until the end
+     */
+    @Override
+    public List<String> updateMessages(User user, List<String> messageIds, MessageAction action, String argument) {
+        List<String> notFound = new ArrayList<String>();
+        m_batchInProgress.set(Boolean.TRUE);
+        try {
+            for (String messageId : messageIds) {
+                try {
+                    updateMessage(user, messageId, action, argument);
+                } catch (MessageNotFoundException ex) {
+                    notFound.add(messageId);
+                }
+            }
+        } finally {
+            m_batchInProgress.remove();
+        }
+        if (action.affectsMwi()) {
+            sendMwi(user);
+        }
+        return notFound;
+    }
+
+    private void updateMessage(User user, String messageId, MessageAction action, String argument) {
+        switch (action) {
+        case HEARD:
+            markMessageHeard(user, messageId);
+            break;
+        case UNHEARD:
+            markMessageUnheard(user, messageId);
+            break;
+        case MOVE:
+            moveMessageToFolder(user, messageId, argument);
+            break;
+        case DELETE:
+            deleteMessage(user, messageId);
+            break;
+        case SUBJECT:
+            updateMessageSubject(user, messageId, argument);
+            break;
+        default:
+            throw new IllegalArgumentException(action.toString());
+        }
+    }
+
     @Override
     public final TempMessage createTempMessage(String username, String fromUri, boolean audio) {
         return createTempMessage(username, fromUri, m_audioFormat, audio);
@@ -103,11 +217,13 @@ public abstract class AbstractMailboxManager implements MailboxManager {
 
         if (!message.isStored()) {
             String messageId = nextMessageId();
+            long start = System.currentTimeMillis();
             VmMessage savedMessage = saveTempMessageInStorage(
                     destUser,
                     message,
                     createMessageDescriptor(destUser.getUserName(), message, messageId, subject,
                             destUser.getIdentity()), folder, messageId);
+            recordLatency(start);
             message.setSavedMessageId(messageId);
             message.setStored(true);
             if (savedMessage != null) {
@@ -156,7 +272,7 @@ public abstract class AbstractMailboxManager implements MailboxManager {
 
         // /sipxconfig/rest/my/mailbox/200/preferences/activegreeting/standard
 
-        RestfulRequest rr = new RestfulRequest(m_configUrl + "/sipxconfig/rest/my/mailbox/" + user.getUserName()
+        RestfulRequest rr = new RestfulRequest(m_httpClient, m_configUrl + "/sipxconfig/rest/my/mailbox/" + user.getUserName()
                 + "/preferences/activegreeting/", user.getUserName(), m_secret);
 
         try {
@@ -174,7 +290,7 @@ public abstract class AbstractMailboxManager implements MailboxManager {
     public final boolean changePin(User destUser, String newPin) {
         try {
             // Use sipXconfig's RESTful interface to change the PIN
-            RestfulRequest rr = new RestfulRequest(m_configUrl + "/sipxconfig/rest/my/voicemail/pin/",
+            RestfulRequest rr = new RestfulRequest(m_httpClient, m_configUrl + "/sipxconfig/rest/my/voicemail/pin/",
                     destUser.getUserName(), m_secret);
             return rr.put(newPin);
         } catch (Exception e) {
@@ -187,7 +303,7 @@ public abstract class AbstractMailboxManager implements MailboxManager {
     public final boolean manageSpecialMode(User user, boolean enable) {
         try {
             // Use sipXconfig's RESTful interface to change the special mode
-            RestfulRequest rr = new RestfulRequest(m_configUrl + "/sipxconfig/rest/auto-attendant/specialmode",
+            RestfulRequest rr = new RestfulRequest(m_httpClient, m_configUrl + "/sipxconfig/rest/auto-attendant/specialmode",
                     user.getUserName(), m_secret);
             if (enable) {
                 return rr.put(null);
@@ -205,7 +321,7 @@ public abstract class AbstractMailboxManager implements MailboxManager {
         try {
             String url = String.format("%s/sipxconfig/rest/auto-attendant/livemode/%s", m_configUrl, code);
             // Use sipXconfig's RESTful interface to change the special mode
-            RestfulRequest rr = new RestfulRequest(url, "superadmin", m_secret);
+            RestfulRequest rr = new RestfulRequest(m_httpClient, url, "superadmin", m_secret);
             if (enable) {
                 return rr.put(null);
             } else {
@@ -271,61 +387,33 @@ public abstract class AbstractMailboxManager implements MailboxManager {
     }
 
     protected void concatAudio(File newFile, File orig1, File orig2) throws Exception {
-        if (getAudioFormat().equals("wav")) {
-            concatWavAudio(newFile, orig1, orig2);
-        } if (getAudioFormat().equals("mp3")) {
-            concatMP3Audio(newFile, orig1, orig2);
-        }
-    }
-
-    private void concatWavAudio(File newFile, File orig1, File orig2) throws Exception {
-        String operation = "dunno";
-        AudioInputStream clip1 = null;
-        AudioInputStream clip2 = null;
-        AudioInputStream concatStream = null;
+        FileInputStream first = new FileInputStream(orig1);
+        FileInputStream second;
         try {
-            operation = "getting AudioInputStream from " + orig1.getPath();
-            clip1 = AudioSystem.getAudioInputStream(orig1);
-            operation = "getting AudioInputStream from " + orig2.getPath();
-            clip2 = AudioSystem.getAudioInputStream(orig2);
-
-            operation = "building SequnceInputStream";
-            concatStream = new AudioInputStream(new SequenceInputStream(clip1, clip2), clip1.getFormat(),
-                    clip1.getFrameLength() + clip2.getFrameLength());
-
-            operation = "writing SequnceInputStream to " + newFile.getPath();
-            AudioSystem.write(concatStream, AudioFileFormat.Type.WAVE, newFile);
-            LOG.info("VmMessage::concatAudio created combined file " + newFile.getPath());
-        } catch (Exception e) {
-            String trouble = "VmMessage::concatAudio Problem while " + operation;
-            throw new Exception(trouble, e);
-        } finally {
-            IOUtils.closeQuietly(clip1);
-            IOUtils.closeQuietly(clip2);
-            IOUtils.closeQuietly(concatStream);
+            second = new FileInputStream(orig2);
+        } catch (IOException ex) {
+            IOUtils.closeQuietly(first);
+            throw ex;
         }
+        concatAudio(newFile, first, second);
     }
 
-    private void concatMP3Audio(File newFile, File orig1, File orig2) throws Exception {
-        FileInputStream comment = new FileInputStream(orig1);
-        FileInputStream original = new FileInputStream(orig2);
-        SequenceInputStream concatStream = new SequenceInputStream(comment, original);
-        FileOutputStream concat = new FileOutputStream(newFile);
+    /**
+     * Streams both recordings into newFile, the streams are closed
+     */
+    protected void concatAudio(File newFile, InputStream orig1, InputStream orig2) throws Exception {
         try {
-
-            int temp;
-
-            while( ( temp = concatStream.read() ) != -1)
-            {
-                concat.write(temp);
+            if (getAudioFormat().equals("wav")) {
+                AudioConcatenator.concatWav(newFile, orig1, orig2);
+            } else if (getAudioFormat().equals("mp3")) {
+                AudioConcatenator.concatMp3(newFile, orig1, orig2);
             }
-        } catch (Exception ex) {
-            throw new Exception("VmMessage::concatAudio Problem while writting MP3 file", ex);
+            LOG.info("VmMessage::concatAudio created combined file " + newFile.getPath());
+        } catch (IOException ex) {
+            throw new Exception("VmMessage::concatAudio Problem while writing " + newFile.getPath(), ex);
         } finally {
-            IOUtils.closeQuietly(concat);
-            IOUtils.closeQuietly(concatStream);
-            IOUtils.closeQuietly(comment);
-            IOUtils.closeQuietly(original);
+            IOUtils.closeQuietly(orig1);
+            IOUtils.closeQuietly(orig2);
         }
     }
 
@@ -373,6 +461,21 @@ public abstract class AbstractMailboxManager implements MailboxManager {
         m_mwi = mwiManager;
     }
 
+    /**
+     * @param mwiCounters null to count the messages of the mailbox for every MWI
+     */
+    public void setMwiCounters(MwiCounters mwiCounters) {
+        m_mwiCounters = mwiCounters;
+    }
+
+    public void setHttpClient(PooledHttpClient httpClient) {
+        m_httpClient = httpClient;
+    }
+
+    public void setAdmissionController(AdmissionController admissionController) {
+        m_admissionController = admissionController;
+    }
+
     public void setIvrIdentity(String identity) {
         m_identity = identity;
     }
@@ -381,6 +484,17 @@ public abstract class AbstractMailboxManager implements MailboxManager {
     	return m_identity;
     }
 
+    /**
+     * @param messageIdBlockSize message ids reserved at once in the persistent counter
+     */
+    public void setMessageIdBlockSize(int messageIdBlockSize) {
+        m_messageIdBlockSize = messageIdBlockSize;
+    }
+
+    protected int getMessageIdBlockSize() {
+        return m_messageIdBlockSize;
+    }
+
     public void setAudioFormat(String format) {
         m_audioFormat = format;
         if (m_audioFormat.equals("mp3")) {
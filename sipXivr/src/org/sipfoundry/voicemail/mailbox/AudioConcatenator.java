@@ -0,0 +1,203 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Streaming concatenation of two recordings, audio is copied as is and never decoded.
+ *
+ * MP3 frames are self contained so the files are simply appended. For WAV only the data chunks
+ * are copied, behind the format chunk of the first recording and a rewritten RIFF header.
+ *
+ * Sources are read once from their current position; file streams are copied with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, any other
+ * stream (e.g. GridFS) through a buffer.
+ */
+public final class AudioConcatenator {
+    private static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int WAV_HEADER_SIZE = 12;
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final long UNKNOWN_LENGTH = 0xFFFFFFFFL;
+
+    private AudioConcatenator() {
+    }
+
+    public static void concatMp3(File newFile, InputStream first, InputStream second) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(newFile, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            copy(first, channel, -1);
+            copy(second, channel, -1);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void concatWav(File newFile, InputStream first, InputStream second) throws IOException {
+        WavHeader firstHeader = readWavHeader(first);
+        WavHeader secondHeader = readWavHeader(second);
+        byte[] format = firstHeader.m_format;
+        if (!Arrays.equals(format, secondHeader.m_format)) {
+            LOG.warn("AudioConcatenator::concatWav formats differ, using the first one for " + newFile.getPath());
+        }
+        RandomAccessFile out = new RandomAccessFile(newFile, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            int dataOffset = WAV_HEADER_SIZE + CHUNK_HEADER_SIZE + format.length + CHUNK_HEADER_SIZE;
+            channel.position(dataOffset);
+            long dataLength = copy(first, channel, firstHeader.m_dataLength)
+                    + copy(second, channel, secondHeader.m_dataLength);
+            if (dataLength % 2 != 0) {
+                // chunks are word aligned
+                channel.write(ByteBuffer.wrap(new byte[1]));
+            }
+            ByteBuffer header = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(ascii("RIFF")).putInt((int) (channel.size() - CHUNK_HEADER_SIZE)).put(ascii("WAVE"));
+            header.put(ascii("fmt ")).putInt(format.length).put(format);
+            header.put(ascii("data")).putInt((int) dataLength);
+            header.flip();
+            channel.write(header, 0);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads up to the start of the audio data
+     */
+    private static WavHeader readWavHeader(InputStream in) throws IOException {
+        ByteBuffer riff = readFully(in, WAV_HEADER_SIZE);
+        if (!"RIFF".equals(ascii(riff, 0)) || !"WAVE".equals(ascii(riff, 8))) {
+            throw new IOException("not a WAV file");
+        }
+        WavHeader header = new WavHeader();
+        for (;;) {
+            ByteBuffer chunk = readFully(in, CHUNK_HEADER_SIZE);
+            String id = ascii(chunk, 0);
+            long size = chunk.getInt(4) & UNKNOWN_LENGTH;
+            if (id.equals("data")) {
+                if (header.m_format == null) {
+                    throw new IOException("WAV data before format chunk");
+                }
+                // not known if the recording was in progress when the header was written
+                header.m_dataLength = size == 0 || size == UNKNOWN_LENGTH ? -1 : size;
+                return header;
+            }
+            if (id.equals("fmt ")) {
+                header.m_format = readFully(in, (int) size).array();
+                skipFully(in, size % 2);
+            } else {
+                skipFully(in, size + size % 2);
+            }
+        }
+    }
+
+    /**
+     * @param count bytes to copy, -1 up to the end of the stream
+     * @return bytes copied
+     */
+    private static long copy(InputStream in, FileChannel out, long count) throws IOException {
+        if (in instanceof FileInputStream) {
+            FileChannel source = ((FileInputStream) in).getChannel();
+            long position = source.position();
+            long end = count < 0 ? source.size() : Math.min(source.size(), position + count);
+            long start = position;
+            while (position < end) {
+                position += source.transferTo(position, end - position, out);
+            }
+            source.position(position);
+            return position - start;
+        }
+        ReadableByteChannel source = Channels.newChannel(in);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long copied = 0;
+        while (count < 0 || copied < count) {
+            if (count >= 0) {
+                buffer.limit((int) Math.min(BUFFER_SIZE, count - copied));
+            }
+            int read = source.read(buffer);
+            if (read < 0) {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+            copied += read;
+        }
+        return copied;
+    }
+
+    private static ByteBuffer readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(bytes, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("truncated WAV header");
+            }
+            offset += read;
+        }
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("truncated WAV header");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static String ascii(ByteBuffer buffer, int offset) {
+        return new String(buffer.array(), offset, 4, StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static class WavHeader {
+        private byte[] m_format;
+        private long m_dataLength;
+    }
+}
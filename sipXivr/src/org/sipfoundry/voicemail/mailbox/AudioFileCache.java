@@ -0,0 +1,237 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Local copies of audio kept in a database (greetings, recorded names), so that the prompts
+ * played on every deposit do not have to be downloaded every time.
+ *
+ * Files are keyed by the identity of their content (e.g. id and upload date), which never goes
+ * stale, and evicted least recently used first when the cache grows over its size. Which content
+ * a name (mailbox, greeting type...) points to is remembered for a short time only, because other
+ * servers may change it; changes made by this server invalidate the name right away.
+ *
+ * A file returned may still be played after it is evicted, evicted files are only deleted after
+ * a grace period longer than any prompt.
+ */
+public class AudioFileCache {
+    private static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
+    private static final long EVICTION_GRACE = TimeUnit.MINUTES.toMillis(10);
+    private final File m_directory;
+    private final LinkedHashMap<String, File> m_files = new LinkedHashMap<String, File>(16, 0.75f, true);
+    // evicted files by key, oldest first, deleted once their grace period is over
+    private final LinkedHashMap<String, Evicted> m_evicted = new LinkedHashMap<String, Evicted>();
+    private final ConcurrentMap<String, Lookup> m_lookups = new ConcurrentHashMap<String, Lookup>();
+    private final AtomicLong m_lastLookupPurge = new AtomicLong(System.currentTimeMillis());
+    private final long m_maxSize;
+    private final long m_lookupTtl;
+    private final long m_evictionGrace;
+    private long m_size;
+
+    public interface Source {
+        /**
+         * @return identity of the content, has to change whenever the content does
+         */
+        String getKey();
+
+        String getExtension();
+
+        void writeTo(File file) throws IOException;
+    }
+
+    public interface Loader {
+        /**
+         * @return the content currently named, null if none
+         */
+        Source load();
+    }
+
+    /**
+     * Files left in directory are removed
+     *
+     * @param maxSize size in bytes above which the least recently used files are removed
+     * @param lookupTtl milliseconds during which a name is assumed to point to the same content
+     */
+    public AudioFileCache(File directory, long maxSize, long lookupTtl) {
+        this(directory, maxSize, lookupTtl, EVICTION_GRACE);
+    }
+
+    /**
+     * @param evictionGrace milliseconds during which an evicted file may still be played
+     */
+    public AudioFileCache(File directory, long maxSize, long lookupTtl, long evictionGrace) {
+        m_directory = directory;
+        m_maxSize = maxSize;
+        m_lookupTtl = lookupTtl;
+        m_evictionGrace = evictionGrace;
+        FileUtils.deleteQuietly(directory);
+        directory.mkdirs();
+    }
+
+    /**
+     * @return local copy of the content named by name, null if there is none
+     */
+    public File get(String name, Loader loader) throws IOException {
+        Lookup lookup = m_lookups.get(name);
+        if (lookup != null && lookup.m_expires > System.currentTimeMillis()) {
+            if (lookup.m_key == null) {
+                return null;
+            }
+            File file = getFile(lookup.m_key);
+            if (file != null) {
+                return file;
+            }
+        }
+        purgeLookups();
+        Source source = loader.load();
+        if (source == null) {
+            m_lookups.put(name, new Lookup(null, m_lookupTtl));
+            return null;
+        }
+        File file = getFile(source.getKey());
+        if (file == null) {
+            file = download(source);
+        }
+        m_lookups.put(name, new Lookup(source.getKey(), m_lookupTtl));
+        return file;
+    }
+
+    public void invalidate(String name) {
+        m_lookups.remove(name);
+    }
+
+    public void invalidateAll() {
+        m_lookups.clear();
+    }
+
+    int getLookupCount() {
+        return m_lookups.size();
+    }
+
+    /**
+     * An evicted file still in its grace period is taken back, deleting it later would remove the
+     * file of a name looked up again
+     */
+    private synchronized File getFile(String key) {
+        File file = m_files.get(key);
+        if (file == null) {
+            Evicted evicted = m_evicted.remove(key);
+            if (evicted != null && evicted.m_file.exists()) {
+                file = evicted.m_file;
+                m_files.put(key, file);
+                m_size += file.length();
+                evict(key);
+            }
+        }
+        return file;
+    }
+
+    private File download(Source source) throws IOException {
+        File tmpFile = File.createTempFile("download_", ".tmp", m_directory);
+        File file = new File(m_directory, source.getKey() + "." + source.getExtension());
+        try {
+            source.writeTo(tmpFile);
+            // concurrent downloads of the same content replace each other with the same audio
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmpFile.getPath() + " to " + file.getPath());
+            }
+        } finally {
+            FileUtils.deleteQuietly(tmpFile);
+        }
+        synchronized (this) {
+            m_evicted.remove(source.getKey());
+            if (m_files.put(source.getKey(), file) == null) {
+                m_size += file.length();
+            }
+            evict(source.getKey());
+        }
+        return file;
+    }
+
+    private void evict(String keep) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, File>> entries = m_files.entrySet().iterator();
+        while (m_size > m_maxSize && entries.hasNext()) {
+            Map.Entry<String, File> entry = entries.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            m_size -= entry.getValue().length();
+            LOG.debug("AudioFileCache::evict " + entry.getValue().getPath());
+            m_evicted.put(entry.getKey(), new Evicted(entry.getValue(), now + m_evictionGrace));
+            entries.remove();
+        }
+        Iterator<Evicted> evicted = m_evicted.values().iterator();
+        while (evicted.hasNext()) {
+            Evicted next = evicted.next();
+            if (next.m_deleteAfter > now) {
+                break;
+            }
+            FileUtils.deleteQuietly(next.m_file);
+            evicted.remove();
+        }
+    }
+
+    /**
+     * Removes the expired lookups, at most once per lookup ttl
+     */
+    private void purgeLookups() {
+        long lastPurge = m_lastLookupPurge.get();
+        long now = System.currentTimeMillis();
+        if (now - lastPurge < m_lookupTtl || !m_lastLookupPurge.compareAndSet(lastPurge, now)) {
+            return;
+        }
+        for (Iterator<Lookup> i = m_lookups.values().iterator(); i.hasNext();) {
+            if (i.next().m_expires <= now) {
+                i.remove();
+            }
+        }
+    }
+
+    private static class Evicted {
+        private final File m_file;
+        private final long m_deleteAfter;
+
+        Evicted(File file, long deleteAfter) {
+            m_file = file;
+            m_deleteAfter = deleteAfter;
+        }
+    }
+
+    private static class Lookup {
+        private final String m_key;
+        private final long m_expires;
+
+        Lookup(String key, long ttl) {
+            m_key = key;
+            m_expires = System.currentTimeMillis() + ttl;
+        }
+    }
+}
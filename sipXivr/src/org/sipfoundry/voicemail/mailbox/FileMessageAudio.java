@@ -0,0 +1,61 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Message audio stored in a file, transferred with FileChannel.transferTo
+ */
+public class FileMessageAudio extends MessageAudio {
+    private final File m_file;
+
+    public FileMessageAudio(File file) {
+        super(file.getName(), FilenameUtils.getExtension(file.getName()), file.length(), file.lastModified(),
+                String.format("\"%x-%x\"", file.length(), file.lastModified()));
+        m_file = file;
+    }
+
+    @Override
+    public void transferTo(long offset, long count, OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(m_file);
+        try {
+            FileChannel channel = in.getChannel();
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = offset;
+            long end = offset + count;
+            while (position < end) {
+                long transferred = channel.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    // file truncated meanwhile
+                    break;
+                }
+                position += transferred;
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
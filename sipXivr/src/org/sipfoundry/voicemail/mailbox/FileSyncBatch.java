@@ -0,0 +1,97 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Group commit of fsync calls: files to be synced by concurrent callers are collected while a
+ * sync is in progress and then synced together by one of them, the others wait for it.
+ */
+public class FileSyncBatch {
+    // files waiting for the next sync, every caller holds the batch its files went into
+    private Batch m_pending = new Batch();
+    private boolean m_syncing;
+
+    /**
+     * Returns once the content of the files (or the entries of the directories) is on disk
+     */
+    public void sync(File... files) throws IOException {
+        Batch batch;
+        synchronized (this) {
+            batch = m_pending;
+            batch.m_files.addAll(Arrays.asList(files));
+            while (m_syncing && !batch.m_done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for sync", e);
+                }
+            }
+            if (batch.m_done) {
+                // synced by another caller
+                if (batch.m_failure != null) {
+                    throw new IOException("Sync failed", batch.m_failure);
+                }
+                return;
+            }
+            m_syncing = true;
+            m_pending = new Batch();
+        }
+        IOException failure = null;
+        try {
+            for (File file : batch.m_files) {
+                force(file);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        synchronized (this) {
+            m_syncing = false;
+            batch.m_done = true;
+            batch.m_failure = failure;
+            notifyAll();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void force(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories cannot be opened on every platform, nothing more can be done there
+            if (!file.isDirectory()) {
+                throw e;
+            }
+        }
+    }
+
+    private static class Batch {
+        private final Set<File> m_files = new LinkedHashSet<File>();
+        private boolean m_done;
+        private IOException m_failure;
+    }
+}
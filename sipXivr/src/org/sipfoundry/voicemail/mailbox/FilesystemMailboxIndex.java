@@ -0,0 +1,388 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * In memory index of one filesystem mailbox: message id to folder, heard/urgent state and the
+ * files that make up the message.
+ *
+ * The index is loaded lazily, folder by folder, on first access. {@link FilesystemMailboxManager}
+ * keeps it current when it changes the mailbox itself; changes made by anybody else (e.g. the
+ * voicemail_clean script) are detected by comparing the modification time of each folder with the
+ * one recorded when the folder was last scanned, in which case only that folder is scanned again.
+ * A change made within a second of the scan may leave the modification time as it was, such a
+ * folder is scanned again until the scan is a second older than its modification time. The
+ * manager takes the modification times before it changes a folder ({@link #beginChange}), a
+ * folder also changed by somebody else since it was scanned is then scanned again.
+ *
+ * With checkInterval set, the folders are checked for outside changes at most once per interval.
+ */
+public class FilesystemMailboxIndex {
+    private static final Comparator<Entry> ENTRY_ID_COMPARATOR = new EntryIdComparator();
+    // older descriptors being committed were left behind by a crash
+    private static final long STALE_DESCRIPTOR_AGE = 600000;
+    // coarsest modification time resolution of the filesystems, in ms
+    private static final long MODIFICATION_TIME_RESOLUTION = 1000;
+
+    private final File m_userDirectory;
+    private final long m_checkInterval;
+    private final Map<String, Entry> m_entries = new HashMap<String, Entry>();
+    // folders that were scanned at least once
+    private final Map<Folder, FolderState> m_folderStates = new EnumMap<Folder, FolderState>(Folder.class);
+    private long m_lastCheck;
+
+    public FilesystemMailboxIndex(File userDirectory) {
+        this(userDirectory, 0);
+    }
+
+    /**
+     * @param checkInterval minimum time between two checks for outside changes in ms, 0 to check
+     *        on every access
+     */
+    public FilesystemMailboxIndex(File userDirectory, long checkInterval) {
+        m_userDirectory = userDirectory;
+        m_checkInterval = checkInterval;
+    }
+
+    public synchronized Entry getEntry(String messageId) {
+        validate();
+        return m_entries.get(messageId);
+    }
+
+    /**
+     * Messages (entries with a descriptor) in a folder, oldest first: message ids are allocated in
+     * increasing order, unlike the modification time of a descriptor they never change
+     */
+    public synchronized List<Entry> getEntries(Folder folder) {
+        validate();
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Entry entry : m_entries.values()) {
+            if (entry.getFolder() == folder && entry.hasDescriptor()) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, ENTRY_ID_COMPARATOR);
+        return entries;
+    }
+
+    public List<String> getMessageIds(Folder folder, boolean unheardOnly) {
+        List<String> messageIds = new LinkedList<String>();
+        for (Entry entry : getEntries(folder)) {
+            if (!unheardOnly || entry.isUnheard()) {
+                messageIds.add(entry.getMessageId());
+            }
+        }
+        return messageIds;
+    }
+
+    /**
+     * To be called before the manager changes the files of the folders, the change is then passed
+     * to {@link #put}, {@link #remove} or {@link #removeFolder}
+     */
+    public Change beginChange(Folder... folders) {
+        Change change = new Change();
+        for (Folder folder : folders) {
+            change.m_folderTimes.put(folder, getModificationTime(getFolderDirectory(folder)));
+        }
+        return change;
+    }
+
+    /**
+     * Adds or replaces an entry after the manager changed the files of a message. The folders
+     * touched by the change are marked as up to date so they are not scanned again.
+     */
+    public synchronized void put(Entry entry, Change change) {
+        Entry previous = m_entries.put(entry.getMessageId(), entry);
+        if (previous != null && previous.getFolder() != entry.getFolder()) {
+            folderChanged(previous.getFolder(), change);
+        }
+        folderChanged(entry.getFolder(), change);
+    }
+
+    public synchronized void remove(String messageId, Change change) {
+        Entry previous = m_entries.remove(messageId);
+        if (previous != null) {
+            folderChanged(previous.getFolder(), change);
+        }
+    }
+
+    public synchronized void removeFolder(Folder folder, Change change) {
+        removeEntries(folder);
+        folderChanged(folder, change);
+    }
+
+    private void folderChanged(Folder folder, Change change) {
+        // a folder never scanned will be loaded (with this change) on next access
+        FolderState state = m_folderStates.get(folder);
+        if (state == null) {
+            return;
+        }
+        if (change.m_folderTimes.containsKey(folder) && state.isCurrent(change.m_folderTimes.get(folder))) {
+            long now = System.currentTimeMillis();
+            m_folderStates.put(folder, new FolderState(getModificationTime(getFolderDirectory(folder)), now));
+        } else {
+            // changed by somebody else too, scanned on next access
+            m_folderStates.remove(folder);
+        }
+    }
+
+    private void validate() {
+        long now = System.currentTimeMillis();
+        boolean check = now - m_lastCheck >= m_checkInterval;
+        if (check) {
+            m_lastCheck = now;
+        }
+        for (Folder folder : Folder.values()) {
+            FolderState state = m_folderStates.get(folder);
+            if (state == null || check) {
+                FileTime current = getModificationTime(getFolderDirectory(folder));
+                if (state == null || !state.isCurrent(current)) {
+                    scan(folder, current, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param scanTime taken before the modification time of the folder
+     */
+    private void scan(Folder folder, FileTime modificationTime, long scanTime) {
+        removeEntries(folder);
+        m_folderStates.put(folder, new FolderState(modificationTime, scanTime));
+        String[] names = getFolderDirectory(folder).list();
+        if (names == null) {
+            return;
+        }
+        Map<String, Set<String>> filesByMessage = new HashMap<String, Set<String>>();
+        for (String name : names) {
+            if (isStaleDescriptor(folder, name, scanTime)) {
+                continue;
+            }
+            String messageId = getMessageId(name);
+            if (messageId != null) {
+                Set<String> files = filesByMessage.get(messageId);
+                if (files == null) {
+                    files = new HashSet<String>();
+                    filesByMessage.put(messageId, files);
+                }
+                files.add(name);
+            }
+        }
+        for (Map.Entry<String, Set<String>> message : filesByMessage.entrySet()) {
+            String messageId = message.getKey();
+            long timestamp = new File(getFolderDirectory(folder), messageId
+                    + FilesystemMailboxManager.MESSAGE_IDENTIFIER).lastModified();
+            m_entries.put(messageId, new Entry(messageId, folder, message.getValue(), timestamp));
+        }
+    }
+
+    /**
+     * Deletes the temporary descriptor if it is stale, the deletion does not make the folder scanned
+     * again
+     */
+    private boolean isStaleDescriptor(Folder folder, String name, long scanTime) {
+        if (!name.startsWith(FilesystemMailboxManager.DESCRIPTOR_TMP_PREFIX)
+                || !name.endsWith(FilesystemMailboxManager.DESCRIPTOR_TMP_SUFFIX)) {
+            return false;
+        }
+        File file = new File(getFolderDirectory(folder), name);
+        if (System.currentTimeMillis() - file.lastModified() < STALE_DESCRIPTOR_AGE || !file.delete()) {
+            return false;
+        }
+        m_folderStates.put(folder, new FolderState(getModificationTime(getFolderDirectory(folder)), scanTime));
+        return true;
+    }
+
+    private void removeEntries(Folder folder) {
+        for (Iterator<Entry> it = m_entries.values().iterator(); it.hasNext();) {
+            if (it.next().getFolder() == folder) {
+                it.remove();
+            }
+        }
+    }
+
+    private File getFolderDirectory(Folder folder) {
+        return new File(m_userDirectory, folder.toString());
+    }
+
+    /**
+     * Message files are named {messageId}-{suffix}, anything else (e.g. temporary recordings)
+     * is not part of the index
+     */
+    private static String getMessageId(String fileName) {
+        int separator = fileName.indexOf('-');
+        if (separator <= 0) {
+            return null;
+        }
+        String messageId = fileName.substring(0, separator);
+        return StringUtils.isNumeric(messageId) ? messageId : null;
+    }
+
+    private static FileTime getModificationTime(File directory) {
+        try {
+            return Files.getLastModifiedTime(directory.toPath());
+        } catch (IOException ex) {
+            // folder does not exist (yet)
+            return null;
+        }
+    }
+
+    private static boolean equals(FileTime time1, FileTime time2) {
+        return time1 == null ? time2 == null : time1.equals(time2);
+    }
+
+    /**
+     * Modification time of a scanned folder (null if the folder did not exist) and when it was
+     * taken
+     */
+    private static class FolderState {
+        private final FileTime m_modificationTime;
+        private final long m_scanTime;
+
+        FolderState(FileTime modificationTime, long scanTime) {
+            m_modificationTime = modificationTime;
+            m_scanTime = scanTime;
+        }
+
+        boolean isCurrent(FileTime modificationTime) {
+            if (!FilesystemMailboxIndex.equals(m_modificationTime, modificationTime)) {
+                return false;
+            }
+            // a change after the scan in the same tick of the filesystem clock went unnoticed
+            return m_modificationTime == null
+                    || m_scanTime - m_modificationTime.toMillis() >= MODIFICATION_TIME_RESOLUTION;
+        }
+    }
+
+    /**
+     * Modification times of folders before the manager changed them
+     */
+    public static class Change {
+        private final Map<Folder, FileTime> m_folderTimes = new EnumMap<Folder, FileTime>(Folder.class);
+    }
+
+    /**
+     * Immutable view of a message in the index
+     */
+    public static class Entry {
+        private final String m_messageId;
+        private final Folder m_folder;
+        private final Set<String> m_fileNames;
+        private final long m_timestamp;
+
+        public Entry(String messageId, Folder folder, Set<String> fileNames, long timestamp) {
+            m_messageId = messageId;
+            m_folder = folder;
+            m_fileNames = Collections.unmodifiableSet(new HashSet<String>(fileNames));
+            m_timestamp = timestamp;
+        }
+
+        public String getMessageId() {
+            return m_messageId;
+        }
+
+        public Folder getFolder() {
+            return m_folder;
+        }
+
+        public Set<String> getFileNames() {
+            return m_fileNames;
+        }
+
+        /**
+         * Modification time of the message descriptor
+         */
+        public long getTimestamp() {
+            return m_timestamp;
+        }
+
+        public boolean hasFile(String suffix) {
+            return m_fileNames.contains(m_messageId + suffix);
+        }
+
+        public boolean hasDescriptor() {
+            return hasFile(FilesystemMailboxManager.MESSAGE_IDENTIFIER);
+        }
+
+        public boolean isUnheard() {
+            return hasFile(FilesystemMailboxManager.STATUS_IDENTIFIER);
+        }
+
+        public boolean isUrgent() {
+            return hasFile(FilesystemMailboxManager.URGENT_IDENTIFIER);
+        }
+
+        public File getFile(File folderDirectory, String suffix) {
+            return new File(folderDirectory, m_messageId + suffix);
+        }
+
+        public List<File> getFiles(File folderDirectory) {
+            List<File> files = new ArrayList<File>();
+            for (String fileName : m_fileNames) {
+                files.add(new File(folderDirectory, fileName));
+            }
+            return files;
+        }
+
+        public Entry withFolder(Folder folder) {
+            return new Entry(m_messageId, folder, m_fileNames, m_timestamp);
+        }
+
+        public Entry withFile(String suffix) {
+            Set<String> fileNames = new HashSet<String>(m_fileNames);
+            fileNames.add(m_messageId + suffix);
+            return new Entry(m_messageId, m_folder, fileNames, m_timestamp);
+        }
+
+        public Entry withoutFile(String suffix) {
+            Set<String> fileNames = new HashSet<String>(m_fileNames);
+            fileNames.remove(m_messageId + suffix);
+            return new Entry(m_messageId, m_folder, fileNames, m_timestamp);
+        }
+    }
+
+    private static class EntryIdComparator implements Comparator<Entry> {
+        @Override
+        public int compare(Entry entry1, Entry entry2) {
+            // ids are numeric, shorter ones are smaller
+            String id1 = entry1.getMessageId();
+            String id2 = entry2.getMessageId();
+            if (id1.length() != id2.length()) {
+                return id1.length() < id2.length() ? -1 : 1;
+            }
+            return id1.compareTo(id2);
+        }
+    }
+}
@@ -17,52 +17,134 @@
 package org.sipfoundry.voicemail.mailbox;
 
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.apache.commons.lang.StringUtils;
 import org.sipfoundry.commons.userdb.User;
 import org.sipfoundry.commons.userdb.ValidUsers;
 import org.sipfoundry.voicemail.mailbox.MessageDescriptor.Priority;
 
 public class FilesystemMailboxManager extends AbstractMailboxManager {
-    private static final Comparator<File> FILE_DATE_COMPARATOR = new FileDateComparator();
+    static final String MESSAGE_IDENTIFIER = "-00.xml";
+    static final String STATUS_IDENTIFIER = "-00.sta";
+    static final String URGENT_IDENTIFIER = "-00.urg";
+    // no '-' in the name, not taken for a message file
+    static final String DESCRIPTOR_TMP_PREFIX = "descriptor_";
+    static final String DESCRIPTOR_TMP_SUFFIX = ".tmp";
     private static final String AUDIO_IDENTIFIER = "-00.%s";
-    private static final String MESSAGE_IDENTIFIER = "-00.xml";
     private static final String ORIGINAL_MESSAGE_IDENTIFIER = "-01.xml";
-    private static final String STATUS_IDENTIFIER = "-00.sta";
-    private static final String URGENT_IDENTIFIER = "-00.urg";
-    private static final String MESSAGE_REGEX = "^(\\d+)-00\\.xml$";
-    private static final String STATUS_REGEX = "^(\\d+)-00\\.sta$";
-    private static final String MESSAGEID_FILE_REGEX = "^%s-00.*";
     private static final String ORIGINAL_AUDIO_IDENTIFIER = "-01.%s";
     private static final String FW_AUDIO_IDENTIFIER = "-FW.%s";
+    private static final long MIGRATION_RETRY = 60000;
     private MessageDescriptorWriter m_descriptorWriter;
     private MessageDescriptorReader m_descriptorReader;
+    private final ConcurrentMap<String, FilesystemMailboxIndex> m_indexes =
+        new ConcurrentHashMap<String, FilesystemMailboxIndex>();
+    private MessageIdAllocator m_messageIds;
+    private final FileSyncBatch m_fileSync = new FileSyncBatch();
+    private boolean m_syncCommits;
+    private final ConcurrentMap<String, FolderManifest> m_manifests =
+        new ConcurrentHashMap<String, FolderManifest>();
+    private boolean m_useManifest;
+    private ExecutorService m_manifestCompactor;
+    private MailboxLayout m_layout;
+    private boolean m_migrateMailboxes;
+    private long m_indexCheckInterval;
+    private final ConcurrentMap<String, MigrationLock> m_migrationLocks =
+        new ConcurrentHashMap<String, MigrationLock>();
 
     public void init() {
         File mailstore = new File(m_mailstoreDirectory);
         if (!mailstore.exists()) {
             mailstore.mkdir();
         }
+        m_messageIds = new MessageIdFile(new File(m_mailstoreDirectory, ".."));
+        if (m_useManifest && m_manifestCompactor == null) {
+            m_manifestCompactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ManifestCompactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        if (m_layout == null || m_layout.getRoots().isEmpty()) {
+            m_layout = new FlatMailboxLayout(mailstore);
+            return;
+        }
+        if (!(m_layout instanceof FlatMailboxLayout)) {
+            for (File root : m_layout.getRoots()) {
+                if (isSameDirectory(root, mailstore)) {
+                    throw new IllegalArgumentException(String.format(
+                            "mailstore root %s is the mailstore directory %s", root, m_mailstoreDirectory));
+                }
+            }
+        }
+        if (m_migrateMailboxes) {
+            Thread migration = new Thread("MailboxMigration") {
+                @Override
+                public void run() {
+                    migrateMailboxes();
+                }
+            };
+            migration.setDaemon(true);
+            migration.start();
+        }
+    }
+
+    public void destroy() {
+        if (m_manifestCompactor != null) {
+            m_manifestCompactor.shutdown();
+        }
+    }
+
+    /**
+     * Moves all the mailboxes still in the flat mailstore directory to their place in the layout.
+     * Mailboxes are also moved one by one when first accessed, so the mailstore stays usable
+     * while this runs.
+     */
+    public void migrateMailboxes() {
+        File mailstore = new File(m_mailstoreDirectory);
+        File[] directories = mailstore.listFiles();
+        if (directories == null) {
+            return;
+        }
+        int migrated = 0;
+        for (File directory : directories) {
+            if (directory.isDirectory() && !directory.getName().startsWith(".")
+                    && !m_layout.getRoots().contains(directory) && MailstoreMigration.isMailbox(directory)) {
+                getUserDirectory(directory.getName());
+                migrated++;
+            }
+        }
+        LOG.info("FilesystemMailboxManager::migrateMailboxes " + migrated + " mailboxes migrated");
     }
 
     @Override
     public MailboxDetails getMailboxDetails(String username) {
-        FilenameFilter filter = new RegexFileFilter(MESSAGE_REGEX);
-        List<String> inboxMessages = extractMessages(getFolder(username, Folder.INBOX).listFiles(filter));
-        List<String> savedMessages = extractMessages(getFolder(username, Folder.SAVED).listFiles(filter));
-        List<String> deletedMessages = extractMessages(getFolder(username, Folder.DELETED).listFiles(filter));
-        List<String> conferenceMessages = extractMessages(getFolder(username, Folder.CONFERENCE).listFiles(filter));
-
-        FilenameFilter unheardFilter = new RegexFileFilter(STATUS_REGEX);
-        List<String> unheardMessages = extractMessages(getFolder(username, Folder.INBOX).listFiles(unheardFilter));
+        FilesystemMailboxIndex index = getIndex(username);
+        List<String> inboxMessages = index.getMessageIds(Folder.INBOX, false);
+        List<String> savedMessages = index.getMessageIds(Folder.SAVED, false);
+        List<String> deletedMessages = index.getMessageIds(Folder.DELETED, false);
+        List<String> conferenceMessages = index.getMessageIds(Folder.CONFERENCE, false);
+        List<String> unheardMessages = index.getMessageIds(Folder.INBOX, true);
         return new MailboxDetails(username, inboxMessages, savedMessages, deletedMessages, conferenceMessages,
                 unheardMessages);
     }
@@ -70,6 +152,7 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
     @Override
     protected VmMessage saveTempMessageInStorage(User destUser, TempMessage message, MessageDescriptor descriptor,
             Folder storageFolder, String messageId) {
+        FilesystemMailboxIndex.Change change = getIndex(destUser.getUserName()).beginChange(storageFolder);
         File folderDir = getFolder(destUser.getUserName(), storageFolder);
         File audioFile = new File(folderDir, messageId + String.format(AUDIO_IDENTIFIER, getAudioFormat()));
         File descriptorFile = new File(folderDir, messageId + MESSAGE_IDENTIFIER);
@@ -88,24 +171,71 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
                 FileUtils.touch(urgentFile);
             }
 
-            operation = "copying recording file to " + audioFile.getPath();
+            operation = "linking recording file to " + audioFile.getPath();
             LOG.debug("VmMessage::newMessage " + operation);
-            FileUtils.copyFile(new File(message.getTempPath()), audioFile, true);
+            linkOrCopy(new File(message.getTempPath()), audioFile);
 
             operation = "creating messageDescriptor " + descriptorFile.getPath();
             LOG.debug("VmMessage::newMessage " + operation);
-            m_descriptorWriter.writeObject(descriptor, descriptorFile);
+            commitDescriptor(descriptor, descriptorFile, audioFile);
         } catch (IOException e) {
             LOG.error("VmMessage::newMessage error while " + operation, e);
             return null;
         }
+        addToIndex(destUser.getUserName(), storageFolder, messageId, change, statusFile, urgentFile, audioFile,
+                descriptorFile);
         if (storageFolder == Folder.INBOX) {
-            m_mwi.sendMWI(destUser, getMailboxDetails(destUser.getUserName()));
+            sendMwi(destUser);
         }
         LOG.info("VmMessage::newMessage created message " + descriptorFile.getPath());
         return new VmMessage(messageId, audioFile, descriptor, urgent);
     }
 
+    /**
+     * Temp recordings are in the mailstore so the audio is linked, not copied. The temp recording
+     * may be stored again (e.g. sent to several mailboxes), so it cannot be moved.
+     */
+    private static void linkOrCopy(File source, File destination) throws IOException {
+        try {
+            Files.createLink(destination.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            LOG.debug("FileSystemMailboxManager::linkOrCopy copying " + source.getPath() + ", " + e.getMessage());
+            FileUtils.copyFile(source, destination, true);
+        }
+    }
+
+    /**
+     * The descriptor is what makes a message visible (see FilesystemMailboxIndex), it is written
+     * under a temporary name and renamed once all the other files of the message are in place.
+     *
+     * @param files other files of the message, the ones that exist are synced before the rename if
+     *        syncCommits is set
+     */
+    private void commitDescriptor(MessageDescriptor descriptor, File descriptorFile, File... files)
+        throws IOException {
+        File folder = descriptorFile.getParentFile();
+        File tmpFile = File.createTempFile(DESCRIPTOR_TMP_PREFIX, DESCRIPTOR_TMP_SUFFIX, folder);
+        try {
+            m_descriptorWriter.writeObject(descriptor, tmpFile);
+            if (m_syncCommits) {
+                List<File> toSync = new ArrayList<File>();
+                for (File file : files) {
+                    if (file.exists()) {
+                        toSync.add(file);
+                    }
+                }
+                toSync.add(tmpFile);
+                m_fileSync.sync(toSync.toArray(new File[toSync.size()]));
+            }
+            Files.move(tmpFile.toPath(), descriptorFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            if (m_syncCommits) {
+                m_fileSync.sync(folder);
+            }
+        } finally {
+            FileUtils.deleteQuietly(tmpFile);
+        }
+    }
+
     // Automatically saves in INBOX
     @Override
     protected VmMessage saveTempMessageInStorage(User destUser, TempMessage message, MessageDescriptor descriptor,
@@ -115,6 +245,7 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
 
     @Override
     protected VmMessage copyMessage(String newMessageId, User destUser, TempMessage message) {
+        FilesystemMailboxIndex.Change change = getIndex(destUser.getUserName()).beginChange(Folder.INBOX);
         // destination files
         File destinationInbox = getFolder(destUser.getUserName(), Folder.INBOX);
         File destStatus = new File(destinationInbox, newMessageId + STATUS_IDENTIFIER);
@@ -127,9 +258,7 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
                 + String.format(FW_AUDIO_IDENTIFIER, getAudioFormat()));
 
         // original files
-        File originalInbox = getFolder(message.getCurrentUser(), Folder.INBOX);
-        FilenameFilter filter = new RegexFileFilter(String.format(MESSAGEID_FILE_REGEX, message.getSavedMessageId()));
-        File[] originalFiles = originalInbox.listFiles(filter);
+        List<File> originalFiles = findFiles(message.getCurrentUser(), Folder.INBOX, message.getSavedMessageId());
         boolean urgent = false;
         MessageDescriptor descriptor = null;
 
@@ -146,7 +275,7 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
                     operation = "copying audio file " + destAudio.getPath();
                     FileUtils.copyFile(originalFile, destAudio);
                 } else if (originalFile.getName().endsWith(MESSAGE_IDENTIFIER)) {
-                    operation = "copying descriptor file " + destDescriptor.getPath();
+                    operation = "reading descriptor file " + originalFile.getPath();
                     descriptor = m_descriptorReader.readObject(originalFile);
                     if (descriptor.getOtherRecipients() != null) {
                         descriptor.addOtherRecipient(ValidUsers.getUserPart(descriptor.getId()));
@@ -154,7 +283,6 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
                     }
                     descriptor.setId(destUser.getIdentity());
                     descriptor.setSubject("Voice Message " + newMessageId);
-                    m_descriptorWriter.writeObject(descriptor, destDescriptor);
                 } else if (originalFile.getName().endsWith(
                         String.format(ORIGINAL_AUDIO_IDENTIFIER, getAudioFormat()))) {
                     operation = "copying original audio file " + originalDestAudio.getPath();
@@ -164,11 +292,19 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
                     FileUtils.copyFile(originalFile, destCombined);
                 }
             }
+            // written last, the message is visible once all its audio is in place
+            if (descriptor != null) {
+                operation = "creating descriptor file " + destDescriptor.getPath();
+                commitDescriptor(descriptor, destDescriptor, destStatus, destUrg, destAudio, originalDestAudio,
+                        destCombined);
+            }
         } catch (IOException e) {
             LOG.error("VmMessage::copy error while " + operation, e);
             return null;
         }
-        m_mwi.sendMWI(destUser, getMailboxDetails(destUser.getUserName()));
+        addToIndex(destUser.getUserName(), Folder.INBOX, newMessageId, change, destStatus, destUrg, destAudio,
+                destDescriptor, originalDestAudio, destCombined);
+        sendMwi(destUser);
         if (destCombined.exists()) {
             return new VmMessage(newMessageId, destCombined, descriptor, urgent);
         } else {
@@ -179,49 +315,40 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
     
     @Override
     protected String nextMessageId() {
-    	return nextMessageId(m_mailstoreDirectory + "/..");
+        return m_messageIds.nextMessageId();
     }
 
     @Override
     public VmMessage getVmMessage(String username, Folder folder, String messageId, boolean loadAudio) {
-        File mailboxFolder = getFolder(username, folder);
-        FilenameFilter filter = new RegexFileFilter(String.format("^%s%s", messageId, MESSAGE_IDENTIFIER));
-        File[] files = mailboxFolder.listFiles(filter);
-        if (files != null && files.length != 1) {
+        FilesystemMailboxIndex.Entry entry = getIndex(username).getEntry(messageId);
+        if (entry == null || entry.getFolder() != folder || !entry.hasDescriptor()) {
             throw new MessageNotFoundException();
         }
-        MessageDescriptor descriptor = m_descriptorReader.readObject(files[0]);
-        FilenameFilter filterById = new FileFilterByMessageId(messageId);
-        File[] audioFiles = mailboxFolder.listFiles(filterById);
-        File audioFile = null;
-        File originalFile = null;
-        File combinedFile = null;
-        boolean unheard = false;
-        boolean urgent = false;
-        for (File file : audioFiles) {
-            String fileName = file.getName();
-            if (fileName.endsWith(String.format(AUDIO_IDENTIFIER, getAudioFormat()))
-                    || fileName.endsWith(String.format(AUDIO_IDENTIFIER, getAltAudioFormat()))) {
-                audioFile = file;
-            } else if (fileName.endsWith(String.format(ORIGINAL_AUDIO_IDENTIFIER, getAudioFormat()))
-                    || fileName.endsWith(String.format(ORIGINAL_AUDIO_IDENTIFIER, getAltAudioFormat()))) {
-                originalFile = file;
-            } else if (fileName.endsWith(String.format(FW_AUDIO_IDENTIFIER, getAudioFormat()))
-                    || fileName.endsWith(String.format(FW_AUDIO_IDENTIFIER, getAltAudioFormat()))) {
-                combinedFile = file;
-            } else if (fileName.endsWith(STATUS_IDENTIFIER)) {
-                unheard = true;
-            } else if (fileName.endsWith(URGENT_IDENTIFIER)) {
-                urgent = true;
+        File mailboxFolder = getFolder(username, folder);
+        MessageDescriptor descriptor = readDescriptor(username, mailboxFolder, entry);
+        return new VmMessage(messageId, username, getAudioFile(mailboxFolder, entry), descriptor, folder,
+                entry.isUnheard(), entry.isUrgent());
+    }
+
+    /**
+     * Audio to play for a message: the combined audio of a forwarded message, the message audio or
+     * the original audio, in this order
+     */
+    private File getAudioFile(File mailboxFolder, FilesystemMailboxIndex.Entry entry) {
+        String[] identifiers = new String[] {
+            FW_AUDIO_IDENTIFIER, AUDIO_IDENTIFIER, ORIGINAL_AUDIO_IDENTIFIER
+        };
+        for (String identifier : identifiers) {
+            String[] suffixes = new String[] {
+                String.format(identifier, getAudioFormat()), String.format(identifier, getAltAudioFormat())
+            };
+            for (String suffix : suffixes) {
+                if (entry.hasFile(suffix)) {
+                    return entry.getFile(mailboxFolder, suffix);
+                }
             }
         }
-        if (combinedFile != null) {
-            return new VmMessage(messageId, username, combinedFile, descriptor, folder, unheard, urgent);
-        }
-        if (audioFile != null) {
-            return new VmMessage(messageId, username, audioFile, descriptor, folder, unheard, urgent);
-        }
-        return new VmMessage(messageId, username, originalFile, descriptor, folder, unheard, urgent);
+        return null;
     }
 
     @Override
@@ -230,31 +357,21 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
         if (messageFolder == Folder.SAVED) {
             return;
         }
+        FilesystemMailboxIndex.Entry entry = getEntry(message.getUserName(), messageFolder, message.getMessageId());
+        if (entry == null) {
+            return;
+        }
         try {
             boolean sendMwi = false;
-            FilenameFilter filterById = new FileFilterByMessageId(message.getMessageId());
-            File[] messageFiles = getFolder(message.getUserName(), messageFolder).listFiles(filterById);
             if (messageFolder == Folder.INBOX) {
-                File savedFolder = getFolder(message.getUserName(), Folder.SAVED);
-                for (File file : messageFiles) {
-                    String fileName = file.getName();
-                    // mark heard
-                    if (fileName.endsWith(URGENT_IDENTIFIER)) {
-                        FileUtils.deleteQuietly(file);
-                    } else {
-                        FileUtils.moveFileToDirectory(file, savedFolder, true);
-                    }
-                }
+                moveMessage(message.getUserName(), entry, Folder.SAVED, true);
                 sendMwi = true;
             } else if (messageFolder == Folder.DELETED) {
-                File inboxFolder = getFolder(message.getUserName(), Folder.INBOX);
-                for (File file : messageFiles) {
-                    FileUtils.moveFileToDirectory(file, inboxFolder, true);
-                }
+                moveMessage(message.getUserName(), entry, Folder.INBOX, false);
                 sendMwi = true;
             }
             if (sendMwi) {
-                m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
+                sendMwi(user);
             }
         } catch (IOException ex) {
             LOG.error("Failed to save message", ex);
@@ -263,27 +380,18 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
 
     @Override
     public void deleteMessage(User user, VmMessage message) {
+        Folder messageFolder = message.getParentFolder();
+        FilesystemMailboxIndex.Entry entry = getEntry(message.getUserName(), messageFolder, message.getMessageId());
+        if (entry == null) {
+            return;
+        }
         try {
-            Folder messageFolder = message.getParentFolder();
-            FilenameFilter filterById = new FileFilterByMessageId(message.getMessageId());
-            File[] messageFiles = getFolder(message.getUserName(), messageFolder).listFiles(filterById);
             if (messageFolder == Folder.DELETED) {
-                for (File messageFile : messageFiles) {
-                    FileUtils.deleteQuietly(messageFile);
-                }
+                removeMessage(message.getUserName(), entry);
             } else if (messageFolder == Folder.INBOX || messageFolder == Folder.SAVED) {
-                File deletedFolder = getFolder(message.getUserName(), Folder.DELETED);
-                for (File file : messageFiles) {
-                    String fileName = file.getName();
-                    // mark heard
-                    if (fileName.endsWith(URGENT_IDENTIFIER)) {
-                        FileUtils.deleteQuietly(file);
-                    } else {
-                        FileUtils.moveFileToDirectory(file, deletedFolder, true);
-                    }
-                }
+                moveMessage(message.getUserName(), entry, Folder.DELETED, true);
                 if (messageFolder == Folder.INBOX) {
-                    m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
+                    sendMwi(user);
                 }
             }
         } catch (IOException ex) {
@@ -293,39 +401,46 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
 
     @Override
     public void markMessageHeard(User user, VmMessage message) {
-        FilenameFilter fileStatusFilter = new RegexFileFilter(String.format("^%s%s", message.getMessageId(),
-                STATUS_IDENTIFIER));
-        File[] status = getFolder(message.getUserName(), message.getParentFolder()).listFiles(fileStatusFilter);
-        if (status != null && status.length == 1) {
-            FileUtils.deleteQuietly(status[0]);
-            m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
+        FilesystemMailboxIndex.Entry entry = getEntry(message.getUserName(), message.getParentFolder(),
+                message.getMessageId());
+        if (entry != null && markHeard(message.getUserName(), entry)) {
+            sendMwi(user);
         }
     }
 
     @Override
     public void markMessageHeard(User user, String messageId) {
-        FilenameFilter filter = new FileFilterByMessageId(messageId);
-        File[] files = findFilesInUserDirectory(user.getUserName(), filter);
-        File statusFile = null;
-        for (File file : files) {
-            if (file.getName().endsWith(STATUS_IDENTIFIER)) {
-                statusFile = file;
-                break;
-            }
+        FilesystemMailboxIndex.Entry entry = findEntry(user.getUserName(), messageId);
+        if (markHeard(user.getUserName(), entry)) {
+            sendMwi(user);
+        }
+    }
+
+    private boolean markHeard(String username, FilesystemMailboxIndex.Entry entry) {
+        if (!entry.isUnheard()) {
+            return false;
         }
-        if (statusFile != null) {
-            FileUtils.deleteQuietly(statusFile);
-            m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
+        FilesystemMailboxIndex index = getIndex(username);
+        FilesystemMailboxIndex.Change change = index.beginChange(entry.getFolder());
+        FileUtils.deleteQuietly(entry.getFile(getFolder(username, entry.getFolder()), STATUS_IDENTIFIER));
+        index.put(entry.withoutFile(STATUS_IDENTIFIER), change);
+        if (isInInbox(entry)) {
+            updateMwiCounts(username, false);
         }
+        return true;
     }
 
     @Override
     public void removeDeletedMessages(String username) {
+        FilesystemMailboxIndex index = getIndex(username);
+        FilesystemMailboxIndex.Change change = index.beginChange(Folder.DELETED);
         try {
             FileUtils.deleteDirectory(getFolder(username, Folder.DELETED));
         } catch (IOException ex) {
             LOG.error("cannot delete deleted directory for user " + username);
         }
+        index.removeFolder(Folder.DELETED, change);
+        m_manifests.remove(username + File.separator + Folder.DELETED);
     }
 
     @Override
@@ -339,6 +454,7 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
         boolean urgent = false;
         File destCombined = null;
         try {
+            FilesystemMailboxIndex.Change change = getIndex(destUser.getUserName()).beginChange(Folder.INBOX);
             // destination files
             File destinationInbox = getFolder(destUser.getUserName(), Folder.INBOX);
             File destStatus = new File(destinationInbox, newMessageId + STATUS_IDENTIFIER);
@@ -360,8 +476,8 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
 
             // original files
             Folder originalFolder = originalMessage.getParentFolder();
-            FilenameFilter filterById = new FileFilterByMessageId(originalMessage.getMessageId());
-            File[] filesToForward = getFolder(originalMessage.getUserName(), originalFolder).listFiles(filterById);
+            List<File> filesToForward = findFiles(originalMessage.getUserName(), originalFolder,
+                    originalMessage.getMessageId());
             File audio = null;
             File forwardedAudio = null;
 
@@ -384,8 +500,11 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
                 copyForwardedAudio(audio, originalDestAudio, comments, destAudio, destCombined);
             }
 
-            m_descriptorWriter.writeObject(descriptor, destDescriptor);
-            m_mwi.sendMWI(destUser, getMailboxDetails(destUser.getUserName()));
+            commitDescriptor(descriptor, destDescriptor, destStatus, destAudio, destUrg, originalDestAudio,
+                    destCombined, originalDestDescriptor);
+            addToIndex(destUser.getUserName(), Folder.INBOX, newMessageId, change, destStatus, destAudio, destUrg,
+                    originalDestAudio, destCombined, originalDestDescriptor, destDescriptor);
+            sendMwi(destUser);
         } catch (Exception ex) {
             LOG.error("Failed to forward message", ex);
             return null;
@@ -474,103 +593,89 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
     public List<VmMessage> getMessages(String username, Folder folder) {
         File mailboxFolder = getFolder(username, folder);
         List<VmMessage> messages = new LinkedList<VmMessage>();
-        File[] files = mailboxFolder.listFiles(new MessageCountFilter());
-        Arrays.sort(files, FILE_DATE_COMPARATOR);
-        for (File file : files) {
-            MessageDescriptor descriptor = m_descriptorReader.readObject(file);
-            String messageId = StringUtils.removeEnd(file.getName(), MESSAGE_IDENTIFIER);
-            boolean unheard = new File(mailboxFolder, String.format("%s%s", messageId, STATUS_IDENTIFIER)).exists();
-            boolean urgent = new File(mailboxFolder, String.format("%s%s", messageId, URGENT_IDENTIFIER)).exists();
-            messages.add(new VmMessage(messageId, username, null, descriptor, folder, unheard, urgent));
+        List<FilesystemMailboxIndex.Entry> entries = getIndex(username).getEntries(folder);
+        for (FilesystemMailboxIndex.Entry entry : entries) {
+            MessageDescriptor descriptor = readDescriptor(username, mailboxFolder, entry);
+            messages.add(new VmMessage(entry.getMessageId(), username, null, descriptor, folder, entry.isUnheard(),
+                    entry.isUrgent()));
         }
+        compactManifest(username, folder, entries.size());
         return messages;
     }
 
     @Override
-    public VmMessage getVmMessage(String username, String messageId, boolean loadAudio) {
-        FilenameFilter filter = new FileFilterByMessageId(messageId);
-        File[] files = findFilesInUserDirectory(username, filter);
-        MessageDescriptor descriptor = null;
-        File audioFile = null;
-        File originalFile = null;
-        File combinedFile = null;
-        boolean unheard = false;
-        boolean urgent = false;
-        for (File file : files) {
-            if (file.getName().endsWith(String.format(AUDIO_IDENTIFIER, getAudioFormat()))
-                    || file.getName().endsWith(String.format(AUDIO_IDENTIFIER, getAltAudioFormat()))) {
-                audioFile = file;
-            } else if (file.getName().endsWith(String.format(ORIGINAL_AUDIO_IDENTIFIER, getAudioFormat()))
-                    || file.getName().endsWith(String.format(ORIGINAL_AUDIO_IDENTIFIER, getAltAudioFormat()))) {
-                originalFile = file;
-            } else if (file.getName().endsWith(String.format(FW_AUDIO_IDENTIFIER, getAudioFormat()))
-                    || file.getName().endsWith(String.format(FW_AUDIO_IDENTIFIER, getAltAudioFormat()))) {
-                combinedFile = file;
-            } else if (file.getName().endsWith(MESSAGE_IDENTIFIER)) {
-                descriptor = m_descriptorReader.readObject(file);
-                descriptor.setFilePath(file.getPath());
-            } else if (file.getName().endsWith(STATUS_IDENTIFIER)) {
-                unheard = true;
-            } else if (file.getName().endsWith(URGENT_IDENTIFIER)) {
-                urgent = true;
+    public void listMessages(String username, Folder folder, long since, MessagePage page, MessageHandler handler) {
+        File mailboxFolder = getFolder(username, folder);
+        for (FilesystemMailboxIndex.Entry entry : getIndex(username).getEntries(folder)) {
+            // the descriptor is written when the message is received, never before
+            if (since > 0 && entry.getTimestamp() <= since) {
+                continue;
             }
+            if (since <= 0 && page.getToSkip() > 0) {
+                // no need to read the descriptor of a skipped message
+                page.skipped(1);
+                continue;
+            }
+            MessageDescriptor descriptor = readDescriptor(username, mailboxFolder, entry);
+            if (since > 0) {
+                Date received = descriptor.getTimeStampDate();
+                if (received != null && received.getTime() <= since) {
+                    continue;
+                }
+            }
+            if (page.getToSkip() > 0) {
+                page.skipped(1);
+                continue;
+            }
+            if (page.isFull()) {
+                page.setMore();
+                return;
+            }
+            handler.handle(new VmMessage(entry.getMessageId(), username, null, descriptor, folder, entry
+                    .isUnheard(), entry.isUrgent()));
+            page.listed(1);
         }
-        if (combinedFile != null) {
-            return new VmMessage(messageId, username, combinedFile, descriptor, null, unheard, urgent);
-        }
-        if (audioFile != null) {
-            return new VmMessage(messageId, username, audioFile, descriptor, null, unheard, urgent);
-        }
-        return new VmMessage(messageId, username, originalFile, descriptor, null, unheard, urgent);
-    }
-
-    private File[] findFilesInUserDirectory(String username, FilenameFilter filter) {
-        File[] files = findFilesInFolder(getFolder(username, Folder.INBOX), filter);
-        if (files != null) {
-            return files;
-        }
-        files = findFilesInFolder(getFolder(username, Folder.SAVED), filter);
-        if (files != null) {
-            return files;
-        }
-        files = findFilesInFolder(getFolder(username, Folder.DELETED), filter);
-        if (files != null) {
-            return files;
-        }
-        files = findFilesInFolder(getFolder(username, Folder.CONFERENCE), filter);
-        if (files != null) {
-            return files;
-        }
-        throw new MessageNotFoundException();
     }
 
-    private File[] findFilesInInbox(String username, FilenameFilter filter) {
-        File[] files = findFilesInFolder(getFolder(username, Folder.INBOX), filter);
-        if (files != null) {
-            return files;
+    @Override
+    public VmMessage getVmMessage(String username, String messageId, boolean loadAudio) {
+        FilesystemMailboxIndex.Entry entry = findEntry(username, messageId);
+        File mailboxFolder = getFolder(username, entry.getFolder());
+        MessageDescriptor descriptor = null;
+        if (entry.hasDescriptor()) {
+            File descriptorFile = entry.getFile(mailboxFolder, MESSAGE_IDENTIFIER);
+            descriptor = readDescriptor(username, mailboxFolder, entry);
+            descriptor.setFilePath(descriptorFile.getPath());
         }
-        throw new MessageNotFoundException();
+        return new VmMessage(messageId, username, getAudioFile(mailboxFolder, entry), descriptor, null,
+                entry.isUnheard(), entry.isUrgent());
     }
 
-    private File[] findFilesInFolder(File folder, FilenameFilter filter) {
-        File[] files = folder.listFiles(filter);
-        if (files != null && files.length > 0) {
-            return files;
+    @Override
+    public MessageAudio getMessageAudio(String username, String messageId) {
+        FilesystemMailboxIndex.Entry entry = findEntry(username, messageId);
+        File audioFile = getAudioFile(getFolder(username, entry.getFolder()), entry);
+        if (audioFile == null) {
+            throw new MessageNotFoundException();
         }
-        return null;
+        return new FileMessageAudio(audioFile);
     }
 
     @Override
     public void markMessageUnheard(User user, String messageId) {
-        FilenameFilter filter = new FileFilterByMessageId(messageId);
-        File[] files = findFilesInInbox(user.getUserName(), filter);
+        FilesystemMailboxIndex.Entry entry = findEntry(user.getUserName(), messageId);
+        if (entry.getFolder() != Folder.INBOX) {
+            throw new MessageNotFoundException();
+        }
+        FilesystemMailboxIndex index = getIndex(user.getUserName());
+        FilesystemMailboxIndex.Change change = index.beginChange(Folder.INBOX);
         try {
-            for (File file : files) {
-                File statusFile = new File(file.getParentFile(), messageId + STATUS_IDENTIFIER);
-                FileUtils.touch(statusFile);
-                m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
-                break;
+            FileUtils.touch(entry.getFile(getFolder(user.getUserName(), Folder.INBOX), STATUS_IDENTIFIER));
+            index.put(entry.withFile(STATUS_IDENTIFIER), change);
+            if (isInInbox(entry) && !entry.isUnheard()) {
+                updateMwiCounts(user.getUserName(), true);
             }
+            sendMwi(user);
         } catch (IOException ex) {
             LOG.error(String.format("failed to mark message %s unheard for user %s", messageId, user.getUserName()),
                     ex);
@@ -579,17 +684,16 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
 
     @Override
     public boolean isMessageUnHeard(User user, String messageId) {
-        VmMessage vmMessage = getVmMessage(user.getUserName(), Folder.INBOX, messageId, false);
-        return vmMessage.isUnHeard();
+        FilesystemMailboxIndex.Entry entry = getEntry(user.getUserName(), Folder.INBOX, messageId);
+        if (entry == null || !entry.hasDescriptor()) {
+            throw new MessageNotFoundException();
+        }
+        return entry.isUnheard();
     }
 
     @Override
     public void deleteMessage(User user, String messageId) {
-        FilenameFilter filter = new FileFilterByMessageId(messageId);
-        File[] files = findFilesInUserDirectory(user.getUserName(), filter);
-        for (File file : files) {
-            FileUtils.deleteQuietly(file);
-        }
+        removeMessage(user.getUserName(), findEntry(user.getUserName(), messageId));
     }
 
     @Override
@@ -597,18 +701,25 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
         VmMessage message = getVmMessage(user.getUserName(), messageId, false);
         MessageDescriptor descriptor = message.getDescriptor();
         descriptor.setSubject(subject);
-        m_descriptorWriter.writeObject(descriptor, new File(descriptor.getFilePath()));
+        File descriptorFile = new File(descriptor.getFilePath());
+        try {
+            commitDescriptor(descriptor, descriptorFile);
+        } catch (IOException ex) {
+            LOG.error(String.format("failed to update subject of message %s for user %s", messageId,
+                    user.getUserName()), ex);
+            return;
+        }
+        if (m_useManifest) {
+            Folder folder = findEntry(user.getUserName(), messageId).getFolder();
+            getManifest(user.getUserName(), folder).put(messageId, descriptorFile.lastModified(), descriptor);
+        }
     }
 
     @Override
     public void moveMessageToFolder(User user, String messageId, String destination) {
-        FilenameFilter filter = new FileFilterByMessageId(messageId);
-        File[] files = findFilesInUserDirectory(user.getUserName(), filter);
+        FilesystemMailboxIndex.Entry entry = findEntry(user.getUserName(), messageId);
         try {
-        	File destinationFile = getFolder(user.getUserName(), Folder.lookUp(destination));
-            for (File file : files) {
-                FileUtils.moveFileToDirectory(file, destinationFile, true);
-            }
+            moveMessage(user.getUserName(), entry, Folder.lookUp(destination), false);
         } catch (IOException ex) {
             LOG.error(
                     String.format("failed to move message %s in %s for user %s", messageId, destination,
@@ -625,6 +736,9 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
         } catch (IOException ex) {
             LOG.error(String.format("failed to delete mailbox for user %s", username), ex);
         }
+        m_indexes.remove(username);
+        removeManifests(username);
+        invalidateMwiCounts(username);
     }
 
     @Override
@@ -637,6 +751,12 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
         } catch (IOException ex) {
             LOG.error(String.format("failed to delete mailbox for user %s", user.getUserName()), ex);
         }
+        m_indexes.remove(oldUser);
+        m_indexes.remove(user.getUserName());
+        removeManifests(oldUser);
+        removeManifests(user.getUserName());
+        invalidateMwiCounts(oldUser);
+        invalidateMwiCounts(user.getUserName());
     }
 
     private File getFolder(String username, Folder folder) {
@@ -648,101 +768,389 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
     }
 
     private File getUserDirectory(String username) {
-        return new File(m_mailstoreDirectory + File.separator + username);
+        File directory = m_layout.getUserDirectory(username);
+        if (directory.exists()) {
+            return directory;
+        }
+        MigrationLock lock = m_migrationLocks.get(username);
+        if (lock == null) {
+            MigrationLock newLock = new MigrationLock();
+            lock = m_migrationLocks.putIfAbsent(username, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        // only lookups of this user wait for its mailbox to be moved
+        synchronized (lock) {
+            if (directory.exists()) {
+                return directory;
+            }
+            File oldDirectory = findOldMailbox(username, directory);
+            if (oldDirectory == null) {
+                return directory;
+            }
+            if (System.currentTimeMillis() < lock.m_retryAfter) {
+                return oldDirectory;
+            }
+            File current = migrateMailbox(username, oldDirectory, directory);
+            if (current.equals(directory)) {
+                m_indexes.remove(username);
+                removeManifests(username);
+            } else {
+                lock.m_retryAfter = System.currentTimeMillis() + MIGRATION_RETRY;
+            }
+            return current;
+        }
     }
 
-    private List<String> extractMessages(File[] files) {
-        Arrays.sort(files, new Comparator<File>() {
-            @Override
-            public int compare(File f1, File f2) {
-                return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+    /**
+     * @return mailbox of the user left on another root when the roots changed, or still in the
+     *         flat mailstore, null if there is none
+     */
+    private File findOldMailbox(String username, File directory) {
+        List<File> candidates = new ArrayList<File>(m_layout.getUserDirectories(username));
+        candidates.add(new File(m_mailstoreDirectory, username));
+        for (File candidate : candidates) {
+            if (candidate.equals(directory)) {
+                continue;
+            }
+            // a move interrupted by a restart
+            File moving = getMovingDirectory(candidate, username);
+            if (moving.isDirectory()) {
+                return moving;
+            }
+            if (candidate.isDirectory() && MailstoreMigration.isMailbox(candidate)) {
+                return candidate;
             }
-        });
-        List<String> messageList = new LinkedList<String>();
-        for (File file : files) {
-            messageList.add(StringUtils.removeEnd(file.getName(), MESSAGE_IDENTIFIER));
         }
-        return messageList;
+        return null;
     }
-    
+
+    private static File getMovingDirectory(File oldDirectory, String username) {
+        return new File(oldDirectory.getParentFile(), "." + username + ".moving");
+    }
+
+    private static boolean isSameDirectory(File directory1, File directory2) {
+        try {
+            return directory1.getCanonicalFile().equals(directory2.getCanonicalFile());
+        } catch (IOException ex) {
+            return directory1.getAbsoluteFile().equals(directory2.getAbsoluteFile());
+        }
+    }
+
     /**
-     * Generate the next message Id static synchronized as it's machine wide
-     * 
-     * @param directory which holds the messageid.txt file
+     * Moves the mailbox of a user from the flat mailstore directory or from another root. A mailbox
+     * on another volume is renamed first, so that nothing writes into it while it is copied, and
+     * only appears at its new place once complete.
+     *
+     * @return directory now holding the mailbox, the old one if it could not be moved
      */
-    private synchronized String nextMessageId(String directory) {
-        File midFile = new File(directory, "messageid.txt");
-        String messageIdFilePath = midFile.getPath();
-        long numericMessageId;
-        String messageId;
-        if (!midFile.exists()) {
-            numericMessageId = 1;
-            String format = getIvrIdentity() + "%08d";
-            messageId = String.format(format, numericMessageId);
-            numericMessageId++;
+    private File migrateMailbox(String username, File oldDirectory, File directory) {
+        File moving = getMovingDirectory(oldDirectory, username);
+        directory.getParentFile().mkdirs();
+        if (!oldDirectory.equals(moving)) {
             try {
-                FileUtils.writeStringToFile(midFile, String.format(format, numericMessageId));
-            } catch (IOException e) {
-                LOG.error("Message::nextMessageId cannot write " + messageIdFilePath, e);
-                throw new RuntimeException(e);
+                Files.move(oldDirectory.toPath(), directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                LOG.info(String.format("mailbox of user %s moved to %s", username, directory.getPath()));
+                return directory;
+            } catch (IOException ex) {
+                LOG.debug("FileSystemMailboxManager::migrateMailbox copying " + oldDirectory.getPath() + ", "
+                        + ex.getMessage());
+            }
+            try {
+                Files.move(oldDirectory.toPath(), moving.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                LOG.error(String.format("failed to move mailbox of user %s to %s", username, directory.getPath()),
+                        ex);
+                return oldDirectory;
             }
-            return messageId;
         }
-
+        File tmpDirectory = new File(directory.getParentFile(), "." + username + ".migrating");
         try {
-            // The messageid in the file is the NEXT one
-            messageId = FileUtils.readFileToString(midFile);
-            numericMessageId = Long.parseLong(StringUtils.deleteWhitespace(messageId));
-        } catch (IOException e) {
-            LOG.error("Message::nextMessageId cannot read " + messageIdFilePath, e);
-            throw new RuntimeException(e);
+            FileUtils.deleteQuietly(tmpDirectory);
+            FileUtils.copyDirectory(moving, tmpDirectory, true);
+            Files.move(tmpDirectory.toPath(), directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOG.error(String.format("failed to move mailbox of user %s to %s", username, directory.getPath()), ex);
+            FileUtils.deleteQuietly(tmpDirectory);
+            File restored = new File(moving.getParentFile(), username);
+            try {
+                Files.move(moving.toPath(), restored.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                return restored;
+            } catch (IOException e) {
+                LOG.error("failed to restore mailbox " + moving.getPath(), e);
+                return moving;
+            }
         }
-        // Increment message id, store for another day
-        numericMessageId++;
         try {
-            FileUtils.writeStringToFile(midFile, String.valueOf(numericMessageId));
-        } catch (IOException e) {
-            LOG.error("Message::nextMessageId cannot write " + messageIdFilePath, e);
-            throw new RuntimeException(e);
+            FileUtils.deleteDirectory(moving);
+        } catch (IOException ex) {
+            LOG.warn("failed to delete moved mailbox " + moving.getPath(), ex);
         }
+        LOG.info(String.format("mailbox of user %s copied to %s", username, directory.getPath()));
+        return directory;
+    }
 
-        return messageId;
+    private FilesystemMailboxIndex getIndex(String username) {
+        FilesystemMailboxIndex index = m_indexes.get(username);
+        if (index == null) {
+            File directory = getUserDirectory(username);
+            FilesystemMailboxIndex newIndex = new FilesystemMailboxIndex(directory, m_indexCheckInterval);
+            if (!directory.equals(m_layout.getUserDirectory(username))) {
+                // mailbox not moved yet, not kept
+                return newIndex;
+            }
+            index = m_indexes.putIfAbsent(username, newIndex);
+            if (index == null) {
+                index = newIndex;
+            }
+        }
+        return index;
     }
 
-    private static class FileFilterByMessageId implements FilenameFilter {
-        private final String m_messageIdPrefix;
+    /**
+     * Reads the descriptor of a message from the folder manifest if it is up to date, from its XML
+     * file otherwise
+     */
+    private MessageDescriptor readDescriptor(String username, File mailboxFolder, FilesystemMailboxIndex.Entry entry) {
+        File descriptorFile = entry.getFile(mailboxFolder, MESSAGE_IDENTIFIER);
+        if (!m_useManifest) {
+            return m_descriptorReader.readObject(descriptorFile);
+        }
+        FolderManifest manifest = getManifest(username, entry.getFolder());
+        long modified = descriptorFile.lastModified();
+        MessageDescriptor descriptor = manifest.get(entry.getMessageId(), modified);
+        if (descriptor == null) {
+            descriptor = m_descriptorReader.readObject(descriptorFile);
+            if (descriptor != null && modified != 0) {
+                manifest.put(entry.getMessageId(), modified, descriptor);
+            }
+        }
+        return descriptor;
+    }
 
-        FileFilterByMessageId(String messageId) {
-            m_messageIdPrefix = messageId + "-";
+    private FolderManifest getManifest(String username, Folder folder) {
+        String key = username + File.separator + folder;
+        FolderManifest manifest = m_manifests.get(key);
+        if (manifest == null) {
+            FolderManifest newManifest = new FolderManifest(getFolder(username, folder));
+            manifest = m_manifests.putIfAbsent(key, newManifest);
+            if (manifest == null) {
+                manifest = newManifest;
+            }
         }
+        return manifest;
+    }
 
-        @Override
-        public boolean accept(File dir, String name) {
-            return name.startsWith(m_messageIdPrefix);
+    private void removeManifests(String username) {
+        for (Folder folder : Folder.values()) {
+            m_manifests.remove(username + File.separator + folder);
         }
     }
 
-    private static class MessageCountFilter implements FilenameFilter {
-        @Override
-        public boolean accept(File dir, String name) {
-            return name.endsWith(MESSAGE_IDENTIFIER);
+    /**
+     * Drops the records of messages no longer in the folder once they outnumber the messages,
+     * in the background
+     */
+    private void compactManifest(final String username, final Folder folder, int messageCount) {
+        if (!m_useManifest) {
+            return;
         }
+        final FolderManifest manifest = getManifest(username, folder);
+        if (manifest.needsCompaction(messageCount)) {
+            try {
+                m_manifestCompactor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        manifest.compact(getIndex(username).getMessageIds(folder, false));
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // shutting down, compacted next time
+            }
+        }
+    }
+
+    private FilesystemMailboxIndex.Entry getEntry(String username, Folder folder, String messageId) {
+        FilesystemMailboxIndex.Entry entry = getIndex(username).getEntry(messageId);
+        return entry != null && entry.getFolder() == folder ? entry : null;
+    }
+
+    private FilesystemMailboxIndex.Entry findEntry(String username, String messageId) {
+        FilesystemMailboxIndex.Entry entry = getIndex(username).getEntry(messageId);
+        if (entry == null) {
+            throw new MessageNotFoundException();
+        }
+        return entry;
     }
 
-    private static class FileDateComparator implements Comparator<File> {
+    private List<File> findFiles(String username, Folder folder, String messageId) {
+        FilesystemMailboxIndex.Entry entry = getEntry(username, folder, messageId);
+        if (entry == null) {
+            return new LinkedList<File>();
+        }
+        return entry.getFiles(getFolder(username, folder));
+    }
+
+    /**
+     * Records a message just written by this manager; files that were not created are ignored
+     */
+    private void addToIndex(String username, Folder folder, String messageId, FilesystemMailboxIndex.Change change,
+            File... files) {
+        Set<String> fileNames = new HashSet<String>();
+        for (File file : files) {
+            if (file.exists()) {
+                fileNames.add(file.getName());
+            }
+        }
+        long timestamp = new File(getFolder(username, folder), messageId + MESSAGE_IDENTIFIER).lastModified();
+        FilesystemMailboxIndex.Entry entry = new FilesystemMailboxIndex.Entry(messageId, folder, fileNames, timestamp);
+        getIndex(username).put(entry, change);
+        if (isInInbox(entry)) {
+            updateMwiCounts(username, entry.isUnheard(), 1);
+        }
+    }
+
+    private static boolean isInInbox(FilesystemMailboxIndex.Entry entry) {
+        return entry.getFolder() == Folder.INBOX && entry.hasDescriptor();
+    }
+
+    private void moveMessage(String username, FilesystemMailboxIndex.Entry entry, Folder destination,
+            boolean dropUrgent) throws IOException {
+        FilesystemMailboxIndex index = getIndex(username);
+        FilesystemMailboxIndex.Change change = index.beginChange(entry.getFolder(), destination);
+        File source = getFolder(username, entry.getFolder());
+        File target = getFolder(username, destination);
+        FilesystemMailboxIndex.Entry moved = entry.withFolder(destination);
+        if (dropUrgent && entry.isUrgent()) {
+            FileUtils.deleteQuietly(entry.getFile(source, URGENT_IDENTIFIER));
+            moved = moved.withoutFile(URGENT_IDENTIFIER);
+        }
+        for (File file : moved.getFiles(source)) {
+            FileUtils.moveFileToDirectory(file, target, true);
+        }
+        index.put(moved, change);
+        if (isInInbox(entry) != isInInbox(moved)) {
+            updateMwiCounts(username, entry.isUnheard(), isInInbox(moved) ? 1 : -1);
+        }
+    }
+
+    private void removeMessage(String username, FilesystemMailboxIndex.Entry entry) {
+        FilesystemMailboxIndex index = getIndex(username);
+        FilesystemMailboxIndex.Change change = index.beginChange(entry.getFolder());
+        for (File file : entry.getFiles(getFolder(username, entry.getFolder()))) {
+            FileUtils.deleteQuietly(file);
+        }
+        index.remove(entry.getMessageId(), change);
+        if (isInInbox(entry)) {
+            updateMwiCounts(username, entry.isUnheard(), -1);
+        }
+    }
+    
+    private static class MigrationLock {
+        // no new attempt to move a mailbox before, after a failure
+        private long m_retryAfter;
+    }
+
+    /**
+     * Message ids reserved in blocks from the messageid.txt file, which holds the NEXT free id.
+     * As before, the first id is the ivr identity followed by 00000001 and later ids are the plain
+     * counter value.
+     */
+    private class MessageIdFile extends MessageIdAllocator {
+        private static final String MESSAGE_ID_FORMAT = "%08d";
+        private final File m_file;
+        // id of the first message, -1 when messageid.txt already existed
+        private volatile long m_firstId = -1;
+
+        MessageIdFile(File directory) {
+            super(getMessageIdBlockSize());
+            m_file = new File(directory, "messageid.txt");
+        }
+
         @Override
-        public int compare(File file1, File file2) {
-            long result = file1.lastModified() - file2.lastModified();
-            if (result < 0) {
-                return -1;
-            } else if (result > 0) {
-                return 1;
+        protected long reserve(int count) {
+            long next;
+            if (m_file.exists()) {
+                try {
+                    next = Long.parseLong(StringUtils.deleteWhitespace(FileUtils.readFileToString(m_file)));
+                } catch (IOException e) {
+                    LOG.error("Message::nextMessageId cannot read " + m_file.getPath(), e);
+                    throw new RuntimeException(e);
+                }
             } else {
-                return 0;
+                next = Long.parseLong(String.format(StringUtils.defaultString(getIvrIdentity())
+                        + MESSAGE_ID_FORMAT, 1));
+                m_firstId = next;
+            }
+            // the new high-water mark is on disk before any id of the block is used
+            File tmpFile = new File(m_file.getPath() + ".tmp");
+            try {
+                FileOutputStream out = new FileOutputStream(tmpFile);
+                try {
+                    out.write(String.valueOf(next + count).getBytes());
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                Files.move(tmpFile.toPath(), m_file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                LOG.error("Message::nextMessageId cannot write " + m_file.getPath(), e);
+                throw new RuntimeException(e);
+            }
+            return next;
+        }
+
+        @Override
+        protected String format(long id) {
+            if (id == m_firstId) {
+                return StringUtils.defaultString(getIvrIdentity()) + String.format(MESSAGE_ID_FORMAT, 1);
             }
+            return String.valueOf(id);
         }
     }
 
+    /**
+     * @param syncCommits fsync new messages before they become visible; concurrent deposits are
+     *        synced together
+     */
+    public void setSyncCommits(boolean syncCommits) {
+        m_syncCommits = syncCommits;
+    }
+
+    /**
+     * @param useManifest keep a copy of the message descriptors of each folder in one file, read
+     *        instead of the XML descriptors when listing messages
+     */
+    public void setUseManifest(boolean useManifest) {
+        m_useManifest = useManifest;
+    }
+
+    /**
+     * @param layout placement of the mailboxes, flat in the mailstore directory if not set or
+     *        without roots
+     */
+    public void setMailboxLayout(MailboxLayout layout) {
+        m_layout = layout;
+    }
+
+    /**
+     * @param migrateMailboxes move all the mailboxes of the flat mailstore directory to the layout
+     *        in the background at startup
+     */
+    public void setMigrateMailboxes(boolean migrateMailboxes) {
+        m_migrateMailboxes = migrateMailboxes;
+    }
+
+    /**
+     * @param indexCheckInterval minimum time between two checks of a mailbox for changes made by
+     *        others in ms, 0 to check on every access
+     */
+    public void setIndexCheckInterval(long indexCheckInterval) {
+        m_indexCheckInterval = indexCheckInterval;
+    }
+
     public void setMessageDescriptorWriter(MessageDescriptorWriter writer) {
         m_descriptorWriter = writer;
     }
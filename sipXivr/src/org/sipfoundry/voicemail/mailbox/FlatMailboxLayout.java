@@ -0,0 +1,47 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Original layout: all mailboxes in the mailstore directory
+ */
+public class FlatMailboxLayout implements MailboxLayout {
+    private final File m_root;
+
+    public FlatMailboxLayout(File root) {
+        m_root = root;
+    }
+
+    @Override
+    public File getUserDirectory(String username) {
+        return new File(m_root, username);
+    }
+
+    @Override
+    public List<File> getUserDirectories(String username) {
+        return Collections.singletonList(getUserDirectory(username));
+    }
+
+    @Override
+    public List<File> getRoots() {
+        return Collections.singletonList(m_root);
+    }
+}
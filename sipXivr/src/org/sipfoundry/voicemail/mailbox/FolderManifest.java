@@ -0,0 +1,267 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.sipfoundry.voicemail.mailbox.MessageDescriptor.Priority;
+
+/**
+ * Compact copy of the message descriptors of one folder, so that listing a folder reads one file
+ * instead of parsing the XML descriptor of every message.
+ *
+ * The manifest is a journal: a record is appended whenever a descriptor is read from its XML file
+ * or written by the manager, the last record of a message wins. A record is only used while the
+ * modification time of the XML descriptor it was made from is unchanged, so descriptors changed
+ * by anybody else are read again; the XML files stay the reference. Records of messages no longer
+ * in the folder are dropped when the journal is compacted.
+ */
+public class FolderManifest {
+    public static final String FILE_NAME = "manifest";
+
+    private static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
+    private static final int MAGIC = 0x564d4631;
+    // garbage records tolerated whatever the size of the folder
+    private static final int MIN_GARBAGE = 64;
+
+    private final File m_file;
+    private final Map<String, Record> m_records = new HashMap<String, Record>();
+    private int m_fileRecords;
+    private boolean m_loaded;
+
+    public FolderManifest(File folder) {
+        m_file = new File(folder, FILE_NAME);
+    }
+
+    /**
+     * @param modified modification time of the XML descriptor
+     * @return null if there is no record for this version of the descriptor
+     */
+    public synchronized MessageDescriptor get(String messageId, long modified) {
+        load();
+        Record record = m_records.get(messageId);
+        if (record == null || record.m_modified != modified) {
+            return null;
+        }
+        try {
+            return decode(record.m_body);
+        } catch (IOException e) {
+            LOG.warn("FolderManifest::get cannot decode " + messageId + " in " + m_file.getPath(), e);
+            return null;
+        }
+    }
+
+    public synchronized void put(String messageId, long modified, MessageDescriptor descriptor) {
+        load();
+        try {
+            Record record = new Record(modified, encode(messageId, modified, descriptor));
+            OutputStream out = new FileOutputStream(m_file, true);
+            try {
+                if (m_file.length() == 0) {
+                    new DataOutputStream(out).writeInt(MAGIC);
+                }
+                out.write(record.m_body);
+            } finally {
+                out.close();
+            }
+            m_records.put(messageId, record);
+            m_fileRecords++;
+        } catch (IOException e) {
+            LOG.warn("FolderManifest::put cannot append to " + m_file.getPath(), e);
+        }
+    }
+
+    /**
+     * @param messageCount messages currently in the folder
+     */
+    public synchronized boolean needsCompaction(int messageCount) {
+        return m_fileRecords > 2 * messageCount + MIN_GARBAGE;
+    }
+
+    /**
+     * Rewrites the journal with the last record of each message still in the folder
+     */
+    public synchronized void compact(Collection<String> messageIds) {
+        load();
+        Set<String> live = new HashSet<String>(messageIds);
+        for (Iterator<String> ids = m_records.keySet().iterator(); ids.hasNext();) {
+            if (!live.contains(ids.next())) {
+                ids.remove();
+            }
+        }
+        File tmpFile = new File(m_file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tmpFile));
+            try {
+                out.writeInt(MAGIC);
+                for (Record record : m_records.values()) {
+                    out.write(record.m_body);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), m_file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            LOG.debug("FolderManifest::compact " + m_file.getPath() + " " + m_fileRecords + " -> "
+                    + m_records.size());
+            m_fileRecords = m_records.size();
+        } catch (IOException e) {
+            LOG.warn("FolderManifest::compact cannot rewrite " + m_file.getPath(), e);
+            FileUtils.deleteQuietly(tmpFile);
+        }
+    }
+
+    private void load() {
+        if (m_loaded) {
+            return;
+        }
+        m_loaded = true;
+        if (!m_file.exists()) {
+            return;
+        }
+        FileChannel channel = null;
+        long valid = 0;
+        try {
+            channel = FileChannel.open(m_file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) {
+                LOG.warn("FolderManifest::load ignoring " + m_file.getPath());
+                channel.truncate(0);
+                return;
+            }
+            valid = buffer.position();
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt(buffer.position());
+                if (length <= 0 || buffer.remaining() < 4 + length) {
+                    break;
+                }
+                byte[] body = new byte[4 + length];
+                buffer.get(body);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 4, length));
+                String messageId = in.readUTF();
+                m_records.put(messageId, new Record(in.readLong(), body));
+                m_fileRecords++;
+                valid = buffer.position();
+            }
+            if (valid < channel.size()) {
+                // last append interrupted
+                LOG.warn("FolderManifest::load truncating " + m_file.getPath() + " at " + valid);
+                channel.truncate(valid);
+            }
+        } catch (IOException e) {
+            LOG.warn("FolderManifest::load cannot read " + m_file.getPath(), e);
+            m_records.clear();
+            m_fileRecords = 0;
+            FileUtils.deleteQuietly(m_file);
+        } finally {
+            IOUtils.closeQuietly(channel);
+        }
+    }
+
+    /**
+     * @return the record: its length followed by message id, descriptor time and descriptor
+     */
+    private static byte[] encode(String messageId, long modified, MessageDescriptor descriptor)
+        throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeUTF(messageId);
+        out.writeLong(modified);
+        writeString(out, descriptor.getId());
+        writeString(out, descriptor.getFromUri());
+        writeString(out, descriptor.getDurationSecs());
+        writeString(out, descriptor.getContentLength());
+        writeString(out, descriptor.getTimestampString());
+        writeString(out, descriptor.getSubject());
+        writeString(out, descriptor.getPriority() != null ? descriptor.getPriority().getId() : null);
+        writeString(out, descriptor.getAudioFormat());
+        Collection<String> recipients = descriptor.getOtherRecipients();
+        out.writeInt(recipients != null ? recipients.size() : 0);
+        if (recipients != null) {
+            for (String recipient : recipients) {
+                out.writeUTF(recipient);
+            }
+        }
+        out.close();
+        byte[] body = bytes.toByteArray();
+        ByteBuffer.wrap(body).putInt(body.length - 4);
+        return body;
+    }
+
+    private static MessageDescriptor decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 4, body.length - 4));
+        in.readUTF();
+        in.readLong();
+        MessageDescriptor descriptor = new MessageDescriptor();
+        descriptor.setId(readString(in));
+        descriptor.setFromUri(readString(in));
+        descriptor.setDurationSecs(readString(in));
+        descriptor.setContentLength(readString(in));
+        descriptor.setTimestamp(readString(in));
+        descriptor.setSubject(readString(in));
+        descriptor.setPriority(Priority.valueOfById(readString(in)));
+        descriptor.setAudioFormat(readString(in));
+        for (int i = in.readInt(); i > 0; i--) {
+            descriptor.addOtherRecipient(in.readUTF());
+        }
+        return descriptor;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static class Record {
+        private final long m_modified;
+        private final byte[] m_body;
+
+        Record(long modified, byte[] body) {
+            m_modified = modified;
+            m_body = body;
+        }
+    }
+}
@@ -5,17 +5,24 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.bson.types.ObjectId;
 import org.sipfoundry.commons.ivr.MimeType;
+import org.sipfoundry.commons.mongo.MongoConstants;
 import org.sipfoundry.commons.userdb.User;
 import org.sipfoundry.commons.userdb.User.EmailFormats;
+import org.sipfoundry.voicemail.mailbox.MessageDescriptor.Priority;
+import org.sipfoundry.voicemail.mailbox.gridfs.GridFSMessageAudio;
 import org.sipfoundry.voicemail.mailbox.gridfs.GridFSSequenceCounter;
 import org.sipfoundry.voicemail.mailbox.gridfs.GridFSVmTemplate;
 import org.sipfoundry.voicemail.mailbox.gridfs.VmAudioIdentifier;
 import org.springframework.util.Assert;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
 import com.mongodb.gridfs.GridFSDBFile;
@@ -27,41 +34,78 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
 	private static final String RECORDER_LABEL = "RECORDER";
 	private static final String RECORDER_MESSAGE_ID = "RECORDER-MSGID";
 	private static final String GREETINGS_LABEL = "GREETINGS";
+	private static final String AUDIO_CACHE_DIRECTORY = ".audiocache";
 	
 	private GridFSSequenceCounter m_messageIdSequenceCounter;
 	private GridFSVmTemplate m_gridFSVmTemplate;
+	private MessageIdAllocator m_messageIds;
+	private AudioFileCache m_audioCache;
+	private int m_audioCacheSize = 64;
+	private int m_audioCacheLookupTtl = 60;
+	private int m_migrationThreads = 4;
+
+	/**
+	 * The mailstore is shared by the servers of the cluster, counters kept by this server would
+	 * miss the changes made on the others. MWI counts come from the countByLabel aggregation
+	 * instead, served by the user/label/unheard index.
+	 */
+	public GridFSMailboxManager() {
+	    super.setMwiCounters(null);
+	}
+
+	@Override
+	public void setMwiCounters(MwiCounters mwiCounters) {
+	    if (mwiCounters != null) {
+	        throw new IllegalArgumentException("GridFS mailboxes count MWI with an aggregation, not counters");
+	    }
+	}
 	
 	public void init() {
         File mailstore = new File(m_mailstoreDirectory);
         if (!mailstore.exists()) {
             mailstore.mkdir();
         }
+        try {
+            m_gridFSVmTemplate.verifyIndexes();
+        } catch (MongoException ex) {
+            LOG.warn("Cannot verify voicemail indexes: " + ex.getMessage());
+        }
+        m_audioCache = new AudioFileCache(new File(m_mailstoreDirectory, AUDIO_CACHE_DIRECTORY),
+                m_audioCacheSize * 1024L * 1024L, TimeUnit.SECONDS.toMillis(m_audioCacheLookupTtl));
+        m_messageIds = new MessageIdSequence(String.format(MESSAGEID_COUNTER_KEY_FORMAT,
+                Integer.parseInt(getIvrIdentity())));
     }
 
+	/**
+	 * Counts come from a single aggregation, message ids are only queried if asked for
+	 */
 	@Override
-	public MailboxDetails getMailboxDetails(String username) {
-		List<String> inboxMessages = m_gridFSVmTemplate.findMessageIdByLabel(username, Folder.INBOX.getId());
-		List<String> savedMessages = m_gridFSVmTemplate.findMessageIdByLabel(username, Folder.SAVED.getId());
-		List<String> conferenceMessages = m_gridFSVmTemplate.findMessageIdByLabel(username, Folder.CONFERENCE.getId());
-		List<String> deletedMessages = m_gridFSVmTemplate.findMessageIdByLabel(username, Folder.DELETED.getId());
-		List<String> unheardMessages = m_gridFSVmTemplate.findMessageIdByLabel(username, Folder.INBOX.getId(), true);
-		
-		return new MailboxDetails(username, inboxMessages, savedMessages, deletedMessages, conferenceMessages,
-                unheardMessages);
+	public MailboxDetails getMailboxDetails(final String username) {
+	    Map<String, int[]> counts = m_gridFSVmTemplate.countByLabel(username);
+	    int[] inbox = getCounts(counts, Folder.INBOX);
+	    return new MailboxDetails(username, inbox[0], getCounts(counts, Folder.SAVED)[0],
+	            getCounts(counts, Folder.DELETED)[0], getCounts(counts, Folder.CONFERENCE)[0], inbox[1],
+	            new MailboxDetails.MessageIdLoader() {
+	                @Override
+	                public List<String> getMessageIds(Folder folder, boolean unheardOnly) {
+	                    return m_gridFSVmTemplate.findMessageIdByLabel(username, folder.getId(), unheardOnly);
+	                }
+	            });
+	}
+
+	private static int[] getCounts(Map<String, int[]> counts, Folder folder) {
+	    int[] folderCounts = counts.get(folder.getId());
+	    return folderCounts != null ? folderCounts : new int[2];
 	}
 
 	@Override
 	public List<VmMessage> getMessages(String username, Folder folder) {
-	    List<DBObject> vmMetadatas = m_gridFSVmTemplate.findByLabel(username, folder.getId());
+	    return m_gridFSVmTemplate.findVmMessagesByLabel(username, folder.getId());
+	}
 
-	    List<VmMessage> results = new ArrayList<VmMessage>();
-        for (DBObject vmMetadata : vmMetadatas) {
-            List<GridFSDBFile> dbFiles = m_gridFSVmTemplate.findFilesByVmId(vmMetadata);
-            GridFSDBFile dbFile = selectPreferredAudioIdentifier(dbFiles);
-            results.add(m_gridFSVmTemplate.createVmMessage(dbFile.getMetaData(), vmMetadata, null));
-        }
-        
-        return results;
+	@Override
+	public void listMessages(String username, Folder folder, long since, MessagePage page, MessageHandler handler) {
+	    m_gridFSVmTemplate.listVmMessages(username, folder.getId(), since, page, handler);
 	}
 
 	@Override
@@ -76,6 +120,19 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
 	    return getVmMessage(vmMetadata, loadAudio);
 	}
 
+	@Override
+	public MessageAudio getMessageAudio(String username, String messageId) {
+	    DBObject vmMetadata = m_gridFSVmTemplate.findByMessageId(username, messageId);
+	    if (vmMetadata == null) {
+	        throw new MessageNotFoundException();
+	    }
+	    GridFSDBFile dbFile = selectPreferredAudioIdentifier(m_gridFSVmTemplate.findFilesByVmId(vmMetadata));
+	    if (dbFile == null) {
+	        throw new MessageNotFoundException();
+	    }
+	    return new GridFSMessageAudio(dbFile, m_gridFSVmTemplate.getContent(dbFile));
+	}
+
 	@Override
 	public void markMessageHeard(User user, VmMessage message) {
 	    markMessageHeard(user, message.getMessageId());
@@ -109,7 +166,7 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
         }
         
         if (sendMwi) {
-            m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
+            sendMwi(user);
         }
 	}
 
@@ -123,7 +180,7 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
         } else if (messageFolder == Folder.INBOX || messageFolder == Folder.SAVED) {
             m_gridFSVmTemplate.move(user, message.getMessageId(), Folder.DELETED.getId(), true);
             if (messageFolder == Folder.INBOX) {
-                m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
+                sendMwi(user);
             }
         }
 	}
@@ -137,30 +194,29 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
 	}
 
 	@Override
-	public File getRecordedName(String username) {
-	    //Special label for storing/getting recorded file
-        DBObject vmMetadata = m_gridFSVmTemplate.findByMessageId(username, RECORDER_LABEL, RECORDER_MESSAGE_ID);
-        GridFSDBFile dbFile = m_gridFSVmTemplate.findFileByFilename(vmMetadata, getNameFile());
-        if(dbFile == null) {
-            dbFile = m_gridFSVmTemplate.findFileByFilename(vmMetadata, getAltNameFile());
-        }
-        
+	public File getRecordedName(final String username) {
         File recordedName = null;
         try {
-            if (dbFile != null) {
-                TempMessage tempMessage = createTempMessage(username, "", true);
-                recordedName = new File(tempMessage.getTempPath());
-                dbFile.writeTo(recordedName);
-            } else {
-                recordedName = new File(getUserDirectory(username), getNameFile());
-                if(!recordedName.exists()) {
-                    recordedName = new File(getUserDirectory(username), getAltNameFile());
-                }
-            }
+            //Special label for storing/getting recorded file
+            recordedName = m_audioCache.get(getCacheName(username, RECORDER_LABEL, RECORDER_MESSAGE_ID),
+                    new AudioFileCache.Loader() {
+                        @Override
+                        public AudioFileCache.Source load() {
+                            DBObject vmMetadata = m_gridFSVmTemplate.findByMessageId(username, RECORDER_LABEL,
+                                    RECORDER_MESSAGE_ID);
+                            return findCacheSource(vmMetadata, getNameFile(), getAltNameFile());
+                        }
+                    });
         } catch (IOException ex) {
             LOG.error("Unable to retrieve recorded message: " + ex.getMessage(), ex);
         } 
         
+        if (recordedName == null) {
+            recordedName = new File(getUserDirectory(username), getNameFile());
+            if(!recordedName.exists()) {
+                recordedName = new File(getUserDirectory(username), getAltNameFile());
+            }
+        }
         return recordedName;
 	}
 
@@ -177,6 +233,7 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
 	        
 	        m_gridFSVmTemplate.store(inputStream, getNameFile(), getAudioFormat(), VmAudioIdentifier.CURRENT
 	                , RECORDER_LABEL, RECORDER_MESSAGE_ID, message);
+	        m_audioCache.invalidate(getCacheName(message.getCurrentUser(), RECORDER_LABEL, RECORDER_MESSAGE_ID));
         } catch (IOException ex) {
             LOG.error("Unable to save recorded message: " + ex.getMessage(), ex);
         }
@@ -207,27 +264,27 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
             
             m_gridFSVmTemplate.store(inputStream, getGreetingTypeName(type), getAudioFormat(), VmAudioIdentifier.CURRENT
                     , GREETINGS_LABEL, type.getId(), message);
+            m_audioCache.invalidate(getCacheName(message.getCurrentUser(), GREETINGS_LABEL, type.getId()));
         } catch (IOException ex) {
             LOG.error("Unable to save recorded message: " + ex.getMessage(), ex);
         }
 	}
 
 	@Override
-	public String getGreetingPath(User user, GreetingType type) {
-	    //Special label for storing/getting recorded file
-        DBObject vmMetadata = m_gridFSVmTemplate.findByMessageId(user.getUserName(), GREETINGS_LABEL, type.getId());
-        GridFSDBFile dbFile = m_gridFSVmTemplate.findFileByFilename(vmMetadata, getGreetingTypeName(type));
-        if(dbFile == null) {
-            dbFile = m_gridFSVmTemplate.findFileByFilename(vmMetadata, getAltGreetingTypeName(type));
-        }
-        
+	public String getGreetingPath(final User user, final GreetingType type) {
         File greetingFile = null;
         try {
-            if (dbFile != null) {
-                TempMessage tempMessage = createTempMessage(user.getUserName(), "", true);
-                greetingFile = new File(tempMessage.getTempPath());
-                dbFile.writeTo(greetingFile);
-            }
+            //Special label for storing/getting recorded file
+            greetingFile = m_audioCache.get(getCacheName(user.getUserName(), GREETINGS_LABEL, type.getId()),
+                    new AudioFileCache.Loader() {
+                        @Override
+                        public AudioFileCache.Source load() {
+                            DBObject vmMetadata = m_gridFSVmTemplate.findByMessageId(user.getUserName(),
+                                    GREETINGS_LABEL, type.getId());
+                            return findCacheSource(vmMetadata, getGreetingTypeName(type),
+                                    getAltGreetingTypeName(type));
+                        }
+                    });
         } catch (IOException ex) {
             LOG.error("Unable to retrieve recorded message: " + ex.getMessage(), ex);
         } 
@@ -235,6 +292,42 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
         return greetingFile != null ? greetingFile.getPath() : null;
 	}
 
+	private static String getCacheName(String username, String label, String messageId) {
+	    return username + '/' + label + '/' + messageId;
+	}
+
+	/**
+	 * Audio of the first of the files found, cached by id and upload date
+	 */
+	private AudioFileCache.Source findCacheSource(DBObject vmMetadata, String... filenames) {
+	    if (vmMetadata == null) {
+	        return null;
+	    }
+	    for (String filename : filenames) {
+	        final GridFSDBFile dbFile = m_gridFSVmTemplate.findFileByFilename(vmMetadata, filename);
+	        if (dbFile != null) {
+	            final GridFSDBFile content = m_gridFSVmTemplate.getContent(dbFile);
+	            return new AudioFileCache.Source() {
+	                @Override
+	                public String getKey() {
+	                    return content.getId() + "-" + content.getUploadDate().getTime();
+	                }
+
+	                @Override
+	                public String getExtension() {
+	                    return FilenameUtils.getExtension(dbFile.getFilename());
+	                }
+
+	                @Override
+	                public void writeTo(File file) throws IOException {
+	                    content.writeTo(file);
+	                }
+	            };
+	        }
+	    }
+	    return null;
+	}
+
 	@Override
 	public boolean isMessageUnHeard(User user, String messageId) {
 	    DBObject vmMetadata = m_gridFSVmTemplate.findByMessageId(user.getUserName(), messageId);
@@ -255,30 +348,24 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
 
 	@Override
 	public void updateMessageSubject(User user, String messageId, String subject) {
-	    DBObject vmMetadata = m_gridFSVmTemplate.findByMessageId(user.getUserName(), messageId);
-        if(vmMetadata != null) {
-            vmMetadata.put(GridFSVmTemplate.SUBJECT, subject);
-            m_gridFSVmTemplate.storeVM(vmMetadata);
-        }
+	    m_gridFSVmTemplate.update(user.getUserName(), messageId, new BasicDBObject(GridFSVmTemplate.SUBJECT, subject));
 	}
 
 	@Override
 	public void moveMessageToFolder(User user, String messageId, String destination) {
-	    DBObject vmMetadata = m_gridFSVmTemplate.findByMessageId(user.getUserName(), messageId);
-        if(vmMetadata != null) {
-            vmMetadata.put(GridFSVmTemplate.LABEL, destination);
-            m_gridFSVmTemplate.storeVM(vmMetadata);
-        }
+	    m_gridFSVmTemplate.move(user.getUserName(), messageId, destination);
 	}
 
 	@Override
 	public void deleteMailbox(String username) {
 	    m_gridFSVmTemplate.delete(username);
+	    m_audioCache.invalidateAll();
 	}
 
 	@Override
 	public void renameMailbox(User user, String oldUser) {
 		m_gridFSVmTemplate.changeUser(user, oldUser);
+		m_audioCache.invalidateAll();
 	}
 
 	@Override
@@ -301,7 +388,7 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
         }
         
         if (storageFolder == Folder.INBOX) {
-            m_mwi.sendMWI(destUser, getMailboxDetails(destUser.getUserName()));
+            sendMwi(destUser);
         }
         
         LOG.info("VmMessage::newMessage created gridfs message " + dbFile.getId());
@@ -357,7 +444,7 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
             MessageDescriptor preferredAudioDescriptor = m_gridFSVmTemplate.createMessageDescriptor(preferredAudio);
             
             String originalFilename = newMessageId + String.format(VmAudioIdentifier.ORIGINAL.getFormat(), getAudioFormat());
-            m_gridFSVmTemplate.store(preferredAudio.getInputStream(), originalFilename, MimeType.getMimeByFormat(getAudioFormat())
+            m_gridFSVmTemplate.storeReference(preferredAudio, originalFilename
                     , VmAudioIdentifier.ORIGINAL, Folder.INBOX.getId(), newMessageId
                     , destUser, copyMediaDescription(descriptor, preferredAudioDescriptor));
             
@@ -376,13 +463,12 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
                     FileUtils.deleteQuietly(combinedFile);
                 }
             } else {
-                m_gridFSVmTemplate.store(preferredAudio.getInputStream(), combinedFilename
-                        , MimeType.getMimeByFormat(getAudioFormat())
+                m_gridFSVmTemplate.storeReference(preferredAudio, combinedFilename
                         , VmAudioIdentifier.COMBINED, Folder.INBOX.getId()
                         , newMessageId, destUser, descriptor);
             }
             
-            m_mwi.sendMWI(destUser, getMailboxDetails(destUser.getUserName()));
+            sendMwi(destUser);
             
             DBObject forwardMetadata = m_gridFSVmTemplate.findByMessageId(destUser.getUserName()
                     , Folder.INBOX.getId(), newMessageId);
@@ -394,8 +480,7 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
 
 	@Override
 	protected String nextMessageId() {
-		return nextMessageId(String.format(MESSAGEID_COUNTER_KEY_FORMAT
-		        , Integer.parseInt(getIvrIdentity())));
+		return m_messageIds.nextMessageId();
 	}
 	
 	private VmMessage getVmMessage(ObjectId vmId, User destUser, boolean loadAudio) {
@@ -431,20 +516,72 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
 	    return m_gridFSVmTemplate.createVmMessage(dbFile.getMetaData(), vmMetadata, null);
     }
 	
-	private void markMessageAs(User user, String messageId, boolean unheard) {
-	    DBObject vmMetadata = m_gridFSVmTemplate.findByMessageId(user.getUserName(), messageId);
-	    if(vmMetadata != null) {
-	        Boolean currentStatus = (Boolean)vmMetadata.get(GridFSVmTemplate.UNHEARD);
-	        if(currentStatus != Boolean.valueOf(unheard)) {
-	            vmMetadata.put(GridFSVmTemplate.UNHEARD, unheard);
-	            m_gridFSVmTemplate.storeVM(vmMetadata);
-	            
-	            //notify user
-	            m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
+	/**
+	 * Bulk version: one query to load the state of the messages, one update (or delete) for all
+	 */
+	@Override
+	public List<String> updateMessages(User user, List<String> messageIds, MessageAction action, String argument) {
+	    String username = user.getUserName();
+	    List<DBObject> vmMetadatas = m_gridFSVmTemplate.findByMessageIds(username, messageIds);
+	    List<String> notFound = new ArrayList<String>(messageIds);
+	    List<ObjectId> vmIds = new ArrayList<ObjectId>();
+	    String destination = action == MessageAction.MOVE ? Folder.lookUp(argument).getId() : null;
+	    for (DBObject vmMetadata : vmMetadatas) {
+	        notFound.remove(vmMetadata.get(GridFSVmTemplate.MESSAGE_ID));
+	        ObjectId vmId = (ObjectId) vmMetadata.get(MongoConstants.ID);
+	        switch (action) {
+	        case HEARD:
+	        case UNHEARD:
+	            if (isUnheard(vmMetadata) == (action == MessageAction.HEARD)) {
+	                vmIds.add(vmId);
+	            }
+	            break;
+	        case MOVE:
+	            if (!destination.equals(vmMetadata.get(GridFSVmTemplate.LABEL))) {
+	                vmIds.add(vmId);
+	            }
+	            break;
+	        default:
+	            vmIds.add(vmId);
 	        }
 	    }
+
+	    switch (action) {
+	    case HEARD:
+	    case UNHEARD:
+	        m_gridFSVmTemplate.update(vmIds, new BasicDBObject(GridFSVmTemplate.UNHEARD,
+	                action == MessageAction.UNHEARD));
+	        break;
+	    case MOVE:
+	        m_gridFSVmTemplate.update(vmIds, new BasicDBObject(GridFSVmTemplate.LABEL, destination));
+	        break;
+	    case DELETE:
+	        m_gridFSVmTemplate.delete(vmIds);
+	        break;
+	    case SUBJECT:
+	        m_gridFSVmTemplate.update(vmIds, new BasicDBObject(GridFSVmTemplate.SUBJECT, argument));
+	        break;
+	    default:
+	        throw new IllegalArgumentException(action.toString());
+	    }
+	    if (action.affectsMwi()) {
+	        sendMwi(user);
+	    }
+	    return notFound;
 	}
-	
+
+	private void markMessageAs(User user, String messageId, boolean unheard) {
+	    // only updated if the flag changes, the user is notified of actual changes only
+	    if (m_gridFSVmTemplate.update(user.getUserName(), messageId, new BasicDBObject(GridFSVmTemplate.UNHEARD,
+	            new BasicDBObject("$ne", unheard)), new BasicDBObject(GridFSVmTemplate.UNHEARD, unheard))) {
+	        sendMwi(user);
+	    }
+	}
+
+	private static boolean isUnheard(DBObject vmMetadata) {
+	    return Boolean.TRUE.equals(vmMetadata.get(GridFSVmTemplate.UNHEARD));
+	}
+
 	private GridFSDBFile selectPreferredAudioIdentifier(List<GridFSDBFile> dbFiles) {
 	    VmAudioIdentifier selectedAudio = null;
 	    GridFSDBFile preferredAudio = null;
@@ -471,17 +608,11 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
 	
 	private File combinedForwardAudio(GridFSDBFile originalAudio, TempMessage comments, User destUser) 
 	        throws Exception {
-
-	    TempMessage original = createTempMessage(destUser.getUserName(), "", true);
-	    File originalFile = m_gridFSVmTemplate.createLocalFile(originalAudio, original);
-	    
-	    try {
-	        File combinedFile = new File(createTempMessage(destUser.getUserName(), "", true).getTempPath());
-	        concatAudio(combinedFile, originalFile, new File(comments.getTempPath()));
-	        return combinedFile;
-	    } finally {
-	        FileUtils.deleteQuietly(originalFile);
-	    }
+	    File combinedFile = new File(createTempMessage(destUser.getUserName(), "", true).getTempPath());
+	    // the original is streamed from GridFS, no local copy
+	    concatAudio(combinedFile, m_gridFSVmTemplate.getContent(originalAudio).getInputStream(),
+	            new FileInputStream(comments.getTempPath()));
+	    return combinedFile;
 	}
 	
 	private MessageDescriptor copyMediaDescription(MessageDescriptor vmDescriptor, MessageDescriptor origDescriptor) {
@@ -547,15 +678,133 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
         return descriptor;
     }
 	
-	private synchronized String nextMessageId(String key) {
-		try {
-			return m_messageIdSequenceCounter.getNextMessageId(key);
-        } catch (Exception e) {
-            LOG.error("Message::nextMessageId cannot update collection " + key, e);
-            throw new RuntimeException(e);
-        }
+	/**
+	 * Message ids reserved in blocks from the sequence counter
+	 */
+	private class MessageIdSequence extends MessageIdAllocator {
+	    private final String m_key;
+
+	    MessageIdSequence(String key) {
+	        super(getMessageIdBlockSize());
+	        m_key = key;
+	    }
+
+	    @Override
+	    protected long reserve(int count) {
+	        try {
+	            return m_messageIdSequenceCounter.reserveSequences(m_key, count);
+	        } catch (Exception e) {
+	            LOG.error("Message::nextMessageId cannot update collection " + m_key, e);
+	            throw new RuntimeException(e);
+	        }
+	    }
+
+	    @Override
+	    protected String format(long id) {
+	        return m_messageIdSequenceCounter.getMessageId(id);
+	    }
 	}
 	
+	/**
+	 * Copies the mailboxes of a filesystem mailstore to GridFS, messages with their descriptor and
+	 * heard/urgent state, greetings and recorded name. Messages, greetings and names already in
+	 * GridFS are left alone, so a migration can be run again after a failure.
+	 */
+	private class GridFSMigration extends MailstoreMigration {
+	    GridFSMigration(File mailstore) {
+	        super(mailstore, m_migrationThreads);
+	    }
+
+	    @Override
+	    protected int migrateMailbox(String username, File directory) throws IOException {
+	        User user = new User();
+	        user.setUserName(username);
+	        // not thread safe, one per mailbox
+	        MessageDescriptorReader reader = new MessageDescriptorReader();
+	        FilesystemMailboxIndex index = new FilesystemMailboxIndex(directory);
+	        int migrated = 0;
+	        for (Folder folder : Folder.values()) {
+	            File folderDirectory = new File(directory, folder.toString());
+	            for (FilesystemMailboxIndex.Entry entry : index.getEntries(folder)) {
+	                if (migrateMessage(user, folder, folderDirectory, entry, reader)) {
+	                    migrated++;
+	                }
+	            }
+	        }
+
+	        File name = new File(directory, getNameFile());
+	        if (name.exists()
+	                && m_gridFSVmTemplate.findByMessageId(username, RECORDER_LABEL, RECORDER_MESSAGE_ID) == null) {
+	            saveRecordedName(new TempMessage(username, name.getPath(), null, Priority.NORMAL, null));
+	            addMigratedBytes(name.length());
+	        }
+	        for (GreetingType type : GreetingType.values()) {
+	            if (type == GreetingType.NONE) {
+	                continue;
+	            }
+	            File greeting = new File(directory, getGreetingTypeName(type));
+	            if (greeting.exists()
+	                    && m_gridFSVmTemplate.findByMessageId(username, GREETINGS_LABEL, type.getId()) == null) {
+	                saveGreetingFile(type, new TempMessage(username, greeting.getPath(), null, Priority.NORMAL, null));
+	                addMigratedBytes(greeting.length());
+	            }
+	        }
+	        return migrated;
+	    }
+
+	    /**
+	     * @return false if the message was already migrated
+	     */
+	    private boolean migrateMessage(User user, Folder folder, File folderDirectory,
+	            FilesystemMailboxIndex.Entry entry, MessageDescriptorReader reader) throws IOException {
+	        String messageId = entry.getMessageId();
+	        DBObject vmMetadata = m_gridFSVmTemplate.findByMessageId(user.getUserName(), messageId);
+	        if (vmMetadata != null && !folder.getId().equals(vmMetadata.get(GridFSVmTemplate.LABEL))) {
+	            // migrated, then moved by the user
+	            return false;
+	        }
+	        MessageDescriptor descriptor = reader.readObject(entry.getFile(folderDirectory,
+	                FilesystemMailboxManager.MESSAGE_IDENTIFIER));
+	        if (descriptor == null) {
+	            LOG.warn(String.format("GridFSMigration: unreadable descriptor, skipping message %s of %s", messageId,
+	                    user.getUserName()));
+	            return false;
+	        }
+	        if (descriptor.getDurationSecs() == null) {
+	            descriptor.setDurationSecs(0);
+	        }
+	        if (entry.isUrgent()) {
+	            descriptor.setPriority(Priority.URGENT);
+	        }
+
+	        boolean migrated = false;
+	        for (VmAudioIdentifier identifier : new VmAudioIdentifier[] {
+	            VmAudioIdentifier.CURRENT, VmAudioIdentifier.ORIGINAL, VmAudioIdentifier.COMBINED
+	        }) {
+	            // the descriptor and the status files share the prefix of the audio, <id>-01.xml
+	            // of a forwarded message included
+	            for (String format : new String[] {getAudioFormat(), getAltAudioFormat()}) {
+	                String filename = messageId + String.format(identifier.getFormat(), format);
+	                if (!entry.getFileNames().contains(filename)
+	                        || (vmMetadata != null && m_gridFSVmTemplate.findFileByFilename(vmMetadata, filename) != null)) {
+	                    continue;
+	                }
+	                File audio = new File(folderDirectory, filename);
+	                try (FileInputStream content = new FileInputStream(audio)) {
+	                    m_gridFSVmTemplate.store(content, filename, MimeType.getMimeByFormat(format), identifier,
+	                            folder.getId(), messageId, user, descriptor, entry.isUnheard());
+	                }
+	                addMigratedBytes(audio.length());
+	                migrated = true;
+	                if (vmMetadata == null) {
+	                    vmMetadata = m_gridFSVmTemplate.findByMessageId(user.getUserName(), folder.getId(), messageId);
+	                }
+	            }
+	        }
+	        return migrated;
+	    }
+	}
+
 	private File getFolder(String username, Folder folder) {
         File file = new File(getUserDirectory(username), folder.toString());
         if (!file.exists()) {
@@ -568,6 +817,41 @@ public class GridFSMailboxManager extends AbstractMailboxManager {
         return new File(m_mailstoreDirectory + File.separator + username);
     }
 	
+	/**
+	 * Migration runs in the background while the server takes calls, progress is logged
+	 */
+	@Override
+	public void migrate(String path) {
+	    Thread migration = new Thread(createMigration(new File(path)), "GridFSMigration");
+	    migration.start();
+	}
+
+	MailstoreMigration createMigration(File mailstore) {
+	    return new GridFSMigration(mailstore);
+	}
+
+	/**
+	 * @param migrationThreads mailboxes migrated in parallel
+	 */
+	public void setMigrationThreads(int migrationThreads) {
+	    m_migrationThreads = migrationThreads;
+	}
+
+	/**
+	 * @param audioCacheSize megabytes of greetings and recorded names kept locally
+	 */
+	public void setAudioCacheSize(int audioCacheSize) {
+	    m_audioCacheSize = audioCacheSize;
+	}
+
+	/**
+	 * @param audioCacheLookupTtl seconds during which changes made by other servers to a greeting
+	 *        or recorded name may go unnoticed
+	 */
+	public void setAudioCacheLookupTtl(int audioCacheLookupTtl) {
+	    m_audioCacheLookupTtl = audioCacheLookupTtl;
+	}
+
 	public GridFSSequenceCounter getMessageIdSequenceCounter() {
 		return m_messageIdSequenceCounter;
 	}
@@ -0,0 +1,104 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Spreads mailboxes over one or more roots, each root holding levels of shard directories named
+ * after the MD5 of the user name, e.g. root/3f/a2/201.
+ *
+ * A user is placed on the root with the highest hash of root and user name, so adding a root only
+ * moves the mailboxes placed on the new root. Mailboxes are moved by FilesystemMailboxManager when
+ * first accessed, it looks for them on the other roots. Roots must not be the directory of a flat
+ * mailstore, shard directories could be taken for mailboxes.
+ */
+public class HashedMailboxLayout implements MailboxLayout {
+    private List<File> m_roots = new ArrayList<File>();
+    private int m_depth = 2;
+
+    @Override
+    public File getUserDirectory(String username) {
+        if (m_roots.isEmpty()) {
+            throw new IllegalStateException("no mailstore root configured");
+        }
+        File root = m_roots.get(0);
+        if (m_roots.size() > 1) {
+            String highest = null;
+            for (File candidate : m_roots) {
+                String weight = DigestUtils.md5Hex(candidate.getPath() + File.separator + username);
+                if (highest == null || weight.compareTo(highest) > 0) {
+                    highest = weight;
+                    root = candidate;
+                }
+            }
+        }
+        return getUserDirectory(root, username);
+    }
+
+    @Override
+    public List<File> getUserDirectories(String username) {
+        List<File> directories = new ArrayList<File>(m_roots.size());
+        for (File root : m_roots) {
+            directories.add(getUserDirectory(root, username));
+        }
+        return directories;
+    }
+
+    private File getUserDirectory(File root, String username) {
+        String hash = DigestUtils.md5Hex(username);
+        File directory = root;
+        for (int i = 0; i < m_depth; i++) {
+            directory = new File(directory, hash.substring(2 * i, 2 * i + 2));
+        }
+        return new File(directory, username);
+    }
+
+    @Override
+    public List<File> getRoots() {
+        return Collections.unmodifiableList(m_roots);
+    }
+
+    /**
+     * @param roots comma separated list of directories
+     */
+    public void setRoots(String roots) {
+        List<File> files = new ArrayList<File>();
+        for (String root : StringUtils.split(roots, ',')) {
+            if (StringUtils.isNotBlank(root)) {
+                files.add(new File(root.trim()));
+            }
+        }
+        m_roots = files;
+    }
+
+    /**
+     * @param depth levels of shard directories, each level has 256 directories
+     */
+    public void setDepth(int depth) {
+        if (depth < 0 || depth > 16) {
+            throw new IllegalArgumentException("depth must be between 0 and 16");
+        }
+        m_depth = depth;
+    }
+}
@@ -19,6 +19,12 @@ package org.sipfoundry.voicemail.mailbox;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Message counts of a mailbox and the ids of its messages per folder.
+ *
+ * Details built from counts only load the message ids of a folder the first time they are asked
+ * for, so callers that only need counts (MWI, main menu status) do not pay for the lists.
+ */
 public class MailboxDetails {
 
     private String m_userName;
@@ -29,6 +35,11 @@ public class MailboxDetails {
     private List<String> m_unheard;
     private Integer m_heardCount;
     private Integer m_unheardCount;
+    private int m_inboxCount;
+    private int m_savedCount;
+    private int m_deletedCount;
+    private int m_conferencesCount;
+    private MessageIdLoader m_loader;
 
     public MailboxDetails(String username, List<String> inbox, List<String> saved, List<String> deleted, List<String> conference,
             List<String> unheard) {
@@ -39,17 +50,40 @@ public class MailboxDetails {
         m_conferences = conference;
         m_unheard = unheard;
         m_heardCount = m_inbox.size() - m_unheard.size();
-        m_unheardCount = m_unheard.size();        
+        m_unheardCount = m_unheard.size();
+        m_inboxCount = m_inbox.size();
+        m_savedCount = m_saved.size();
+        m_deletedCount = m_deleted.size();
+        m_conferencesCount = m_conferences.size();
+    }
+
+    /**
+     * Counts only, message ids are loaded on demand by the loader
+     */
+    public MailboxDetails(String username, int inboxCount, int savedCount, int deletedCount, int conferencesCount,
+            int unheardCount, MessageIdLoader loader) {
+        m_userName = username;
+        m_inboxCount = inboxCount;
+        m_savedCount = savedCount;
+        m_deletedCount = deletedCount;
+        m_conferencesCount = conferencesCount;
+        m_heardCount = inboxCount - unheardCount;
+        m_unheardCount = unheardCount;
+        m_loader = loader;
     }
-    
+
     public void merge(MailboxDetails from) {
-        m_inbox = safeMerge(m_inbox, from.m_inbox);
-        m_saved = safeMerge(m_saved, from.m_saved);
-        m_deleted = safeMerge(m_deleted, from.m_deleted);
-        m_conferences = safeMerge(m_conferences, from.m_conferences);
-        m_unheard = safeMerge(m_unheard, from.m_unheard);
+        m_inbox = safeMerge(getInbox(), from.getInbox());
+        m_saved = safeMerge(getSaved(), from.getSaved());
+        m_deleted = safeMerge(getDeleted(), from.getDeleted());
+        m_conferences = safeMerge(getConferences(), from.getConferences());
+        m_unheard = safeMerge(getUnheard(), from.getUnheard());
         m_heardCount += from.m_heardCount;
         m_unheardCount += from.m_unheardCount;
+        m_inboxCount += from.m_inboxCount;
+        m_savedCount += from.m_savedCount;
+        m_deletedCount += from.m_deletedCount;
+        m_conferencesCount += from.m_conferencesCount;
     }
     
     private List<String> safeMerge(List<String> to, List<String> from) {
@@ -67,38 +101,58 @@ public class MailboxDetails {
         m_userName = username;
         m_heardCount = heard;
         m_unheardCount = unheard;
+        m_inboxCount = heard + unheard;
     }
 
     public List<String> getInbox() {
+        if (m_inbox == null) {
+            m_inbox = load(Folder.INBOX, false);
+        }
         return m_inbox;
     }
 
     public List<String> getSaved() {
+        if (m_saved == null) {
+            m_saved = load(Folder.SAVED, false);
+        }
         return m_saved;
     }
 
     public List<String> getDeleted() {
+        if (m_deleted == null) {
+            m_deleted = load(Folder.DELETED, false);
+        }
         return m_deleted;
     }
 
     public List<String> getConferences() {
+        if (m_conferences == null) {
+            m_conferences = load(Folder.CONFERENCE, false);
+        }
         return m_conferences;
     }
 
     public List<String> getUnheard() {
+        if (m_unheard == null) {
+            m_unheard = load(Folder.INBOX, true);
+        }
         return m_unheard;
     }
 
+    private List<String> load(Folder folder, boolean unheardOnly) {
+        return m_loader != null ? m_loader.getMessageIds(folder, unheardOnly) : null;
+    }
+
     public String getUserName() {
         return m_userName;
     }
 
     public int getInboxCount() {
-        return m_inbox.size();
+        return m_inboxCount;
     }
 
     public int getSavedCount() {
-        return m_saved.size();
+        return m_savedCount;
     }
 
     public int getUnheardCount() {
@@ -110,11 +164,11 @@ public class MailboxDetails {
     }
 
     public int getDeletedCount() {
-        return m_deleted.size();
+        return m_deletedCount;
     }
 
     public int getConferencesCount() {
-        return m_conferences.size();
+        return m_conferencesCount;
     }
 
     public void incrementHeardCount() {
@@ -125,4 +179,10 @@ public class MailboxDetails {
         m_unheardCount ++;
     }
 
+    /**
+     * Loads the ids of the messages in a folder (or of the unheard ones)
+     */
+    public interface MessageIdLoader {
+        List<String> getMessageIds(Folder folder, boolean unheardOnly);
+    }
 }
@@ -0,0 +1,38 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Placement of the user mailboxes of a filesystem mailstore
+ */
+public interface MailboxLayout {
+    File getUserDirectory(String username);
+
+    /**
+     * @return every directory the mailbox of the user can be in, on each root, so that a mailbox
+     *         left behind by a change of the roots can be found
+     */
+    List<File> getUserDirectories(String username);
+
+    /**
+     * @return directories holding the mailboxes, never user directories themselves
+     */
+    List<File> getRoots();
+}
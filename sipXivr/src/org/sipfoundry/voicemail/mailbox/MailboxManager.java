@@ -28,8 +28,27 @@ public interface MailboxManager {
 
     MailboxDetails getMailboxDetails(String username);
 
+    /**
+     * Heard/unheard counts for MWI, kept up to date incrementally; message lists are not loaded
+     */
+    MailboxDetails getMwiCounts(String username);
+
+    /**
+     * Counts the mailbox again and resets the MWI counters
+     */
+    MailboxDetails reconcileMwiCounts(String username);
+
     List<VmMessage> getMessages(String username, Folder folder);
 
+    /**
+     * Lists the messages of a folder that fall in the page, oldest first, without loading the
+     * whole folder in memory. The page records what the folder used up and whether more messages
+     * follow it.
+     *
+     * @param since only messages received after this time (milliseconds), 0 for all
+     */
+    void listMessages(String username, Folder folder, long since, MessagePage page, MessageHandler handler);
+
     TempMessage createTempMessage(String username, String fromUri, boolean addAudio);
 
     TempMessage createTempMessage(String username, String fromUri, String extension, boolean addAudio);
@@ -46,8 +65,24 @@ public interface MailboxManager {
 
     VmMessage getVmMessage(String username, Folder folder, String messageId, boolean loadAudio);
 
+    /**
+     * Audio of a message for streaming, without copying it to a temporary file
+     *
+     * @throws MessageNotFoundException
+     */
+    MessageAudio getMessageAudio(String username, String messageId);
+
     void markMessageHeard(User user, VmMessage message);
 
+    /**
+     * Applies one action to several messages of a mailbox in one pass and sends a single MWI at
+     * the end
+     *
+     * @param argument destination folder for MOVE, new subject for SUBJECT, ignored otherwise
+     * @return ids of the messages not found
+     */
+    List<String> updateMessages(User user, List<String> messageIds, MessageAction action, String argument);
+
     void saveMessage(User user, VmMessage message);
 
     void deleteMessage(User user, VmMessage message);
@@ -0,0 +1,206 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Walks a filesystem mailstore and hands each mailbox to {@link #migrateMailbox(String, File)}
+ * on a pool of worker threads.
+ *
+ * Mailboxes are found in the flat layout as well as in a hashed one. Each migrated mailbox is
+ * recorded in a checkpoint file in the mailstore, a new run skips them. A mailbox that failed
+ * is not recorded and is migrated again on the next run, so migrateMailbox has to skip what was
+ * already migrated.
+ */
+public abstract class MailstoreMigration implements Runnable {
+    public static final String CHECKPOINT_FILE = ".migrated";
+
+    private static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
+    // levels of shard directories searched for mailboxes
+    private static final int MAX_DEPTH = 3;
+
+    private final File m_mailstore;
+    private final File m_checkpoint;
+    private final int m_threads;
+    private final AtomicInteger m_migratedMailboxes = new AtomicInteger();
+    private final AtomicInteger m_failedMailboxes = new AtomicInteger();
+    private final AtomicLong m_messages = new AtomicLong();
+    private final AtomicLong m_bytes = new AtomicLong();
+    private int m_totalMailboxes;
+    private long m_start;
+
+    public MailstoreMigration(File mailstore, int threads) {
+        m_mailstore = mailstore;
+        m_checkpoint = new File(mailstore, CHECKPOINT_FILE);
+        m_threads = threads;
+    }
+
+    /**
+     * @return number of messages migrated, already migrated messages excluded
+     */
+    protected abstract int migrateMailbox(String username, File directory) throws IOException;
+
+    /**
+     * To be called by {@link #migrateMailbox(String, File)} for the audio uploaded
+     */
+    protected void addMigratedBytes(long bytes) {
+        m_bytes.addAndGet(bytes);
+    }
+
+    @Override
+    public void run() {
+        m_start = System.currentTimeMillis();
+        Set<String> done = readCheckpoint();
+        List<File> mailboxes = new ArrayList<File>();
+        findMailboxes(m_mailstore, 0, mailboxes);
+        List<File> pending = new ArrayList<File>();
+        for (File mailbox : mailboxes) {
+            if (!done.contains(mailbox.getName())) {
+                pending.add(mailbox);
+            }
+        }
+        m_totalMailboxes = pending.size();
+        LOG.info(String.format("MailstoreMigration::run migrating %d mailboxes from %s, %d already migrated",
+                m_totalMailboxes, m_mailstore.getPath(), mailboxes.size() - m_totalMailboxes));
+
+        ExecutorService workers = Executors.newFixedThreadPool(m_threads);
+        for (final File mailbox : pending) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    migrate(mailbox);
+                }
+            });
+        }
+        workers.shutdown();
+        try {
+            while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                logProgress();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        LOG.info(String.format("MailstoreMigration::run done, %d mailboxes migrated, %d failed, %s",
+                m_migratedMailboxes.get(), m_failedMailboxes.get(), getThroughput()));
+    }
+
+    private void migrate(File mailbox) {
+        String username = mailbox.getName();
+        long start = System.currentTimeMillis();
+        try {
+            int messages = migrateMailbox(username, mailbox);
+            m_messages.addAndGet(messages);
+            checkpoint(username);
+            m_migratedMailboxes.incrementAndGet();
+            LOG.info(String.format("MailstoreMigration::migrate mailbox %s: %d messages in %d ms", username,
+                    messages, System.currentTimeMillis() - start));
+        } catch (Exception e) {
+            m_failedMailboxes.incrementAndGet();
+            LOG.error("MailstoreMigration::migrate failed to migrate mailbox " + username, e);
+        }
+        if ((m_migratedMailboxes.get() + m_failedMailboxes.get()) % 100 == 0) {
+            logProgress();
+        }
+    }
+
+    private void logProgress() {
+        LOG.info(String.format("MailstoreMigration progress: %d/%d mailboxes, %d failed, %s",
+                m_migratedMailboxes.get(), m_totalMailboxes, m_failedMailboxes.get(), getThroughput()));
+    }
+
+    private String getThroughput() {
+        double seconds = Math.max(1, System.currentTimeMillis() - m_start) / 1000.0;
+        return String.format("%d messages (%.1f/s), %d MB (%.2f MB/s) in %.0f s", m_messages.get(),
+                m_messages.get() / seconds, m_bytes.get() >> 20, m_bytes.get() / seconds / (1 << 20), seconds);
+    }
+
+    /**
+     * Mailboxes are the directories holding message folders, greetings or a recorded name; other
+     * directories are searched as shard directories
+     */
+    private static void findMailboxes(File directory, int depth, List<File> mailboxes) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (!child.isDirectory() || child.getName().startsWith(".")) {
+                continue;
+            }
+            if (isMailbox(child)) {
+                mailboxes.add(child);
+            } else if (depth < MAX_DEPTH) {
+                findMailboxes(child, depth + 1, mailboxes);
+            }
+        }
+    }
+
+    /**
+     * @return true if the directory holds a user mailbox, not a shard directory
+     */
+    static boolean isMailbox(File directory) {
+        for (Folder folder : Folder.values()) {
+            if (new File(directory, folder.toString()).isDirectory()) {
+                return true;
+            }
+        }
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith("name.") || name.startsWith("standard.") || name.equals("mailboxprefs.xml")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private Set<String> readCheckpoint() {
+        Set<String> done = new HashSet<String>();
+        if (m_checkpoint.exists()) {
+            try {
+                for (String line : FileUtils.readLines(m_checkpoint)) {
+                    if (line.length() > 0) {
+                        done.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn("MailstoreMigration::readCheckpoint cannot read " + m_checkpoint.getPath(), e);
+            }
+        }
+        return done;
+    }
+
+    private synchronized void checkpoint(String username) throws IOException {
+        FileUtils.writeStringToFile(m_checkpoint, username + "\n", true);
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+/**
+ * Actions that can be applied to several messages at once, see
+ * {@link MailboxManager#updateMessages(org.sipfoundry.commons.userdb.User, java.util.List, MessageAction, String)}
+ */
+public enum MessageAction {
+    HEARD("heard"),
+    UNHEARD("unheard"),
+    MOVE("move"),
+    DELETE("delete"),
+    SUBJECT("subject");
+
+    private final String m_id;
+
+    private MessageAction(String id) {
+        m_id = id;
+    }
+
+    public String getId() {
+        return m_id;
+    }
+
+    /**
+     * Whether the action can change the inbox counts
+     */
+    public boolean affectsMwi() {
+        return this != SUBJECT;
+    }
+
+    public static MessageAction tryLookUp(String name) {
+        for (MessageAction action : values()) {
+            if (action.m_id.equalsIgnoreCase(name)) {
+                return action;
+            }
+        }
+        return null;
+    }
+}
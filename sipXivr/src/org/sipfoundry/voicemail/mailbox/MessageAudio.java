@@ -0,0 +1,68 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Audio of a stored message, read directly from the mailstore (no temporary copy) so it can be
+ * streamed in full or by byte range.
+ */
+public abstract class MessageAudio {
+    private final String m_name;
+    private final String m_format;
+    private final long m_length;
+    private final long m_lastModified;
+    private final String m_etag;
+
+    protected MessageAudio(String name, String format, long length, long lastModified, String etag) {
+        m_name = name;
+        m_format = format;
+        m_length = length;
+        m_lastModified = lastModified;
+        m_etag = etag;
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    public String getFormat() {
+        return m_format;
+    }
+
+    public long getLength() {
+        return m_length;
+    }
+
+    public long getLastModified() {
+        return m_lastModified;
+    }
+
+    /**
+     * Strong entity tag (quoted), changes whenever the audio content changes
+     */
+    public String getETag() {
+        return m_etag;
+    }
+
+    /**
+     * Writes count bytes starting at offset
+     */
+    public abstract void transferTo(long offset, long count, OutputStream out) throws IOException;
+}
@@ -0,0 +1,73 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out message ids from blocks reserved in a persistent counter (hi/lo).
+ *
+ * Reserving a block is the only operation that touches the counter; ids within the block are
+ * handed out lock-free. The counter is moved past the whole block before any id of it is used, so
+ * a crash only leaves a gap in the ids, never a duplicate.
+ */
+public abstract class MessageIdAllocator {
+    private final int m_blockSize;
+    private volatile Block m_block;
+
+    protected MessageIdAllocator(int blockSize) {
+        m_blockSize = blockSize;
+    }
+
+    public String nextMessageId() {
+        for (;;) {
+            Block block = m_block;
+            if (block != null) {
+                long id = block.m_next.getAndIncrement();
+                if (id < block.m_end) {
+                    return format(id);
+                }
+            }
+            synchronized (this) {
+                // another thread may have reserved a new block meanwhile
+                if (m_block == block) {
+                    long start = reserve(m_blockSize);
+                    m_block = new Block(start, start + m_blockSize);
+                }
+            }
+        }
+    }
+
+    /**
+     * Persistently reserves count ids
+     *
+     * @return the first reserved id
+     */
+    protected abstract long reserve(int count);
+
+    protected abstract String format(long id);
+
+    private static class Block {
+        private final AtomicLong m_next;
+        private final long m_end;
+
+        Block(long start, long end) {
+            m_next = new AtomicLong(start);
+            m_end = end;
+        }
+    }
+}
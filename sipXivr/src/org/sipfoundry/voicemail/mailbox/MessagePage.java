@@ -0,0 +1,82 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+/**
+ * Page of a message listing. The same page passed to the listing of several folders in turn pages
+ * over the messages of all of them, one folder after the other: the offset not used up by a
+ * folder is skipped in the next ones, which only fill what is left of the page.
+ */
+public class MessagePage {
+    private final int m_offset;
+    private final int m_limit;
+    private int m_skipped;
+    private int m_listed;
+    private boolean m_more;
+
+    /**
+     * @param limit page size, 0 for no limit
+     */
+    public MessagePage(int offset, int limit) {
+        m_offset = offset;
+        m_limit = limit;
+    }
+
+    /**
+     * @return number of messages still to skip before the page starts
+     */
+    public int getToSkip() {
+        return m_offset - m_skipped;
+    }
+
+    public void skipped(int count) {
+        m_skipped += count;
+    }
+
+    /**
+     * @return number of messages still to list, Integer.MAX_VALUE if there is no limit
+     */
+    public int getToList() {
+        return m_limit > 0 ? m_limit - m_listed : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Counts positions of the page, listed or not
+     */
+    public void listed(int count) {
+        m_listed += count;
+    }
+
+    public boolean isFull() {
+        return getToList() == 0;
+    }
+
+    public boolean isLimited() {
+        return m_limit > 0;
+    }
+
+    /**
+     * Records that messages follow the page
+     */
+    public void setMore() {
+        m_more = true;
+    }
+
+    public boolean hasMore() {
+        return m_more;
+    }
+}
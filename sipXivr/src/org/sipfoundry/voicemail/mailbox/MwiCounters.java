@@ -0,0 +1,154 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heard/unheard inbox counters used for MWI, kept per mailbox so that notifications do not have
+ * to count the mailbox content every time.
+ *
+ * Counters are created by a reconcile (a full count done by the mailbox manager) and then kept
+ * up to date with the deltas reported by the manager when it changes an inbox. They expire after
+ * the reconcile interval, which repairs any drift caused by changes made outside sipXivr.
+ *
+ * A reconcile only takes effect if no delta was reported for the mailbox while the count was in
+ * progress, otherwise the counters are left invalid and the next access counts again.
+ */
+public class MwiCounters {
+    private static final long DEFAULT_RECONCILE_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+    private final ConcurrentMap<String, Counter> m_counters = new ConcurrentHashMap<String, Counter>();
+    private long m_reconcileInterval = DEFAULT_RECONCILE_INTERVAL;
+
+    /**
+     * @return counts (without message lists) or null if the mailbox has to be reconciled
+     */
+    public MailboxDetails getCounts(String username) {
+        return getCounter(username).getCounts(username, m_reconcileInterval);
+    }
+
+    /**
+     * To be called before counting the mailbox, the result has to be passed to
+     * {@link #reconcile(String, long, MailboxDetails)}
+     */
+    public long getGeneration(String username) {
+        return getCounter(username).getGeneration();
+    }
+
+    public void reconcile(String username, long generation, MailboxDetails details) {
+        getCounter(username).reconcile(generation, details.getHeardCount(), details.getUnheardCount());
+    }
+
+    /**
+     * Records a message added to (delta 1) or removed from (delta -1) the inbox
+     */
+    public void update(String username, boolean unheard, int delta) {
+        if (unheard) {
+            update(username, 0, delta);
+        } else {
+            update(username, delta, 0);
+        }
+    }
+
+    /**
+     * Records an inbox message marked unheard (true) or heard (false)
+     */
+    public void update(String username, boolean unheard) {
+        update(username, unheard ? -1 : 1, unheard ? 1 : -1);
+    }
+
+    public void update(String username, int heardDelta, int unheardDelta) {
+        getCounter(username).update(heardDelta, unheardDelta);
+    }
+
+    public void invalidate(String username) {
+        // counters are never removed, a reconcile in progress must see the generation change
+        getCounter(username).invalidate();
+    }
+
+    public void invalidateAll() {
+        for (Counter counter : m_counters.values()) {
+            counter.invalidate();
+        }
+    }
+
+    private Counter getCounter(String username) {
+        Counter counter = m_counters.get(username);
+        if (counter == null) {
+            Counter newCounter = new Counter();
+            counter = m_counters.putIfAbsent(username, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @param reconcileInterval interval in seconds after which counters are recounted
+     */
+    public void setReconcileInterval(int reconcileInterval) {
+        m_reconcileInterval = TimeUnit.SECONDS.toMillis(reconcileInterval);
+    }
+
+    private static class Counter {
+        private long m_generation;
+        private boolean m_valid;
+        private long m_reconciled;
+        private int m_heard;
+        private int m_unheard;
+
+        synchronized MailboxDetails getCounts(String username, long reconcileInterval) {
+            if (!m_valid || System.currentTimeMillis() - m_reconciled > reconcileInterval) {
+                return null;
+            }
+            return new MailboxDetails(username, m_heard, m_unheard);
+        }
+
+        synchronized long getGeneration() {
+            return m_generation;
+        }
+
+        synchronized void reconcile(long generation, int heard, int unheard) {
+            if (generation != m_generation) {
+                return;
+            }
+            m_heard = heard;
+            m_unheard = unheard;
+            m_reconciled = System.currentTimeMillis();
+            m_valid = true;
+        }
+
+        synchronized void update(int heardDelta, int unheardDelta) {
+            m_generation++;
+            m_heard += heardDelta;
+            m_unheard += unheardDelta;
+            if (m_heard < 0 || m_unheard < 0) {
+                // out of sync with the mailbox
+                m_valid = false;
+            }
+        }
+
+        synchronized void invalidate() {
+            m_generation++;
+            m_valid = false;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox.gridfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.sipfoundry.voicemail.mailbox.MessageAudio;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.gridfs.GridFSDBFile;
+
+/**
+ * Message audio streamed from the GridFS chunks; skipping to an offset only loads the chunks
+ * from that offset on.
+ */
+public class GridFSMessageAudio extends MessageAudio {
+    private final GridFSDBFile m_dbFile;
+
+    public GridFSMessageAudio(GridFSDBFile dbFile) {
+        this(dbFile, dbFile);
+    }
+
+    /**
+     * @param content file holding the audio of dbFile, which may be a reference to it
+     */
+    public GridFSMessageAudio(GridFSDBFile dbFile, GridFSDBFile content) {
+        super(dbFile.getFilename(), getAudioFormat(dbFile), content.getLength(), content.getUploadDate().getTime(),
+                "\"" + (content.getMD5() != null ? content.getMD5() : content.getId().toString()) + "\"");
+        m_dbFile = content;
+    }
+
+    @Override
+    public void transferTo(long offset, long count, OutputStream out) throws IOException {
+        InputStream in = m_dbFile.getInputStream();
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = in.skip(offset - skipped);
+                if (n <= 0) {
+                    return;
+                }
+                skipped += n;
+            }
+            IOUtils.copyLarge(in, out, 0, count);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String getAudioFormat(GridFSDBFile dbFile) {
+        BasicDBObject metadata = new BasicDBObject();
+        metadata.putAll(dbFile.getMetaData());
+        return metadata.getString(GridFSVmTemplate.AUDIO_FORMAT, "");
+    }
+}
@@ -1,15 +1,29 @@
 package org.sipfoundry.voicemail.mailbox.gridfs;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.sipfoundry.commons.mongo.MongoSequenceCounter;
 import org.sipfoundry.commons.mongo.MongoSpringTemplate;
 
-import com.mongodb.gridfs.GridFS;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
 
 public class GridFSSequenceCounter extends MongoSequenceCounter {
 
 	private static final String MESSAGEID_COUNTER_SEQ_FORMAT = "%d%08d";
+	private static final String BLOCK_SUFFIX = "-BLOCK";
+	private static final String BLOCK_NEXT = "next";
+	// field of the sequence in the documents of MongoSequenceCounter
+	private static final String LEGACY_SEQ = "seq";
 	
+	private final MongoSpringTemplate m_dbTemplate;
+	private final String m_collectionName;
 	private String m_ivrIdentityId;
+	// keys whose single step counter document was found to hold LEGACY_SEQ
+	private final ConcurrentMap<String, Boolean> m_legacyChecked = new ConcurrentHashMap<String, Boolean>();
 	
 	public GridFSSequenceCounter(MongoSpringTemplate dbTemplate, String ivrIdentityId) {
 		this(dbTemplate, ivrIdentityId, GridFSVmTemplate.DEFAULT_BUCKET);
@@ -17,6 +31,8 @@ public class GridFSSequenceCounter extends MongoSequenceCounter {
 	
 	public GridFSSequenceCounter(MongoSpringTemplate dbTemplate, String ivrIdentityId, String bucket) {
 		super(dbTemplate, bucket + ".counter");
+		this.m_dbTemplate = dbTemplate;
+		this.m_collectionName = bucket + ".counter";
 		this.m_ivrIdentityId = ivrIdentityId;
 	}
 	
@@ -30,6 +46,58 @@ public class GridFSSequenceCounter extends MongoSequenceCounter {
 		return generateMessageId(sequence);
 	}
 	
+	/**
+	 * Atomically reserves count sequence numbers for key.
+	 *
+	 * Blocks are kept in their own document, seeded from the single step sequence of the same key
+	 * the first time, so ids keep on growing after an upgrade. The single step sequence is raised
+	 * to the end of every block, so that servers not upgraded yet do not hand out reserved ids.
+	 *
+	 * @return the first reserved sequence number
+	 */
+	public long reserveSequences(String key, int count) {
+		DBCollection counters = m_dbTemplate.getDb().getCollection(m_collectionName);
+		DBObject query = new BasicDBObject("_id", key + BLOCK_SUFFIX);
+		if (counters.findOne(query) == null) {
+			try {
+				counters.insert(new BasicDBObject("_id", key + BLOCK_SUFFIX)
+						.append(BLOCK_NEXT, getCurrentSequence(key) + 1));
+			} catch (DuplicateKeyException e) {
+				// seeded concurrently by another node
+			}
+		}
+		DBObject block = counters.findAndModify(query, null, null, false,
+				new BasicDBObject("$inc", new BasicDBObject(BLOCK_NEXT, count)), false, false);
+		long first = ((Number) block.get(BLOCK_NEXT)).longValue();
+		raiseLegacySequence(counters, key, first + count - 1);
+		return first;
+	}
+
+	/**
+	 * Raises the single step sequence of key to at least last
+	 */
+	private void raiseLegacySequence(DBCollection counters, String key, long last) {
+		if (!m_legacyChecked.containsKey(key)) {
+			DBObject legacy = counters.findOne(new BasicDBObject("_id", key));
+			if (legacy == null) {
+				// created by the single step counter
+				getCurrentSequence(key);
+				legacy = counters.findOne(new BasicDBObject("_id", key));
+			}
+			if (legacy == null || !(legacy.get(LEGACY_SEQ) instanceof Number)) {
+				throw new IllegalStateException(String.format("No %s field in sequence document %s of %s",
+						LEGACY_SEQ, key, m_collectionName));
+			}
+			m_legacyChecked.put(key, Boolean.TRUE);
+		}
+		counters.update(new BasicDBObject("_id", key),
+				new BasicDBObject("$max", new BasicDBObject(LEGACY_SEQ, last)));
+	}
+
+	public String getMessageId(long sequenceNumber) {
+		return generateMessageId(sequenceNumber);
+	}
+
 	private String generateMessageId(long sequenceNumber) {
 		return String.format(MESSAGEID_COUNTER_SEQ_FORMAT
 				, Integer.parseInt(m_ivrIdentityId)
@@ -1,32 +1,43 @@
 package org.sipfoundry.voicemail.mailbox.gridfs;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
 import org.bson.types.ObjectId;
 import org.sipfoundry.commons.mongo.MongoConstants;
 import org.sipfoundry.commons.userdb.User;
 import org.sipfoundry.voicemail.mailbox.Folder;
 import org.sipfoundry.voicemail.mailbox.MessageDescriptor;
 import org.sipfoundry.voicemail.mailbox.MessageDescriptor.Priority;
+import org.sipfoundry.voicemail.mailbox.MessageHandler;
+import org.sipfoundry.voicemail.mailbox.MessagePage;
 import org.sipfoundry.voicemail.mailbox.TempMessage;
 import org.sipfoundry.voicemail.mailbox.VmMessage;
 import org.springframework.data.mongodb.MongoDbFactory;
 import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
 import org.springframework.data.mongodb.core.convert.MongoConverter;
 import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.BasicQuery;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
 import org.springframework.util.Assert;
 
+import com.mongodb.AggregationOutput;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
@@ -39,6 +50,7 @@ import com.mongodb.gridfs.GridFSDBFile;
 import com.mongodb.gridfs.GridFSFile;
 
 public class GridFSVmTemplate {
+    private static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
 
     public static final String USER = "user";
     public static final String LABEL = "label";
@@ -57,11 +69,15 @@ public class GridFSVmTemplate {
     public static final String CONTENT_LENGTH = "contentLength";
     public static final String VOICEMAIL_ID = "voicemailId";
     public static final String FILENAME = "filename";
+    public static final String CONTENT_ID = "contentId";
+    public static final String REFERENCES = "references";
 
     public final static String DEFAULT_BUCKET = "voicemail";
     public final static String DEFAULT_METADATA = "metadata";
 
     private final static String METADATA_VOICEMAIL_ID = DEFAULT_METADATA + "." + VOICEMAIL_ID;
+    private final static String METADATA_REFERENCES = DEFAULT_METADATA + "." + REFERENCES;
+    private final static int LIST_BATCH_SIZE = 100;
     
     private final GridFsTemplate m_gridFSTemplate;
     private final MongoDbFactory m_dbFactory;
@@ -195,6 +211,9 @@ public class GridFSVmTemplate {
         return storeVM(copyVm);
     }
     
+    /**
+     * Adds the file to destVm without copying the audio, see {@link #storeReference}
+     */
     public GridFSFile copy(GridFSDBFile origFile, DBObject destVm, String newFilename) {
         Assert.notNull(origFile);
         Assert.notNull(destVm);
@@ -206,33 +225,122 @@ public class GridFSVmTemplate {
         newMetadata.append(MongoConstants.ID, new ObjectId())
                    .append(VOICEMAIL_ID, (ObjectId)destVm.get(MongoConstants.ID));
         
-        return m_gridFSTemplate.store(origFile.getInputStream(), newFilename
-                , origFile.getContentType(), newMetadata);
+        return storeReference(origFile, newFilename, newMetadata);
+    }
+
+    /**
+     * Same as store, but the audio of content is referenced instead of being uploaded again
+     */
+    public GridFSFile storeReference(GridFSDBFile content, String filename
+            , VmAudioIdentifier audioIdentifier, String label, String messageId
+            , User destUser, MessageDescriptor descriptor) {
+        Assert.notNull(content);
+
+        DBObject vmMetadata = findVM(destUser.getUserName(), label, messageId
+                                , new BasicDBObject(MongoConstants.ID, 1));
+
+        boolean newVm = false;
+        if(vmMetadata == null) {
+            newVm = true;
+            vmMetadata = createVmMetadata(new BasicDBObject(MongoConstants.ID, new ObjectId())
+                                    , audioIdentifier, label, messageId, destUser
+                                    , descriptor, true);
+        }
+
+        DBObject fileMetadata = createFileMetadata(new BasicDBObject()
+                , (ObjectId)vmMetadata.get(MongoConstants.ID)
+                , audioIdentifier, descriptor);
+
+        GridFSFile fsFile = storeReference(content, filename, fileMetadata);
+        if(newVm) {
+            storeVM(vmMetadata);
+        }
+
+        return fsFile;
+    }
+
+    /**
+     * Audio is shared between messages: a reference is an empty GridFS file whose metadata points to
+     * the file holding the audio, which counts its references. Only the audio readers have to
+     * resolve references (see {@link #getContent(GridFSDBFile)}), everything else uses the
+     * metadata of the reference itself.
+     */
+    private GridFSFile storeReference(GridFSDBFile origFile, String filename, DBObject fileMetadata) {
+        Object contentId = origFile.getMetaData().containsField(CONTENT_ID)
+                ? origFile.getMetaData().get(CONTENT_ID) : origFile.getId();
+        fileMetadata.removeField(REFERENCES);
+        fileMetadata.put(CONTENT_ID, contentId);
+        // counted before the reference exists, a failure in between leaks the audio but never
+        // leaves a reference without audio
+        DBObject query = new BasicDBObject(MongoConstants.ID, contentId).append("$or", Arrays.asList(
+                new BasicDBObject(METADATA_VOICEMAIL_ID, new BasicDBObject("$exists", true)),
+                new BasicDBObject(METADATA_REFERENCES, new BasicDBObject("$gt", 0))));
+        WriteResult result = getFilesCollection().update(query,
+                new BasicDBObject("$inc", new BasicDBObject(METADATA_REFERENCES, 1)));
+        if (result.getN() == 0) {
+            // deleted meanwhile
+            throw new IllegalStateException("audio " + contentId + " no longer exists");
+        }
+        return m_gridFSTemplate.store(new ByteArrayInputStream(new byte[0]), filename,
+                origFile.getContentType(), fileMetadata);
+    }
+
+    /**
+     * @return the file holding the audio of dbFile, dbFile itself if not a reference
+     */
+    public GridFSDBFile getContent(GridFSDBFile dbFile) {
+        Object contentId = dbFile.getMetaData().get(CONTENT_ID);
+        if (contentId == null) {
+            return dbFile;
+        }
+        GridFSDBFile content = m_gridFSTemplate.findOne(new Query(Criteria.where(MongoConstants.ID).is(contentId)));
+        return content != null ? content : dbFile;
     }
     
-    public void move(User user, String messageId, String newLabel) {
-        move(user, messageId, newLabel, false);
+    public boolean move(User user, String messageId, String newLabel) {
+        return move(user, messageId, newLabel, false);
     }
     
-    public void move(User user, String messageId, String newLabel, boolean markAsHeard) {
+    public boolean move(User user, String messageId, String newLabel, boolean markAsHeard) {
         Assert.notNull(user);
-
-        DBObject results = findVM(user.getUserName(), messageId);
-        if(results != null) {
-            move(results, newLabel, markAsHeard);   
-        }
+        return move(user.getUserName(), messageId, newLabel, markAsHeard);
     }
     
-    public void move(String username, String messageId, String newLabel) {
-        move(username, messageId, newLabel, false);
+    public boolean move(String username, String messageId, String newLabel) {
+        return move(username, messageId, newLabel, false);
     }
     
-    public void move(String username, String messageId, String newLabel, boolean markAsHeard) {
-        DBObject results = findVM(username, messageId);
-        if(results != null) {
-            move(results, newLabel, markAsHeard);   
+    /**
+     * @return false if the message was not found
+     */
+    public boolean move(String username, String messageId, String newLabel, boolean markAsHeard) {
+        BasicDBObject fields = new BasicDBObject(LABEL, newLabel);
+        if(markAsHeard) {
+            fields.append(UNHEARD, false);
         }
+        return update(username, messageId, fields);
     }    
+
+    /**
+     * Sets the given fields of a message in one atomic update
+     *
+     * @return false if the message was not found
+     */
+    public boolean update(String username, String messageId, DBObject fields) {
+        return update(username, messageId, new BasicDBObject(), fields);
+    }
+
+    /**
+     * Sets the given fields of a message only if it is in the given state (e.g. unheard flag), in
+     * one atomic update
+     *
+     * @return false if the message was not found in that state
+     */
+    public boolean update(String username, String messageId, DBObject state, DBObject fields) {
+        BasicDBObject query = new BasicDBObject(USER, username).append(MESSAGE_ID, messageId);
+        query.putAll(state);
+        return getVmCollection().update(query, new BasicDBObject("$set", fields)).getN() > 0;
+    }
     
     public DBObject findById(ObjectId id) {
         return doFindVM(new BasicDBObject(MongoConstants.ID, id), null);
@@ -288,6 +396,28 @@ public class GridFSVmTemplate {
         return messageIds;
     }
     
+    /**
+     * Message counts of a mailbox, in a single aggregation
+     *
+     * @return for each label, the number of messages and the number of unheard messages
+     */
+    public Map<String, int[]> countByLabel(String username) {
+        DBObject group = new BasicDBObject(MongoConstants.ID, "$" + LABEL)
+                .append("count", new BasicDBObject("$sum", 1))
+                .append(UNHEARD, new BasicDBObject("$sum", new BasicDBObject("$cond", Arrays.<Object>asList(
+                        "$" + UNHEARD, 1, 0))));
+        AggregationOutput output = getVmCollection().aggregate(Arrays.<DBObject>asList(
+                new BasicDBObject("$match", new BasicDBObject(USER, username)),
+                new BasicDBObject("$group", group)));
+        Map<String, int[]> counts = new HashMap<String, int[]>();
+        for (DBObject result : output.results()) {
+            counts.put((String) result.get(MongoConstants.ID), new int[] {
+                ((Number) result.get("count")).intValue(), ((Number) result.get(UNHEARD)).intValue()
+            });
+        }
+        return counts;
+    }
+
     public DBObject findByMessageId(User user, String messageId) {
         Assert.notNull(user);
         return findByMessageId(user.getUserName(), messageId);
@@ -306,6 +436,175 @@ public class GridFSVmTemplate {
         return findVM(username, label, messageId);
     }
     
+    /**
+     * Streams the messages with the given label that fall in the page, oldest first. Messages are
+     * read in batches: one query for the metadata of the page and, per batch, one query for the
+     * metadata of the audio files, so memory use does not depend on the mailbox size. A message
+     * whose audio is missing is not listed but keeps its place in the page, so that pages follow
+     * each other without overlap.
+     *
+     * @param since only messages received after this time (milliseconds), 0 for all
+     */
+    public void listVmMessages(String username, String label, long since, MessagePage page,
+            MessageHandler handler) {
+        BasicDBObject query = new BasicDBObject(USER, username).append(LABEL, label);
+        if (since > 0) {
+            query.append(TIMESTAMP, new BasicDBObject("$gt", since));
+        }
+        DBObject fields = BasicDBObjectBuilder.start(USER, 1).add(LABEL, 1).add(MESSAGE_ID, 1).add(UNHEARD, 1)
+                .add(PRIORITY, 1).add(USER_URI, 1).add(FROM_URI, 1).add(SUBJECT, 1).add(TIMESTAMP, 1).get();
+        int toSkip = page.getToSkip();
+        DBCursor cursor = getVmCollection().find(query, fields)
+                .sort(new BasicDBObject(TIMESTAMP, 1).append(MESSAGE_ID, 1)).skip(toSkip)
+                .batchSize(LIST_BATCH_SIZE);
+        if (page.isLimited()) {
+            // one more to know if there is a next page
+            cursor.limit(page.getToList() + 1);
+        }
+        try {
+            if (!cursor.hasNext()) {
+                if (toSkip > 0) {
+                    // the page starts after these messages
+                    page.skipped(Math.min(toSkip, cursor.count()));
+                }
+                return;
+            }
+            page.skipped(toSkip);
+            List<DBObject> batch = new ArrayList<DBObject>(LIST_BATCH_SIZE);
+            while (cursor.hasNext()) {
+                DBObject vmMetadata = cursor.next();
+                if (batch.size() == page.getToList()) {
+                    listVmMessages(batch, page, handler);
+                    page.setMore();
+                    return;
+                }
+                batch.add(vmMetadata);
+                if (batch.size() == LIST_BATCH_SIZE) {
+                    listVmMessages(batch, page, handler);
+                    batch.clear();
+                }
+            }
+            listVmMessages(batch, page, handler);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void listVmMessages(List<DBObject> vmMetadatas, MessagePage page, MessageHandler handler) {
+        int listed = handleVmMessages(vmMetadatas, handler);
+        if (listed < vmMetadatas.size()) {
+            LOG.warn(String.format("GridFSVmTemplate::listVmMessages %d messages without audio not listed",
+                    vmMetadatas.size() - listed));
+        }
+        page.listed(vmMetadatas.size());
+    }
+
+    /**
+     * Messages with the given label, oldest first, built from the metadata of their preferred
+     * audio file. Two queries whatever the number of messages.
+     */
+    public List<VmMessage> findVmMessagesByLabel(String username, String label) {
+        List<DBObject> vmMetadatas = findVMs(username, label, false, null, new BasicDBObject(TIMESTAMP, 1).append(
+                MESSAGE_ID, 1));
+        final List<VmMessage> messages = new ArrayList<VmMessage>(vmMetadatas.size());
+        handleVmMessages(vmMetadatas, new MessageHandler() {
+            @Override
+            public void handle(VmMessage message) {
+                messages.add(message);
+            }
+        });
+        return messages;
+    }
+
+    /**
+     * Passes the messages to the handler, loading the metadata of the audio files of all of them
+     * with a single $in query. Messages whose audio is missing are left out.
+     *
+     * @return number of messages passed to the handler
+     */
+    private int handleVmMessages(List<DBObject> vmMetadatas, MessageHandler handler) {
+        if (vmMetadatas.isEmpty()) {
+            return 0;
+        }
+        List<Object> vmIds = new ArrayList<Object>(vmMetadatas.size());
+        for (DBObject vmMetadata : vmMetadatas) {
+            vmIds.add(vmMetadata.get(MongoConstants.ID));
+        }
+        // metadata of the preferred audio file of each message
+        Map<Object, DBObject> fileMetadatas = new HashMap<Object, DBObject>();
+        // whole documents: the files collection is read as GridFSDBFile, which cannot be partial
+        DBCursor files = getFilesCollection().find(
+                new BasicDBObject(METADATA_VOICEMAIL_ID, new BasicDBObject("$in", vmIds)));
+        try {
+            while (files.hasNext()) {
+                DBObject fileMetadata = (DBObject) files.next().get(DEFAULT_METADATA);
+                Object vmId = fileMetadata.get(VOICEMAIL_ID);
+                DBObject selected = fileMetadatas.get(vmId);
+                if (selected == null || getAudioIdentifierOrder(fileMetadata) > getAudioIdentifierOrder(selected)) {
+                    fileMetadatas.put(vmId, fileMetadata);
+                }
+            }
+        } finally {
+            files.close();
+        }
+        int handled = 0;
+        for (DBObject vmMetadata : vmMetadatas) {
+            DBObject fileMetadata = fileMetadatas.get(vmMetadata.get(MongoConstants.ID));
+            if (fileMetadata != null) {
+                handler.handle(createVmMessage(fileMetadata, vmMetadata, null));
+                handled++;
+            }
+        }
+        return handled;
+    }
+
+    /**
+     * Natural order of VmAudioIdentifier: Combined > Current > Original
+     */
+    private static int getAudioIdentifierOrder(DBObject fileMetadata) {
+        VmAudioIdentifier identifier = VmAudioIdentifier.tryLookUp((String) fileMetadata.get(AUDIO_IDENTIFIER));
+        return identifier == null ? -1 : identifier.ordinal();
+    }
+
+    /**
+     * Label and heard status of several messages, in one query
+     */
+    public List<DBObject> findByMessageIds(String username, Collection<String> messageIds) {
+        BasicDBObject query = new BasicDBObject(USER, username).append(MESSAGE_ID,
+                new BasicDBObject("$in", messageIds));
+        DBObject fields = BasicDBObjectBuilder.start(MESSAGE_ID, 1).add(LABEL, 1).add(UNHEARD, 1).get();
+        return doFindVMs(query, fields, null);
+    }
+
+    /**
+     * Sets the given fields of several messages, in one update
+     */
+    public void update(Collection<ObjectId> voicemailIds, DBObject fields) {
+        if (voicemailIds.isEmpty()) {
+            return;
+        }
+        getVmCollection().update(new BasicDBObject(MongoConstants.ID, new BasicDBObject("$in", voicemailIds)),
+                new BasicDBObject("$set", fields), false, true);
+    }
+
+    /**
+     * Deletes several messages and their audio files
+     */
+    public void delete(Collection<ObjectId> voicemailIds) {
+        if (!voicemailIds.isEmpty()) {
+            // Remove files first
+            // whole documents: the files collection is read as GridFSDBFile, which cannot be partial
+            DBCursor files = getFilesCollection().find(
+                    new BasicDBObject(METADATA_VOICEMAIL_ID, new BasicDBObject("$in", voicemailIds)));
+            try {
+                release(files.toArray());
+            } finally {
+                files.close();
+            }
+            doRemoveVM(new BasicDBObject(MongoConstants.ID, new BasicDBObject("$in", voicemailIds)));
+        }
+    }
+
     public List<GridFSDBFile> findFilesByVmId(DBObject vmMetadata) {
         return findFilesByVmId((ObjectId)vmMetadata.get(MongoConstants.ID));
     }
@@ -368,16 +667,56 @@ public class GridFSVmTemplate {
     }
     
     public void delete(List<GridFSDBFile> dbFiles) {
+        List<DBObject> files = new ArrayList<DBObject>(dbFiles.size());
         for(GridFSDBFile dbFile : dbFiles) {
-            delete(dbFile);
+            files.add(new BasicDBObject(MongoConstants.ID, dbFile.getId()).append(DEFAULT_METADATA,
+                    dbFile.getMetaData()));
         }
+        release(files);
     }
     
     public void delete(GridFSDBFile dbFile) {
-        ObjectId id = (ObjectId)dbFile.get(MongoConstants.ID);
-        m_gridFSTemplate.delete(new Query(
-                    Criteria.where(MongoConstants.ID).is(id)
-                ));
+        delete(Collections.singletonList(dbFile));
+    }
+
+    /**
+     * Removes files from their message. References are deleted and uncounted; audio is only
+     * deleted once neither its own message nor any reference uses it.
+     *
+     * @param files documents of the files collection with at least _id and metadata.contentId
+     */
+    private void release(List<DBObject> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        List<Object> references = new ArrayList<Object>();
+        List<Object> owned = new ArrayList<Object>();
+        List<Object> contents = new ArrayList<Object>();
+        for (DBObject file : files) {
+            DBObject metadata = (DBObject) file.get(DEFAULT_METADATA);
+            Object contentId = metadata != null ? metadata.get(CONTENT_ID) : null;
+            if (contentId != null) {
+                references.add(file.get(MongoConstants.ID));
+                getFilesCollection().update(new BasicDBObject(MongoConstants.ID, contentId),
+                        new BasicDBObject("$inc", new BasicDBObject(METADATA_REFERENCES, -1)));
+                contents.add(contentId);
+            } else {
+                owned.add(file.get(MongoConstants.ID));
+                contents.add(file.get(MongoConstants.ID));
+            }
+        }
+        if (!references.isEmpty()) {
+            m_gridFSTemplate.delete(new Query(Criteria.where(MongoConstants.ID).in(references)));
+        }
+        if (!owned.isEmpty()) {
+            // detached audio cannot get new references (see storeReference)
+            getFilesCollection().update(new BasicDBObject(MongoConstants.ID, new BasicDBObject("$in", owned)),
+                    new BasicDBObject("$unset", new BasicDBObject(METADATA_VOICEMAIL_ID, "")), false, true);
+        }
+        m_gridFSTemplate.delete(new BasicQuery(new BasicDBObject(MongoConstants.ID,
+                new BasicDBObject("$in", contents))
+                .append(METADATA_VOICEMAIL_ID, new BasicDBObject("$exists", false))
+                .append(METADATA_REFERENCES, new BasicDBObject("$not", new BasicDBObject("$gt", 0)))));
     }
     
     public void changeUser(User newUser, String oldUser) {
@@ -398,6 +737,42 @@ public class GridFSVmTemplate {
         vmCollection.createIndex(new BasicDBObject(USER, 1)
                                            .append(LABEL, 1)
                                            .append(MESSAGE_ID, 1));
+        // lookups by message id without label
+        vmCollection.createIndex(new BasicDBObject(USER, 1)
+                                           .append(MESSAGE_ID, 1));
+        // unheard messages of a folder (MWI, inbox listing)
+        vmCollection.createIndex(new BasicDBObject(USER, 1)
+                                           .append(LABEL, 1)
+                                           .append(UNHEARD, 1));
+    }
+
+    /**
+     * Checks that the frequent queries are served by an index, a missing index only shows up as
+     * a slow server once mailboxes grow. Served, not covered: the queries return whole documents
+     * or their _id, which the indexes do not hold.
+     *
+     * @return false if a query scans a collection
+     */
+    public boolean verifyIndexes() {
+        boolean indexed = true;
+        DBCollection vmCollection = getVmCollection();
+        indexed &= verifyIndex(vmCollection, new BasicDBObject(USER, "").append(MESSAGE_ID, ""));
+        indexed &= verifyIndex(vmCollection, new BasicDBObject(USER, "").append(LABEL, "").append(MESSAGE_ID, ""));
+        indexed &= verifyIndex(vmCollection, new BasicDBObject(USER, "").append(LABEL, "").append(UNHEARD, true));
+        indexed &= verifyIndex(getFilesCollection(), new BasicDBObject(METADATA_VOICEMAIL_ID, new ObjectId()));
+        return indexed;
+    }
+
+    private static boolean verifyIndex(DBCollection collection, DBObject query) {
+        DBObject plan = collection.find(query).explain();
+        // 2.x servers report the cursor type, 3.x servers the stages of the winning plan
+        Object cursor = plan.get("cursor");
+        boolean scan = cursor != null ? String.valueOf(cursor).startsWith("BasicCursor")
+                : String.valueOf(plan.get("queryPlanner")).contains("COLLSCAN");
+        if (scan) {
+            LOG.warn(String.format("GridFSVmTemplate: query %s on %s is not indexed", query, collection.getName()));
+        }
+        return !scan;
     }
 
     private DBObject createFileMetadata(BasicDBObject metadata, ObjectId objectId
@@ -583,7 +958,7 @@ public class GridFSVmTemplate {
             throws IOException {
         if(tempMessage != null) {
             File content = new File(tempMessage.getTempPath());
-            dbFile.writeTo(content);
+            getContent(dbFile).writeTo(content);
             return content;
         }
         
@@ -637,7 +1012,7 @@ public class GridFSVmTemplate {
     }
     
     private List<DBObject> findVMs(String username, String label, boolean unheardOnly) {
-        return findVMs(username, label, false, null);
+        return findVMs(username, label, unheardOnly, null);
     }
     
     private List<DBObject> findVMs(String username, String label, boolean unheardOnly, DBObject fields) {
@@ -674,23 +1049,6 @@ public class GridFSVmTemplate {
         return doFindVM(query, fields);
     }
     
-    private void move(DBObject vmMetadata, String newLabel, boolean markAsHeard) {
-        Assert.notNull(vmMetadata);
-        
-        if(!vmMetadata.containsField(MongoConstants.ID)) {
-            vmMetadata = findByMessageId(
-                    (String)vmMetadata.get(USER), 
-                    (String)vmMetadata.get(LABEL),
-                    (String)vmMetadata.get(MESSAGE_ID));
-        }
-        
-        vmMetadata.put(LABEL, newLabel);
-        if(markAsHeard) {
-            vmMetadata.put(UNHEARD, false);
-        }
-        doStoreVM(vmMetadata);
-    }
-    
     private DBCollection getFilesCollection() {
         DB db = m_dbFactory.getDb();
         return db.getCollection(m_bucket + ".files");
@@ -0,0 +1,50 @@
+package org.sipfoundry.sipxivr;
+
+import junit.framework.TestCase;
+
+public class AdmissionControllerTest extends TestCase {
+    AdmissionController m_controller;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_controller = new AdmissionController();
+        m_controller.setMaxCalls(3);
+        m_controller.setApplicationLimits("faxrx:1, autoattendant:2");
+        m_controller.setLatencyThreshold(100);
+        m_controller.setDegradedMaxCalls(1);
+    }
+
+    public void testLimits() {
+        assertTrue(m_controller.admit("faxrx"));
+        assertFalse(m_controller.admit("faxrx"));
+        assertTrue(m_controller.admit("deposit"));
+        assertTrue(m_controller.admit("deposit"));
+        assertFalse(m_controller.admit("deposit"));
+        assertEquals(3, m_controller.getActiveCalls());
+        assertEquals(2, m_controller.getActiveCalls("deposit"));
+        assertEquals(2, m_controller.getShedCount());
+
+        m_controller.release("faxrx");
+        assertTrue(m_controller.admit("faxrx"));
+    }
+
+    public void testStoreLatency() {
+        m_controller.recordLatency(500);
+        assertEquals(500, m_controller.getStoreLatency());
+        assertTrue(m_controller.admit("deposit"));
+        assertFalse(m_controller.admit("deposit"));
+
+        for (int i = 0; i < 20; i++) {
+            m_controller.recordLatency(10);
+        }
+        assertTrue(m_controller.getStoreLatency() < 100);
+        assertTrue(m_controller.admit("deposit"));
+    }
+
+    public void testStaleLatency() {
+        m_controller.setLatencyWindow(0);
+        m_controller.recordLatency(500);
+        assertTrue(m_controller.admit("deposit"));
+        assertTrue(m_controller.admit("deposit"));
+    }
+}
@@ -0,0 +1,233 @@
+package org.sipfoundry.sipxivr;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.sipfoundry.attendant.AaEslRequestController;
+import org.sipfoundry.attendant.Attendant;
+import org.sipfoundry.attendant.AttendantFactory;
+import org.sipfoundry.bridge.Bridge;
+import org.sipfoundry.bridge.BridgeEslRequestController;
+import org.sipfoundry.bridge.BridgeFactory;
+import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocketInterface;
+import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocket;
+import org.sipfoundry.sipxivr.common.FreeSwitchConfigurationImpl;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestApp;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestDispatcher;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestScope;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestScopeAttributes;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestScopeContextHolder;
+import org.sipfoundry.voicemail.Deposit;
+import org.sipfoundry.voicemail.Retrieve;
+import org.sipfoundry.voicemail.VmEslRequestController;
+import org.sipfoundry.voicemail.VoiceMail;
+import org.sipfoundry.voicemail.VoiceMailFactory;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.support.GenericApplicationContext;
+
+/**
+ * Benchmark of the setup of a call, from the accepted connection to the application that handles
+ * it: the request scope, the call handler, the event socket and the application with its
+ * controller. Not a unit test, run it with "make benchmark-callsetup" in sipXivr/test:
+ *
+ * <pre>
+ * make benchmark-callsetup BENCHMARK_ARGS="--actions deposit,autoattendant --iterations 10"
+ * </pre>
+ *
+ * The beans are wired as in the sipXivr bean files. "dispatch" is the call handler as configured,
+ * creating the application with the factory the EslRequestDispatcher holds for its action;
+ * "lookup" is the call handler getting the eslRequest scoped application and its controller by
+ * name from the context, as it used to be. The time and the memory allocated per call are printed.
+ */
+public class CallSetupBenchmark {
+    private static final String ESL_REQUEST = "eslRequest";
+    private static final String LOOKUP = "lookup.";
+
+    private final Map<String, String> m_options = new LinkedHashMap<String, String>();
+    private GenericApplicationContext m_context;
+
+    public static void main(String[] args) throws Exception {
+        CallSetupBenchmark benchmark = new CallSetupBenchmark();
+        benchmark.m_options.put("actions", "deposit,autoattendant,bridge");
+        benchmark.m_options.put("warmup", "5");
+        benchmark.m_options.put("iterations", "10");
+        benchmark.m_options.put("calls", "100000");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String option = args[i].startsWith("--") ? args[i].substring(2) : "";
+            if (!benchmark.m_options.containsKey(option)) {
+                System.err.println("usage: CallSetupBenchmark [--actions deposit,autoattendant] [--warmup n] "
+                        + "[--iterations n] [--calls n]");
+                System.exit(1);
+            }
+            benchmark.m_options.put(option, args[i + 1]);
+        }
+        benchmark.run();
+    }
+
+    private void run() {
+        m_context = createContext();
+        System.out.println(String.format("%-10s %-14s %10s %10s", "handler", "action", "ns/call", "bytes/call"));
+        try {
+            for (String action : StringUtils.split(m_options.get("actions"), ',')) {
+                measure("lookup", "sipxIvrLookup", action);
+                measure("dispatch", "sipxIvr", action);
+            }
+        } finally {
+            m_context.close();
+        }
+    }
+
+    private void measure(String handlerName, String handlerBean, String action) {
+        int warmup = Integer.parseInt(m_options.get("warmup"));
+        int iterations = Integer.parseInt(m_options.get("iterations"));
+        int calls = Integer.parseInt(m_options.get("calls"));
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long totalNanos = 0;
+        long totalBytes = 0;
+        for (int iteration = 0; iteration < warmup + iterations; iteration++) {
+            long bytes = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                setupCall(handlerBean, action);
+            }
+            long elapsed = System.nanoTime() - start;
+            bytes = threads.getThreadAllocatedBytes(threadId) - bytes;
+            if (iteration >= warmup) {
+                totalNanos += elapsed;
+                totalBytes += bytes;
+            }
+        }
+        long total = (long) calls * iterations;
+        System.out.println(String.format("%-10s %-14s %10d %10d", handlerName, action, totalNanos / total,
+                totalBytes / total));
+    }
+
+    /**
+     * What SipXivrServer and SipXivr do before the application runs
+     */
+    private void setupCall(String handlerBean, String action) {
+        SipXivr handler = m_context.getBean(handlerBean, SipXivr.class);
+        EslRequestScopeContextHolder.setEslRequestScopeAttributes(new EslRequestScopeAttributes());
+        try {
+            FreeSwitchEventSocketInterface fses = handler.getFsEventSocket();
+            EslRequestApp app = action.equals("bridge") ? handler.getBridgeApp(fses) : handler.getApp(action,
+                    fses);
+            if (app == null) {
+                throw new IllegalArgumentException("No application handles action " + action);
+            }
+        } finally {
+            EslRequestScopeContextHolder.currentEslRequestScopeAttributes().clear();
+            EslRequestScopeContextHolder.removeEslRequestScopeAttributes();
+        }
+    }
+
+    private static GenericApplicationContext createContext() {
+        GenericApplicationContext context = new GenericApplicationContext();
+        context.getBeanFactory().registerScope(ESL_REQUEST, new EslRequestScope());
+
+        context.registerBeanDefinition("fsConfig", BeanDefinitionBuilder
+                .genericBeanDefinition(FreeSwitchConfigurationImpl.class)
+                .addPropertyValue("sipxchangeDomainName", "example.com").addPropertyValue("realm", "example.com")
+                .getBeanDefinition());
+        context.registerBeanDefinition("fsEventSocket", scoped(FreeSwitchEventSocket.class)
+                .addConstructorArgReference("fsConfig").getBeanDefinition());
+        context.registerBeanDefinition("eslRequestDispatcher", BeanDefinitionBuilder
+                .genericBeanDefinition(EslRequestDispatcher.class).setInitMethodName("init")
+                .addPropertyReference("fsConfig", "fsConfig").getBeanDefinition());
+        context.registerBeanDefinition("sipxIvr", BeanDefinitionBuilder.genericBeanDefinition(SipXivr.class)
+                .setScope(BeanDefinition.SCOPE_PROTOTYPE).addPropertyReference("dispatcher", "eslRequestDispatcher")
+                .getBeanDefinition());
+        context.registerBeanDefinition("sipxIvrLookup", BeanDefinitionBuilder
+                .genericBeanDefinition(LookupSipXivr.class).setScope(BeanDefinition.SCOPE_PROTOTYPE)
+                .getBeanDefinition());
+
+        context.registerBeanDefinition("bridge", factory(BridgeFactory.class).getBeanDefinition());
+        context.registerBeanDefinition("autoattendant", factory(AttendantFactory.class)
+                .addPropertyValue("bridgedTransfer", "false")
+                .addPropertyValue("operatorAddr", "sip:operator@example.com").getBeanDefinition());
+        context.registerBeanDefinition("deposit", factory(VoiceMailFactory.class)
+                .addPropertyValue("bridgedTransfer", "false")
+                .addPropertyValue("operatorAddr", "sip:operator@example.com").addPropertyValue("recordRate", "8000")
+                .addPropertyValue("recordTime", "300").addPropertyValue("hzEnabled", "false").getBeanDefinition());
+        context.registerAlias("deposit", "retrieve");
+
+        // eslRequest scoped beans of the lookup call handler
+        context.registerBeanDefinition("bridgeEslRequestController", controller(BridgeEslRequestController.class)
+                .getBeanDefinition());
+        context.registerBeanDefinition(LOOKUP + "bridge", app(Bridge.class, "bridgeEslRequestController")
+                .getBeanDefinition());
+
+        context.registerBeanDefinition("aaEslRequestController", controller(AaEslRequestController.class)
+                .addPropertyValue("bridgedTransfer", "false").getBeanDefinition());
+        context.registerBeanDefinition(LOOKUP + "autoattendant", app(Attendant.class, "aaEslRequestController")
+                .addPropertyValue("operatorAddr", "sip:operator@example.com").getBeanDefinition());
+
+        context.registerBeanDefinition("vmEslRequestController", controller(VmEslRequestController.class)
+                .addPropertyValue("bridgedTransfer", "false")
+                .addPropertyValue("operatorAddr", "sip:operator@example.com").addPropertyValue("recordRate", "8000").addPropertyValue("recordTime", "300").getBeanDefinition());
+        context.registerBeanDefinition("depositAction", app(Deposit.class, "vmEslRequestController")
+                .addPropertyValue("operatorAddr", "sip:operator@example.com").addPropertyValue("hzEnabled", "false")
+                .getBeanDefinition());
+        context.registerBeanDefinition("retrieveAction", app(Retrieve.class, "vmEslRequestController")
+                .getBeanDefinition());
+        context.registerBeanDefinition(LOOKUP + "deposit", app(VoiceMail.class, "vmEslRequestController")
+                .addPropertyReference("depositAction", "depositAction")
+                .addPropertyReference("retrieveAction", "retrieveAction").getBeanDefinition());
+        context.registerAlias(LOOKUP + "deposit", LOOKUP + "retrieve");
+
+        context.refresh();
+        return context;
+    }
+
+    private static BeanDefinitionBuilder scoped(Class< ? > beanClass) {
+        return BeanDefinitionBuilder.genericBeanDefinition(beanClass).setScope(ESL_REQUEST);
+    }
+
+    private static BeanDefinitionBuilder controller(Class< ? > beanClass) {
+        return scoped(beanClass).addPropertyValue("sipxchangeDomainName", "example.com")
+                .addPropertyReference("fsConfig", "fsConfig").addPropertyReference("fsEventSocket", "fsEventSocket");
+    }
+
+    private static BeanDefinitionBuilder factory(Class< ? > beanClass) {
+        return BeanDefinitionBuilder.genericBeanDefinition(beanClass)
+                .addPropertyValue("sipxchangeDomainName", "example.com").addPropertyReference("fsConfig", "fsConfig");
+    }
+
+    private static BeanDefinitionBuilder app(Class< ? > beanClass, String controller) {
+        return scoped(beanClass).addPropertyReference("eslRequestController", controller);
+    }
+
+    /**
+     * Call handler getting the event socket and the applications by name from the context
+     */
+    public static class LookupSipXivr extends SipXivr implements ApplicationContextAware {
+        private ApplicationContext m_context;
+
+        @Override
+        protected FreeSwitchEventSocketInterface getFsEventSocket() {
+            return m_context.getBean("fsEventSocket", FreeSwitchEventSocketInterface.class);
+        }
+
+        @Override
+        protected EslRequestApp getBridgeApp(FreeSwitchEventSocketInterface fses) {
+            return getApp("bridge", fses);
+        }
+
+        @Override
+        protected EslRequestApp getApp(String action, FreeSwitchEventSocketInterface fses) {
+            return m_context.getBean(LOOKUP + action, EslRequestApp.class);
+        }
+
+        @Override
+        public void setApplicationContext(ApplicationContext context) {
+            m_context = context;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.sipfoundry.voicemail;
+
+import junit.framework.TestCase;
+
+public class DepositRegistryTest extends TestCase {
+
+    public void testPutRemove() {
+        DepositRegistry registry = new DepositRegistry();
+        registry.init();
+        registry.put("201", "uuid-1");
+        assertEquals("uuid-1", registry.getUuid("201"));
+        assertNull(registry.getUuid("202"));
+
+        // a newer deposit in the same mailbox is not removed by the older call
+        registry.put("201", "uuid-2");
+        assertFalse(registry.remove("201", "uuid-1"));
+        assertEquals("uuid-2", registry.getUuid("201"));
+        assertTrue(registry.remove("201", "uuid-2"));
+        assertFalse(registry.remove("201", "uuid-2"));
+        assertNull(registry.getUuid("201"));
+    }
+
+    public void testExpiry() {
+        DepositRegistry registry = new DepositRegistry();
+        registry.setTtl(-1);
+        registry.init();
+        registry.put("201", "uuid-1");
+        assertNull(registry.getUuid("201"));
+    }
+}
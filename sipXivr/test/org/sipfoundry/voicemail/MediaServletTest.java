@@ -0,0 +1,63 @@
+/**
+ *
+ *
+ * Copyright (c) 2013 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.sipfoundry.voicemail.mailbox.FileMessageAudio;
+
+public class MediaServletTest extends TestCase {
+
+    public void testParseRange() {
+        assertRange(0, 99, MediaServlet.parseRange("bytes=0-99", 1000));
+        assertRange(500, 999, MediaServlet.parseRange("bytes=500-", 1000));
+        assertRange(900, 999, MediaServlet.parseRange("bytes=-100", 1000));
+        assertRange(0, 999, MediaServlet.parseRange("bytes=-2000", 1000));
+        assertRange(990, 999, MediaServlet.parseRange("bytes=990-5000", 1000));
+        assertEquals(0, MediaServlet.parseRange("bytes=1000-", 1000).length);
+        assertEquals(0, MediaServlet.parseRange("bytes=-0", 1000).length);
+        assertNull(MediaServlet.parseRange("bytes=0-1,5-6", 1000));
+        assertNull(MediaServlet.parseRange("bytes=20-10", 1000));
+        assertNull(MediaServlet.parseRange("bytes=-", 1000));
+        assertNull(MediaServlet.parseRange("items=0-1", 1000));
+    }
+
+    public void testFileAudioTransfer() throws Exception {
+        File file = File.createTempFile("media", ".wav");
+        try {
+            FileUtils.writeStringToFile(file, "0123456789");
+            FileMessageAudio audio = new FileMessageAudio(file);
+            assertEquals("wav", audio.getFormat());
+            assertEquals(10, audio.getLength());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            audio.transferTo(3, 4, out);
+            assertEquals("3456", out.toString());
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    private static void assertRange(long start, long end, long[] range) {
+        assertEquals(2, range.length);
+        assertEquals(start, range[0]);
+        assertEquals(end, range[1]);
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ *
+ *
+ * Copyright (c) 2013 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+import org.sipfoundry.voicemail.mailbox.Folder;
+import org.sipfoundry.voicemail.mailbox.MessageDescriptor;
+import org.sipfoundry.voicemail.mailbox.VmMessage;
+
+public class MessageListWriterTest extends TestCase {
+
+    public void testJson() {
+        MessageDescriptor descriptor = new MessageDescriptor();
+        descriptor.setFromUri("\"John \\\"JD\\\" Doe\" <sip:201@example.com>");
+        descriptor.setSubject("Voice Message 00000001");
+        descriptor.setDurationSecs(12);
+        descriptor.setContentLength(1024);
+        descriptor.setAudioFormat("wav");
+        descriptor.setTimestamp(1356998400000L);
+        VmMessage message = new VmMessage("00000001", "201", null, descriptor, Folder.INBOX, true, false);
+
+        StringWriter out = new StringWriter();
+        MessageListWriter writer = MessageListWriter.create(new PrintWriter(out), true, true);
+        writer.begin();
+        writer.handle(message);
+        writer.handle(message);
+        writer.end(Boolean.TRUE);
+        String json = out.toString();
+        assertTrue(json.startsWith("{\"messages\":[\n{\"id\":\"00000001\",\"heard\":false,\"urgent\":false,"
+                + "\"folder\":\"inbox\",\"duration\":12,\"contentlength\":\"1024\",\"received\":1356998400000,"));
+        assertTrue(json.contains("\"fromUri\":\"sip:201@example.com\""));
+        assertTrue(json.contains("},\n{\"id\""));
+        assertTrue(json.endsWith("}],\"more\":true}"));
+    }
+
+    public void testQuote() {
+        assertEquals("\"a\\\"b\\\\c\\nd\\u0001\"", MessageListWriter.JsonWriter.quote("a\"b\\c\nd\u0001"));
+        assertEquals("\"\"", MessageListWriter.JsonWriter.quote(null));
+    }
+}
@@ -18,11 +18,15 @@ package org.sipfoundry.voicemail;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.ServerSocket;
 import java.util.List;
 import java.util.Map;
 
 import junit.framework.TestCase;
 
+import org.sipfoundry.commons.userdb.User;
+import org.sipfoundry.voicemail.mailbox.MailboxDetails;
+
 public class MwiTest extends TestCase {
     File m_testdir;
 
@@ -46,4 +50,30 @@ public class MwiTest extends TestCase {
        assertEquals("192.168.0.114", globalRegion.get(0));
        assertEquals("192.168.0.1", globalRegion.get(1));
     }
+
+    public void testRegionSuspended() throws Exception {
+        // nobody listens on this port
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        Mwi mwi = new Mwi();
+        mwi.setMwiAddresses("127.0.0.1");
+        mwi.setMwiPort(String.valueOf(port));
+        mwi.setThreads(1);
+        mwi.setBreakerThreshold(1);
+        mwi.init();
+        for (String identity : new String[] {"201@example.com", "202@example.com", "203@example.com"}) {
+            User user = new User();
+            user.setIdentity(identity);
+            mwi.sendMWI(user, new MailboxDetails(identity, 1, 1));
+        }
+        for (int i = 0; i < 100 && mwi.getSentCount() + mwi.getDroppedCount() < 3; i++) {
+            Thread.sleep(50);
+        }
+        mwi.destroy();
+        // first post fails and suspends the region, the others are not attempted
+        assertEquals(1, mwi.getSentCount());
+        assertEquals(2, mwi.getDroppedCount());
+    }
 }
@@ -0,0 +1,74 @@
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+public class AudioConcatenatorTest extends TestCase {
+    File m_dir;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_dir = new File("/tmp/concat/");
+        m_dir.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        FileUtils.deleteQuietly(m_dir);
+    }
+
+    public void testConcatWav() throws Exception {
+        File first = createWav("first.wav", 100, (byte) 1);
+        byte[] second = FileUtils.readFileToByteArray(createWav("second.wav", 51, (byte) 2));
+        File combined = new File(m_dir, "combined.wav");
+
+        AudioConcatenator.concatWav(combined, new FileInputStream(first), new ByteArrayInputStream(second));
+
+        AudioInputStream audio = AudioSystem.getAudioInputStream(combined);
+        try {
+            assertEquals(151, audio.getFrameLength());
+            assertEquals(8000f, audio.getFormat().getSampleRate());
+            byte[] data = IOUtils.toByteArray(audio);
+            assertEquals(151, data.length);
+            assertEquals(1, data[99]);
+            assertEquals(2, data[100]);
+        } finally {
+            audio.close();
+        }
+        // odd data length is padded
+        assertEquals(44 + 152, combined.length());
+    }
+
+    public void testConcatMp3() throws Exception {
+        File first = new File(m_dir, "first.mp3");
+        FileUtils.writeStringToFile(first, "first");
+        File combined = new File(m_dir, "combined.mp3");
+
+        AudioConcatenator.concatMp3(combined, new FileInputStream(first),
+                new ByteArrayInputStream("second".getBytes()));
+        assertEquals("firstsecond", FileUtils.readFileToString(combined));
+    }
+
+    private File createWav(String name, int frames, byte value) throws Exception {
+        byte[] data = new byte[frames];
+        for (int i = 0; i < frames; i++) {
+            data[i] = value;
+        }
+        AudioFormat format = new AudioFormat(8000f, 8, 1, false, false);
+        File file = new File(m_dir, name);
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(data), format, frames),
+                AudioFileFormat.Type.WAVE, file);
+        return file;
+    }
+}
@@ -0,0 +1,98 @@
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class AudioFileCacheTest extends TestCase {
+    AudioFileCache m_cache;
+    int m_loads;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_cache = new AudioFileCache(new File("/tmp/audiocache/"), 8, 60000, 0);
+        m_loads = 0;
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        FileUtils.deleteQuietly(new File("/tmp/audiocache/"));
+    }
+
+    public void testGet() throws IOException {
+        File file = m_cache.get("201/standard", loader("a", "12345"));
+        assertEquals("12345", FileUtils.readFileToString(file));
+        assertEquals("a.wav", file.getName());
+        assertSame(file, m_cache.get("201/standard", loader("b", "67890")));
+        assertEquals(1, m_loads);
+
+        // a new recording is picked up once invalidated
+        m_cache.invalidate("201/standard");
+        File newFile = m_cache.get("201/standard", loader("b", "67890"));
+        assertEquals("67890", FileUtils.readFileToString(newFile));
+        assertEquals(2, m_loads);
+
+        // least recently used evicted over 8 bytes
+        assertFalse(file.exists());
+        assertTrue(newFile.exists());
+
+        assertNull(m_cache.get("202/standard", loader(null, null)));
+        assertNull(m_cache.get("202/standard", loader("c", "1")));
+        assertEquals(3, m_loads);
+    }
+
+    public void testEvictionGrace() throws IOException {
+        m_cache = new AudioFileCache(new File("/tmp/audiocache/"), 8, 60000, 60000);
+        File file = m_cache.get("201/standard", loader("a", "12345"));
+        m_cache.invalidate("201/standard");
+        m_cache.get("201/standard", loader("b", "67890"));
+
+        // evicted, may still be playing
+        assertTrue(file.exists());
+        m_cache.invalidate("201/standard");
+        assertEquals(file, m_cache.get("201/standard", loader("a", "12345")));
+        assertEquals("12345", FileUtils.readFileToString(file));
+        assertEquals(3, m_loads);
+    }
+
+    public void testLookupsPurged() throws Exception {
+        m_cache = new AudioFileCache(new File("/tmp/audiocache/"), 8, 1, 0);
+        for (int i = 0; i < 10; i++) {
+            assertNull(m_cache.get("20" + i + "/standard", loader(null, null)));
+        }
+        Thread.sleep(5);
+        m_cache.get("201/standard", loader(null, null));
+        assertEquals(1, m_cache.getLookupCount());
+    }
+
+    private AudioFileCache.Loader loader(final String key, final String content) {
+        return new AudioFileCache.Loader() {
+            @Override
+            public AudioFileCache.Source load() {
+                m_loads++;
+                if (key == null) {
+                    return null;
+                }
+                return new AudioFileCache.Source() {
+                    @Override
+                    public String getKey() {
+                        return key;
+                    }
+
+                    @Override
+                    public String getExtension() {
+                        return "wav";
+                    }
+
+                    @Override
+                    public void writeTo(File file) throws IOException {
+                        FileUtils.writeStringToFile(file, content);
+                    }
+                };
+            }
+        };
+    }
+}
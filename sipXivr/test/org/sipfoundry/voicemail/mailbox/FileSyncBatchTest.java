@@ -0,0 +1,68 @@
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class FileSyncBatchTest extends TestCase {
+    File m_directory = new File("/tmp/filesync/");
+    FileSyncBatch m_sync;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_sync = new FileSyncBatch();
+        FileUtils.touch(new File(m_directory, "00000001-00.xml"));
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        FileUtils.deleteQuietly(m_directory);
+    }
+
+    public void testFailure() throws Exception {
+        try {
+            m_sync.sync(new File(m_directory, "missing.xml"));
+            fail("missing file synced");
+        } catch (IOException ex) {
+            // expected
+        }
+        // the failure belongs to its batch only
+        m_sync.sync(new File(m_directory, "00000001-00.xml"), m_directory);
+    }
+
+    public void testConcurrentCallers() throws Exception {
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final boolean broken = i % 2 == 0;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        try {
+                            m_sync.sync(new File(m_directory, broken ? "missing.xml" : "00000001-00.xml"));
+                            if (broken) {
+                                failures.add(new Exception("missing file synced"));
+                            }
+                        } catch (IOException ex) {
+                            // only callers whose batch held the missing file may fail
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+}
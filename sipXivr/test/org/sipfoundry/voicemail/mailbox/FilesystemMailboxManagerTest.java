@@ -1,11 +1,23 @@
 package org.sipfoundry.voicemail.mailbox;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import junit.framework.TestCase;
 
 import org.apache.commons.io.FileUtils;
+import org.sipfoundry.commons.userdb.User;
+import org.sipfoundry.voicemail.Mwi;
 
 public class FilesystemMailboxManagerTest extends TestCase {
     FilesystemMailboxManager m_mailboxManager;
@@ -30,6 +42,7 @@ public class FilesystemMailboxManagerTest extends TestCase {
         if (mailstore.isDirectory()) {
             FileUtils.forceDelete(mailstore);
         }
+        FileUtils.deleteQuietly(new File("/tmp/messageid.txt"));
     }
 
     public void testInit() {
@@ -58,6 +71,301 @@ public class FilesystemMailboxManagerTest extends TestCase {
         assertTrue(details.getDeleted().contains("00000005"));
     }
 
+    public void testMailboxIndex() throws IOException {
+        User user = new User();
+        user.setUserName("201");
+        MailboxDetails details = m_mailboxManager.getMailboxDetails("201");
+        assertEquals(3, details.getInboxCount());
+        assertEquals(2, m_mailboxManager.getMwiCounts("201").getHeardCount());
+
+        m_mailboxManager.moveMessageToFolder(user, "00000002", "saved");
+        m_mailboxManager.deleteMessage(user, "00000005");
+        details = m_mailboxManager.getMailboxDetails("201");
+        assertEquals(2, details.getInboxCount());
+        assertEquals(2, details.getSavedCount());
+        assertEquals(0, details.getDeletedCount());
+        assertTrue(details.getSaved().contains("00000002"));
+        assertFalse(new File("/tmp/mailbox/201/inbox/00000002-00.xml").exists());
+        assertTrue(new File("/tmp/mailbox/201/saved/00000002-00.xml").exists());
+        assertEquals(1, m_mailboxManager.getMwiCounts("201").getHeardCount());
+        assertEquals(1, m_mailboxManager.getMwiCounts("201").getUnheardCount());
+
+        // changes made outside of the manager are picked up
+        createUnHeardMessage("201", "08");
+        FileUtils.forceDelete(new File("/tmp/mailbox/201/saved/00000004-00.xml"));
+        details = m_mailboxManager.getMailboxDetails("201");
+        assertEquals(3, details.getInboxCount());
+        assertEquals(2, details.getUnheardCount());
+        assertTrue(details.getUnheard().contains("00000008"));
+        assertEquals(1, details.getSavedCount());
+        assertTrue(m_mailboxManager.isMessageUnHeard(user, "00000008"));
+    }
+
+    public void testMailboxIndexChangedDuringUpdate() throws IOException {
+        FilesystemMailboxIndex index = new FilesystemMailboxIndex(new File("/tmp/mailbox/201"));
+        assertEquals(3, index.getEntries(Folder.INBOX).size());
+        FilesystemMailboxIndex.Entry entry = index.getEntry("00000001");
+
+        // added by somebody else after the scan, not hidden by the next change of the manager
+        createHeardMessage("201", "08");
+        FilesystemMailboxIndex.Change change = index.beginChange(Folder.INBOX);
+        FileUtils.forceDelete(new File("/tmp/mailbox/201/inbox/00000001-00.sta"));
+        index.put(entry.withoutFile(FilesystemMailboxManager.STATUS_IDENTIFIER), change);
+        assertEquals(Arrays.asList("00000001", "00000002", "00000003", "00000008"),
+                index.getMessageIds(Folder.INBOX, false));
+        assertTrue(index.getMessageIds(Folder.INBOX, true).isEmpty());
+    }
+
+    public void testMailboxIndexChangedInSameTick() throws IOException {
+        FilesystemMailboxIndex index = new FilesystemMailboxIndex(new File("/tmp/mailbox/201"));
+        assertEquals(3, index.getEntries(Folder.INBOX).size());
+
+        // added right after the scan, the modification time of the folder did not change
+        Path inbox = new File("/tmp/mailbox/201/inbox").toPath();
+        FileTime scanned = Files.getLastModifiedTime(inbox);
+        createHeardMessage("201", "08");
+        Files.setLastModifiedTime(inbox, scanned);
+        assertEquals(4, index.getEntries(Folder.INBOX).size());
+    }
+
+    public void testStaleDescriptorDeleted() throws IOException {
+        File stale = new File("/tmp/mailbox/201/inbox/descriptor_1.tmp");
+        File committing = new File("/tmp/mailbox/201/inbox/descriptor_2.tmp");
+        FileUtils.touch(stale);
+        FileUtils.touch(committing);
+        stale.setLastModified(System.currentTimeMillis() - 3600000);
+        assertEquals(3, m_mailboxManager.getMailboxDetails("201").getInboxCount());
+        assertFalse(stale.exists());
+        assertTrue(committing.exists());
+    }
+
+    public void testMessageOrder() throws IOException {
+        // descriptors rewritten after they were received, most recent message first
+        new File("/tmp/mailbox/201/inbox/00000003-00.xml").setLastModified(1000000000000L);
+        new File("/tmp/mailbox/201/inbox/00000002-00.xml").setLastModified(1100000000000L);
+        new File("/tmp/mailbox/201/inbox/00000001-00.xml").setLastModified(1200000000000L);
+        assertEquals(Arrays.asList("00000001", "00000002", "00000003"),
+                m_mailboxManager.getMailboxDetails("201").getInbox());
+    }
+
+    public void testListMessagesPage() throws IOException {
+        m_mailboxManager.setMessageDescriptorReader(new MessageDescriptorReader() {
+            @Override
+            public MessageDescriptor readObject(File file) {
+                return new MessageDescriptor();
+            }
+        });
+        // pages over the folders, one after the other
+        MessagePage page = new MessagePage(0, 2);
+        assertEquals(Arrays.asList("00000001", "00000002"), listMessages("201", page));
+        assertTrue(page.hasMore());
+        page = new MessagePage(2, 2);
+        assertEquals(Arrays.asList("00000003", "00000004"), listMessages("201", page));
+        assertTrue(page.hasMore());
+        page = new MessagePage(4, 2);
+        assertEquals(Arrays.asList("00000005"), listMessages("201", page));
+        assertFalse(page.hasMore());
+        page = new MessagePage(0, 0);
+        assertEquals(5, listMessages("201", page).size());
+        assertFalse(page.hasMore());
+    }
+
+    private List<String> listMessages(String username, MessagePage page) {
+        final List<String> messageIds = new ArrayList<String>();
+        for (Folder folder : new Folder[] {Folder.INBOX, Folder.SAVED, Folder.DELETED}) {
+            if (page.hasMore()) {
+                break;
+            }
+            m_mailboxManager.listMessages(username, folder, 0, page, new MessageHandler() {
+                @Override
+                public void handle(VmMessage message) {
+                    messageIds.add(message.getMessageId());
+                }
+            });
+        }
+        return messageIds;
+    }
+
+    public void testUpdateMessages() throws IOException {
+        User user = new User();
+        user.setUserName("201");
+        final List<MailboxDetails> sent = new ArrayList<MailboxDetails>();
+        m_mailboxManager.setMwiManager(new Mwi() {
+            @Override
+            public void sendMWI(User user, MailboxDetails mailbox) {
+                sent.add(mailbox);
+            }
+        });
+        assertEquals(2, m_mailboxManager.getMwiCounts("201").getHeardCount());
+
+        List<String> notFound = m_mailboxManager.updateMessages(user,
+                Arrays.asList("00000001", "00000002", "00000009"), MessageAction.MOVE, "saved");
+        assertEquals(Collections.singletonList("00000009"), notFound);
+        assertEquals(1, sent.size());
+        assertEquals(1, sent.get(0).getHeardCount());
+        MailboxDetails details = m_mailboxManager.getMailboxDetails("201");
+        assertEquals(1, details.getInboxCount());
+        assertEquals(3, details.getSavedCount());
+        assertEquals(1, m_mailboxManager.getMwiCounts("201").getHeardCount());
+        assertEquals(0, m_mailboxManager.getMwiCounts("201").getUnheardCount());
+
+        notFound = m_mailboxManager.updateMessages(user, Arrays.asList("00000003", "00000005"),
+                MessageAction.DELETE, null);
+        assertTrue(notFound.isEmpty());
+        details = m_mailboxManager.getMailboxDetails("201");
+        assertEquals(0, details.getInboxCount());
+        assertEquals(0, m_mailboxManager.getMwiCounts("201").getHeardCount());
+        assertEquals(2, sent.size());
+    }
+
+    public void testSaveTempMessage() throws Exception {
+        User user = new User();
+        user.setUserName("201");
+        m_mailboxManager.setMwiManager(new Mwi() {
+            @Override
+            public void sendMWI(User user, MailboxDetails mailbox) {
+            }
+        });
+        m_mailboxManager.setMessageDescriptorWriter(new MessageDescriptorWriter());
+        m_mailboxManager.setAudioFormat("wav");
+        m_mailboxManager.setSyncCommits(true);
+        File temp = new File("/tmp/mailbox/201/deleted/temp_recording_1.wav");
+        FileUtils.writeStringToFile(temp, "audio");
+        MessageDescriptor descriptor = new MessageDescriptor();
+        descriptor.setTimestamp(1356998400000L);
+        TempMessage message = new TempMessage("201", temp.getPath(), "sip:202@example.com",
+                MessageDescriptor.Priority.NORMAL, null);
+
+        assertNotNull(m_mailboxManager.saveTempMessageInStorage(user, message, descriptor, Folder.INBOX,
+                "00000009"));
+        File audio = new File("/tmp/mailbox/201/inbox/00000009-00.wav");
+        assertEquals("audio", FileUtils.readFileToString(audio));
+        assertTrue(new File("/tmp/mailbox/201/inbox/00000009-00.xml").exists());
+        assertEquals(3, new File("/tmp/mailbox/201/inbox/").list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("00000009-");
+            }
+        }).length);
+        // temp recording kept for other recipients
+        assertTrue(temp.exists());
+        assertTrue(m_mailboxManager.getMailboxDetails("201").getInbox().contains("00000009"));
+    }
+
+    public void testHashedLayout() throws Exception {
+        HashedMailboxLayout layout = new HashedMailboxLayout();
+        layout.setRoots("/tmp/mailbox/shards1, /tmp/mailbox/shards2");
+        File directory = layout.getUserDirectory("201");
+        assertEquals("201", directory.getName());
+        assertEquals(2, directory.getParentFile().getName().length());
+        assertEquals(directory, layout.getUserDirectory("201"));
+
+        m_mailboxManager.setMailboxLayout(layout);
+        m_mailboxManager.init();
+        // moved when first accessed
+        MailboxDetails details = m_mailboxManager.getMailboxDetails("201");
+        assertEquals(3, details.getInboxCount());
+        assertEquals(1, details.getUnheardCount());
+        assertFalse(new File("/tmp/mailbox/201").exists());
+        assertTrue(new File(directory, "inbox/00000001-00.sta").exists());
+
+        // not a mailbox, left alone
+        new File("/tmp/mailbox/3f/a2").mkdirs();
+        m_mailboxManager.migrateMailboxes();
+        assertFalse(new File("/tmp/mailbox/202").exists());
+        assertTrue(new File(layout.getUserDirectory("202"), "inbox/00000006-00.xml").exists());
+        assertEquals(1, m_mailboxManager.getMailboxDetails("202").getInboxCount());
+        assertTrue(new File("/tmp/mailbox/3f/a2").isDirectory());
+        assertFalse(layout.getUserDirectory("3f").exists());
+    }
+
+    public void testHashedLayoutRootAdded() throws Exception {
+        HashedMailboxLayout layout = new HashedMailboxLayout();
+        layout.setRoots("/tmp/mailbox/shards1, /tmp/mailbox/shards2");
+        File directory = layout.getUserDirectory("201");
+        List<File> directories = layout.getUserDirectories("201");
+        assertEquals(2, directories.size());
+        assertTrue(directories.contains(directory));
+        String oldRoot = directory.getPath().startsWith("/tmp/mailbox/shards1") ? "/tmp/mailbox/shards2"
+                : "/tmp/mailbox/shards1";
+
+        HashedMailboxLayout oldLayout = new HashedMailboxLayout();
+        oldLayout.setRoots(oldRoot);
+        m_mailboxManager.setMailboxLayout(oldLayout);
+        m_mailboxManager.init();
+        assertEquals(3, m_mailboxManager.getMailboxDetails("201").getInboxCount());
+        assertTrue(oldLayout.getUserDirectory("201").isDirectory());
+
+        // moved from the old root when first accessed
+        m_mailboxManager = new FilesystemMailboxManager();
+        m_mailboxManager.setMailstoreDirectory("/tmp/mailbox/");
+        m_mailboxManager.setMailboxLayout(layout);
+        m_mailboxManager.init();
+        assertEquals(3, m_mailboxManager.getMailboxDetails("201").getInboxCount());
+        assertFalse(oldLayout.getUserDirectory("201").exists());
+        assertTrue(new File(directory, "inbox/00000001-00.sta").exists());
+    }
+
+    public void testHashedLayoutMoveFailed() throws Exception {
+        HashedMailboxLayout layout = new HashedMailboxLayout();
+        layout.setRoots("/tmp/mailbox/shards1");
+        File directory = layout.getUserDirectory("201");
+        // a file where the shard directory should be
+        FileUtils.touch(directory.getParentFile());
+        m_mailboxManager.setMailboxLayout(layout);
+        m_mailboxManager.init();
+        MailboxDetails details = m_mailboxManager.getMailboxDetails("201");
+        assertEquals(3, details.getInboxCount());
+        assertEquals(1, details.getUnheardCount());
+        assertFalse(directory.exists());
+        assertFalse(new File("/tmp/mailbox/.201.moving").exists());
+        assertTrue(new File("/tmp/mailbox/201/inbox/00000001-00.sta").exists());
+    }
+
+    public void testHashedLayoutRootIsMailstore() throws Exception {
+        HashedMailboxLayout layout = new HashedMailboxLayout();
+        layout.setRoots("/tmp/mailbox/shards1, /tmp/mailbox/");
+        m_mailboxManager.setMailboxLayout(layout);
+        try {
+            m_mailboxManager.init();
+            fail("mailstore directory accepted as a root");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    public void testNextMessageId() throws Exception {
+        FileUtils.deleteQuietly(new File("/tmp/messageid.txt"));
+        m_mailboxManager.setMessageIdBlockSize(10);
+        m_mailboxManager.init();
+        assertEquals("00000001", m_mailboxManager.nextMessageId());
+        assertEquals("11", FileUtils.readFileToString(new File("/tmp/messageid.txt")));
+
+        final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 25; j++) {
+                        ids.add(m_mailboxManager.nextMessageId());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(100, ids.size());
+        assertFalse(ids.contains("00000001"));
+        assertEquals("111", FileUtils.readFileToString(new File("/tmp/messageid.txt")));
+
+        // a restart skips what is left of the reserved block, later ids are not padded
+        m_mailboxManager.init();
+        assertEquals("111", m_mailboxManager.nextMessageId());
+    }
+
     private void createUnHeardMessage(String username, String id) throws IOException {
         FileUtils.touch(new File (String.format("/tmp/mailbox/%s/%s/000000%s-00.sta", username, Folder.INBOX, id)));
         FileUtils.touch(new File (String.format("/tmp/mailbox/%s/%s/000000%s-00.wav", username, Folder.INBOX, id)));
@@ -0,0 +1,78 @@
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.sipfoundry.voicemail.mailbox.MessageDescriptor.Priority;
+
+public class FolderManifestTest extends TestCase {
+    File m_folder = new File("/tmp/manifest/");
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_folder.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        FileUtils.deleteQuietly(m_folder);
+    }
+
+    public void testPutGet() throws Exception {
+        FolderManifest manifest = new FolderManifest(m_folder);
+        assertNull(manifest.get("00000001", 1000));
+        manifest.put("00000001", 1000, createDescriptor("first"));
+        manifest.put("00000002", 1000, createDescriptor("second"));
+        manifest.put("00000001", 2000, createDescriptor("updated"));
+
+        assertNull(manifest.get("00000001", 1000));
+        assertEquals("updated", manifest.get("00000001", 2000).getSubject());
+
+        // reloaded from the journal, an interrupted append is ignored
+        RandomAccessFile file = new RandomAccessFile(new File(m_folder, FolderManifest.FILE_NAME), "rw");
+        file.seek(file.length());
+        file.writeInt(100);
+        file.close();
+        manifest = new FolderManifest(m_folder);
+        MessageDescriptor descriptor = manifest.get("00000002", 1000);
+        assertEquals("second", descriptor.getSubject());
+        assertEquals("sip:202@example.com", descriptor.getFromUri());
+        assertEquals(Priority.URGENT, descriptor.getPriority());
+        assertEquals("12", descriptor.getDurationSecs());
+        assertNull(descriptor.getContentLength());
+        assertEquals(Arrays.asList("203", "204"), descriptor.getOtherRecipients());
+        assertEquals("updated", manifest.get("00000001", 2000).getSubject());
+    }
+
+    public void testCompact() throws Exception {
+        FolderManifest manifest = new FolderManifest(m_folder);
+        for (int i = 0; i < 100; i++) {
+            manifest.put("00000001", i, createDescriptor("first"));
+        }
+        manifest.put("00000002", 1000, createDescriptor("second"));
+        assertTrue(manifest.needsCompaction(2));
+
+        manifest.compact(Arrays.asList("00000001"));
+        assertFalse(manifest.needsCompaction(1));
+        manifest = new FolderManifest(m_folder);
+        assertEquals("first", manifest.get("00000001", 99).getSubject());
+        assertNull(manifest.get("00000002", 1000));
+    }
+
+    private MessageDescriptor createDescriptor(String subject) {
+        MessageDescriptor descriptor = new MessageDescriptor();
+        descriptor.setId("sip:201@example.com");
+        descriptor.setFromUri("sip:202@example.com");
+        descriptor.setDurationSecs(12);
+        descriptor.setTimestamp(1356998400000L);
+        descriptor.setSubject(subject);
+        descriptor.setPriority(Priority.URGENT);
+        descriptor.addOtherRecipient("203");
+        descriptor.addOtherRecipient("204");
+        return descriptor;
+    }
+}
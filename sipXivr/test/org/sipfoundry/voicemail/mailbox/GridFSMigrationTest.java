@@ -0,0 +1,128 @@
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.sipfoundry.commons.mongo.MongoSpringTemplate;
+import org.sipfoundry.commons.userdb.User;
+import org.sipfoundry.sipxivr.email.Emailer;
+import org.sipfoundry.voicemail.Mwi;
+import org.sipfoundry.voicemail.mailbox.gridfs.GridFSSequenceCounter;
+import org.sipfoundry.voicemail.mailbox.gridfs.GridFSVmTemplate;
+import org.springframework.data.mongodb.core.SimpleMongoDbFactory;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoException;
+import com.mongodb.gridfs.GridFSDBFile;
+
+/**
+ * Needs a mongod on localhost, skipped when there is none
+ */
+public class GridFSMigrationTest extends TestCase {
+    private static final String DB_NAME = "vmdb_migration_test";
+
+    File m_directory = new File("/tmp/gridfsmigration/");
+    File m_mailstore = new File(m_directory, "mailstore");
+    MongoClient m_client;
+    SimpleMongoDbFactory m_dbFactory;
+    GridFSVmTemplate m_template;
+    GridFSMailboxManager m_manager;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_client = createClient();
+        try {
+            m_client.getDB(DB_NAME).command("ping");
+        } catch (MongoException ex) {
+            m_client.close();
+            m_client = null;
+            return;
+        }
+        m_dbFactory = new SimpleMongoDbFactory(m_client, DB_NAME);
+        m_dbFactory.getDb().dropDatabase();
+        MongoSpringTemplate sequenceDb = new MongoSpringTemplate(m_dbFactory);
+        sequenceDb.setDbname(DB_NAME);
+        m_template = new GridFSVmTemplate(m_dbFactory);
+
+        m_manager = new GridFSMailboxManager();
+        m_manager.setMailstoreDirectory(new File(m_directory, "gridfs").getPath());
+        m_manager.setIvrIdentity("1");
+        m_manager.setAudioFormat("wav");
+        m_manager.setMwiManager(new Mwi() {
+            @Override
+            public void sendMWI(User user, MailboxDetails mailbox) {
+            }
+        });
+        m_manager.setEmailer(new Emailer() {
+            @Override
+            public void queueVm2Email(User destUser, VmMessage vmessage) {
+            }
+        });
+        m_manager.setGridFSVmTemplate(m_template);
+        m_manager.setMessageIdSequenceCounter(new GridFSSequenceCounter(sequenceDb, "1"));
+        m_manager.init();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        if (m_client != null) {
+            m_dbFactory.getDb().dropDatabase();
+            m_client.close();
+        }
+        FileUtils.deleteQuietly(m_directory);
+    }
+
+    protected MongoClient createClient() throws Exception {
+        return new MongoClient("localhost", MongoClientOptions.builder().connectTimeout(1000).build());
+    }
+
+    public void testForwardedMessage() throws Exception {
+        if (m_client == null) {
+            return;
+        }
+        File inbox = new File(m_mailstore, "201/inbox");
+        MessageDescriptor descriptor = new MessageDescriptor();
+        descriptor.setId("sip:202@example.com");
+        descriptor.setFromUri("sip:203@example.com");
+        descriptor.setDurationSecs(7);
+        descriptor.setTimestamp(System.currentTimeMillis());
+        descriptor.setSubject("Voice Message 00000005");
+        descriptor.setAudioFormat("wav");
+        FileUtils.forceMkdir(inbox);
+        MessageDescriptorWriter writer = new MessageDescriptorWriter();
+        writer.writeObject(descriptor, new File(inbox, "00000005-00.xml"));
+        // descriptor of the original message, shares the prefix of its audio
+        writer.writeObject(descriptor, new File(inbox, "00000005-01.xml"));
+        FileUtils.writeStringToFile(new File(inbox, "00000005-00.wav"), "comment");
+        FileUtils.writeStringToFile(new File(inbox, "00000005-01.wav"), "original");
+        FileUtils.writeStringToFile(new File(inbox, "00000005-FW.wav"), "combined");
+        FileUtils.touch(new File(inbox, "00000005-00.sta"));
+
+        m_manager.createMigration(m_mailstore).run();
+        DBObject vmMetadata = m_template.findByMessageId("201", Folder.INBOX.getId(), "00000005");
+        assertNotNull(vmMetadata);
+        assertEquals(Boolean.TRUE, vmMetadata.get(GridFSVmTemplate.UNHEARD));
+        assertEquals(new HashSet<String>(Arrays.asList("00000005-00.wav", "00000005-01.wav", "00000005-FW.wav")),
+                getFilenames(vmMetadata));
+
+        // nothing uploaded twice
+        FileUtils.deleteQuietly(new File(m_mailstore, MailstoreMigration.CHECKPOINT_FILE));
+        m_manager.createMigration(m_mailstore).run();
+        assertEquals(3, m_template.findFilesByVmId(vmMetadata).size());
+    }
+
+    private Set<String> getFilenames(DBObject vmMetadata) {
+        Set<String> filenames = new HashSet<String>();
+        for (GridFSDBFile file : m_template.findFilesByVmId(vmMetadata)) {
+            filenames.add(file.getFilename());
+        }
+        return filenames;
+    }
+}
@@ -0,0 +1,318 @@
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.sipfoundry.commons.mongo.MongoSpringTemplate;
+import org.sipfoundry.commons.userdb.User;
+import org.sipfoundry.sipxivr.email.Emailer;
+import org.sipfoundry.voicemail.Mwi;
+import org.sipfoundry.voicemail.mailbox.gridfs.GridFSSequenceCounter;
+import org.sipfoundry.voicemail.mailbox.gridfs.GridFSVmTemplate;
+import org.springframework.data.mongodb.core.SimpleMongoDbFactory;
+
+import com.mongodb.MongoClient;
+
+/**
+ * Benchmark of the mailbox storage operations of the mailbox managers, to compare them and to
+ * catch storage regressions. Not a unit test, run it with "make benchmark" in sipXivr/test:
+ *
+ * <pre>
+ * make benchmark BENCHMARK_ARGS="--managers filesystem,gridfs --sizes 10,1000 --report bench.csv"
+ * </pre>
+ *
+ * Every operation is measured on mailboxes of each size: warm-up iterations first, then timed
+ * iterations in which the operation runs as many times as it can. The average time per operation
+ * and the spread between iterations are printed; with --report they are also appended to a CSV
+ * file, with the --label of the run, so that runs of different builds can be compared. The GridFS
+ * manager needs a mongod, by default on localhost, and uses its own database.
+ */
+public class MailboxManagerBenchmark {
+    private static final String USERNAME = "bench";
+    private static final String FORWARD_USERNAME = "benchfwd";
+    private static final String DIRECTORY = "/tmp/mailbox-benchmark";
+
+    private final Map<String, String> m_options = new LinkedHashMap<String, String>();
+    private final File m_audio = new File(DIRECTORY, "message.wav");
+    private PrintWriter m_report;
+
+    public static void main(String[] args) throws Exception {
+        MailboxManagerBenchmark benchmark = new MailboxManagerBenchmark();
+        benchmark.m_options.put("managers", "filesystem");
+        benchmark.m_options.put("sizes", "10,100,1000,10000");
+        benchmark.m_options.put("warmup", "2");
+        benchmark.m_options.put("iterations", "5");
+        benchmark.m_options.put("time", "1000");
+        benchmark.m_options.put("mongo", "localhost:27017");
+        benchmark.m_options.put("label", new SimpleDateFormat("yyyyMMdd-HHmm").format(new Date()));
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String option = args[i].startsWith("--") ? args[i].substring(2) : "";
+            if (!benchmark.m_options.containsKey(option) && !option.equals("report")) {
+                System.err.println("usage: MailboxManagerBenchmark [--managers filesystem,gridfs] "
+                        + "[--sizes 10,100] [--warmup n] [--iterations n] [--time ms] [--mongo host:port] "
+                        + "[--label name] [--report file.csv]");
+                System.exit(1);
+            }
+            benchmark.m_options.put(option, args[i + 1]);
+        }
+        benchmark.run();
+    }
+
+    private void run() throws Exception {
+        String report = m_options.get("report");
+        if (report != null) {
+            m_report = new PrintWriter(new FileWriter(report, true));
+        }
+        System.out.println(String.format("%-10s %-18s %6s %10s %12s %8s", "manager", "operation", "size", "ops",
+                "us/op", "spread"));
+        try {
+            for (String manager : StringUtils.split(m_options.get("managers"), ',')) {
+                for (String size : StringUtils.split(m_options.get("sizes"), ',')) {
+                    run(manager, Integer.parseInt(size));
+                }
+            }
+        } finally {
+            if (m_report != null) {
+                m_report.close();
+            }
+        }
+    }
+
+    private void run(String managerName, int size) throws Exception {
+        FileUtils.deleteQuietly(new File(DIRECTORY));
+        createAudio(m_audio);
+        Fixture fixture = managerName.equals("gridfs") ? new GridFSFixture() : new FilesystemFixture();
+        try {
+            final AbstractMailboxManager manager = fixture.createManager();
+            final User user = createUser(USERNAME);
+            final User forwardUser = createUser(FORWARD_USERNAME);
+            for (int i = 0; i < size; i++) {
+                manager.storeInInbox(user, createTempMessage(manager));
+            }
+            final List<String> messageIds = new ArrayList<String>(manager.getMailboxDetails(USERNAME).getInbox());
+
+            Map<String, Operation> operations = new LinkedHashMap<String, Operation>();
+            operations.put("store", new Operation() {
+                @Override
+                public void run(int i) throws Exception {
+                    // to another mailbox, the measured mailbox keeps its size
+                    manager.storeInInbox(forwardUser, createTempMessage(manager));
+                }
+            });
+            operations.put("getMessages", new Operation() {
+                @Override
+                public void run(int i) {
+                    manager.getMessages(USERNAME, Folder.INBOX);
+                }
+            });
+            operations.put("getMailboxDetails", new Operation() {
+                @Override
+                public void run(int i) {
+                    manager.getMailboxDetails(USERNAME);
+                }
+            });
+            operations.put("getVmMessage", new Operation() {
+                @Override
+                public void run(int i) {
+                    manager.getVmMessage(USERNAME, messageIds.get(i % messageIds.size()), false);
+                }
+            });
+            operations.put("markMessageHeard", new Operation() {
+                @Override
+                public void run(int i) {
+                    // every other operation marks back unheard, both are measured
+                    String messageId = messageIds.get(i / 2 % messageIds.size());
+                    if (i % 2 == 0) {
+                        manager.markMessageHeard(user, messageId);
+                    } else {
+                        manager.markMessageUnheard(user, messageId);
+                    }
+                }
+            });
+            operations.put("forwardMessage", new Operation() {
+                @Override
+                public void run(int i) throws Exception {
+                    VmMessage message = manager.getVmMessage(USERNAME, messageIds.get(i % messageIds.size()), true);
+                    TempMessage comments = createTempMessage(manager);
+                    manager.forwardMessage(forwardUser, message, comments);
+                    manager.deleteTempMessage(comments);
+                }
+            });
+            operations.put("nextMessageId", new Operation() {
+                @Override
+                public void run(int i) {
+                    manager.nextMessageId();
+                }
+            });
+            for (Map.Entry<String, Operation> operation : operations.entrySet()) {
+                measure(managerName, operation.getKey(), size, operation.getValue());
+            }
+        } finally {
+            fixture.destroy();
+        }
+    }
+
+    private void measure(String managerName, String operationName, int size, Operation operation)
+        throws Exception {
+        int warmup = Integer.parseInt(m_options.get("warmup"));
+        int iterations = Integer.parseInt(m_options.get("iterations"));
+        long time = Long.parseLong(m_options.get("time")) * 1000000L;
+        int count = 0;
+        long totalOps = 0;
+        long totalNanos = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (int iteration = 0; iteration < warmup + iterations; iteration++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                operation.run(count++);
+                ops++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < time);
+            if (iteration >= warmup) {
+                double perOp = elapsed / 1000.0 / ops;
+                min = Math.min(min, perOp);
+                max = Math.max(max, perOp);
+                totalOps += ops;
+                totalNanos += elapsed;
+            }
+        }
+        double average = totalNanos / 1000.0 / totalOps;
+        // spread between the fastest and the slowest iteration, relative to the average
+        double spread = average > 0 ? (max - min) / average * 100 : 0;
+        System.out.println(String.format("%-10s %-18s %6d %10d %12.1f %7.1f%%", managerName, operationName, size,
+                totalOps, average, spread));
+        if (m_report != null) {
+            m_report.println(String.format("%s,%s,%s,%d,%d,%.1f,%.1f,%.1f", m_options.get("label"), managerName,
+                    operationName, size, totalOps, average, min, max));
+            m_report.flush();
+        }
+    }
+
+    private TempMessage createTempMessage(AbstractMailboxManager manager) throws IOException {
+        TempMessage message = manager.createTempMessage(USERNAME, "sip:201@example.com", true);
+        FileUtils.copyFile(m_audio, new File(message.getTempPath()));
+        return message;
+    }
+
+    private static User createUser(String username) {
+        User user = new User();
+        user.setUserName(username);
+        user.setIdentity(username + "@example.com");
+        return user;
+    }
+
+    /**
+     * One second of 8kHz 16 bit mono silence
+     */
+    private static void createAudio(File file) throws IOException {
+        int dataLength = 16000;
+        file.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeBytes("RIFF");
+            out.writeInt(Integer.reverseBytes(36 + dataLength));
+            out.writeBytes("WAVEfmt ");
+            out.writeInt(Integer.reverseBytes(16));
+            out.writeShort(Short.reverseBytes((short) 1));
+            out.writeShort(Short.reverseBytes((short) 1));
+            out.writeInt(Integer.reverseBytes(8000));
+            out.writeInt(Integer.reverseBytes(16000));
+            out.writeShort(Short.reverseBytes((short) 2));
+            out.writeShort(Short.reverseBytes((short) 16));
+            out.writeBytes("data");
+            out.writeInt(Integer.reverseBytes(dataLength));
+            out.write(new byte[dataLength]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void configure(AbstractMailboxManager manager) {
+        manager.setMailstoreDirectory(DIRECTORY + "/mailstore");
+        manager.setIvrIdentity("1");
+        manager.setAudioFormat("wav");
+        manager.setMwiManager(new Mwi() {
+            @Override
+            public void sendMWI(User user, MailboxDetails mailbox) {
+            }
+        });
+        manager.setEmailer(new Emailer() {
+            @Override
+            public void queueVm2Email(User destUser, VmMessage vmessage) {
+            }
+        });
+    }
+
+    private interface Operation {
+        void run(int i) throws Exception;
+    }
+
+    private interface Fixture {
+        AbstractMailboxManager createManager() throws Exception;
+
+        void destroy() throws Exception;
+    }
+
+    private static class FilesystemFixture implements Fixture {
+        @Override
+        public AbstractMailboxManager createManager() {
+            FilesystemMailboxManager manager = new FilesystemMailboxManager();
+            configure(manager);
+            manager.setMessageDescriptorReader(new MessageDescriptorReader());
+            manager.setMessageDescriptorWriter(new MessageDescriptorWriter());
+            manager.init();
+            return manager;
+        }
+
+        @Override
+        public void destroy() {
+            FileUtils.deleteQuietly(new File(DIRECTORY));
+        }
+    }
+
+    private class GridFSFixture implements Fixture {
+        private MongoClient m_client;
+        private SimpleMongoDbFactory m_dbFactory;
+
+        @Override
+        public AbstractMailboxManager createManager() throws Exception {
+            String[] address = m_options.get("mongo").split(":");
+            m_client = new MongoClient(address[0], address.length > 1 ? Integer.parseInt(address[1]) : 27017);
+            m_dbFactory = new SimpleMongoDbFactory(m_client, "vmdb_benchmark");
+            m_dbFactory.getDb().dropDatabase();
+            MongoSpringTemplate sequenceDb = new MongoSpringTemplate(m_dbFactory);
+            sequenceDb.setDbname("vmdb_benchmark");
+
+            GridFSMailboxManager manager = new GridFSMailboxManager();
+            configure(manager);
+            manager.setGridFSVmTemplate(new GridFSVmTemplate(m_dbFactory));
+            manager.setMessageIdSequenceCounter(new GridFSSequenceCounter(sequenceDb, "1"));
+            manager.init();
+            return manager;
+        }
+
+        @Override
+        public void destroy() {
+            if (m_client != null) {
+                m_dbFactory.getDb().dropDatabase();
+                m_client.close();
+            }
+            FileUtils.deleteQuietly(new File(DIRECTORY));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class MailstoreMigrationTest extends TestCase {
+    File m_mailstore = new File("/tmp/migration/");
+    Set<String> m_migrated = Collections.synchronizedSet(new HashSet<String>());
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        FileUtils.touch(new File(m_mailstore, "201/inbox/00000001-00.xml"));
+        FileUtils.touch(new File(m_mailstore, "202/standard.wav"));
+        FileUtils.touch(new File(m_mailstore, "3f/a2/203/saved/00000002-00.xml"));
+        FileUtils.touch(new File(m_mailstore, "broken/deleted/00000003-00.xml"));
+        new File(m_mailstore, "empty").mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        FileUtils.deleteQuietly(m_mailstore);
+    }
+
+    public void testResume() {
+        createMigration(true).run();
+        assertEquals(new HashSet<String>(Arrays.asList("201", "202", "203", "broken")), m_migrated);
+
+        // only the failed mailbox is migrated again
+        m_migrated.clear();
+        createMigration(false).run();
+        assertEquals(Collections.singleton("broken"), m_migrated);
+        m_migrated.clear();
+        createMigration(false).run();
+        assertTrue(m_migrated.isEmpty());
+    }
+
+    private MailstoreMigration createMigration(final boolean fail) {
+        return new MailstoreMigration(m_mailstore, 2) {
+            @Override
+            protected int migrateMailbox(String username, File directory) throws IOException {
+                m_migrated.add(username);
+                if (fail && username.equals("broken")) {
+                    throw new IOException("broken");
+                }
+                return 1;
+            }
+        };
+    }
+}
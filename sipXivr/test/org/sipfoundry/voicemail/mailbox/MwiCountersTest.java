@@ -0,0 +1,39 @@
+package org.sipfoundry.voicemail.mailbox;
+
+import junit.framework.TestCase;
+
+public class MwiCountersTest extends TestCase {
+    MwiCounters m_counters;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_counters = new MwiCounters();
+    }
+
+    public void testUpdate() {
+        assertNull(m_counters.getCounts("201"));
+        m_counters.reconcile("201", m_counters.getGeneration("201"), new MailboxDetails("201", 2, 1));
+
+        m_counters.update("201", true, 1);
+        m_counters.update("201", false);
+        MailboxDetails counts = m_counters.getCounts("201");
+        assertEquals(3, counts.getHeardCount());
+        assertEquals(1, counts.getUnheardCount());
+
+        m_counters.update("201", true, -2);
+        assertNull(m_counters.getCounts("201"));
+    }
+
+    public void testReconcileRace() {
+        long generation = m_counters.getGeneration("201");
+        // message stored while the mailbox was being counted
+        m_counters.update("201", true, 1);
+        m_counters.reconcile("201", generation, new MailboxDetails("201", 0, 0));
+        assertNull(m_counters.getCounts("201"));
+
+        m_counters.reconcile("201", m_counters.getGeneration("201"), new MailboxDetails("201", 0, 1));
+        assertEquals(1, m_counters.getCounts("201").getUnheardCount());
+        m_counters.invalidate("201");
+        assertNull(m_counters.getCounts("201"));
+    }
+}
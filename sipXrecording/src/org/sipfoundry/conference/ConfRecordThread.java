@@ -11,8 +11,10 @@ package org.sipfoundry.conference;
 import java.io.File;
 import java.io.IOException;
 import java.util.Date;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.sipfoundry.commons.confdb.Conference;
@@ -41,7 +43,9 @@ public class ConfRecordThread extends ConfBasicThread {
 
     private ConferenceContextImpl m_conferenceContext;
 
-    private ExecutorService m_executorService = Executors.newSingleThreadExecutor();
+    // one publishing thread, events beyond the queue are dropped rather than piling up
+    private ThreadPoolExecutor m_executorService = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(1000));
     private boolean hzEnabled;
 
     public ConfRecordThread(RecordingConfiguration recordingConfig) {
@@ -112,6 +116,7 @@ public class ConfRecordThread extends ConfBasicThread {
 
         if (!hzEnabled) {
             LOG.debug("ProcessConfUserAdd: nothing to do, hazelcast notification not enabled");
+            return;
         }
 
         User owner = conf.getOwner();
@@ -125,6 +130,9 @@ public class ConfRecordThread extends ConfBasicThread {
                         new HzConfEvent(member.memberNumber(), owner.getUserName(), instantMsg, HzConfEvent.ConfType.ENTER_CONFERENCE),
                         HzConstants.CONF_TOPIC));
                 }
+            } catch (RejectedExecutionException ex) {
+                LOG.warn("User conference enter::sendIM dropped, " + m_executorService.getQueue().size()
+                        + " events waiting");
             } catch (Exception ex) {
                 LOG.error("User conference enter::sendIM failed", ex);
             }
@@ -135,6 +143,7 @@ public class ConfRecordThread extends ConfBasicThread {
 
         if (!hzEnabled) {
             LOG.debug("ProcessConfUserDel: nothing to do, hazelcast notification not enabled");
+            return;
         }
 
         User owner = conf.getOwner();
@@ -151,6 +160,9 @@ public class ConfRecordThread extends ConfBasicThread {
                             HzConstants.CONF_TOPIC));
                     }
                 }
+            } catch (RejectedExecutionException ex) {
+                LOG.warn("User conference exit::sendIM dropped, " + m_executorService.getQueue().size()
+                        + " events waiting");
             } catch (Exception ex) {
                 LOG.error("User conference exit::sendIM failed", ex);
             }